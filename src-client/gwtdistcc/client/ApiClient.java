@@ -1,10 +1,19 @@
 package gwtdistcc.client;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 
 import org.apache.commons.httpclient.Header;
@@ -17,11 +26,14 @@ import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.HeadMethod;
 import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.multipart.ByteArrayPartSource;
 import org.apache.commons.httpclient.methods.multipart.FilePart;
 import org.apache.commons.httpclient.methods.multipart.MultipartRequestEntity;
 import org.apache.commons.httpclient.methods.multipart.Part;
 import org.apache.commons.httpclient.methods.multipart.StringPart;
 import org.apache.commons.httpclient.params.HttpMethodParams;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,6 +41,46 @@ import org.slf4j.LoggerFactory;
 public class ApiClient {
     static final Logger logger = LoggerFactory.getLogger(ApiClient.class);
 	final HttpClient client = new HttpClient(new MultiThreadedHttpConnectionManager());
+	/**
+	 * Separate client for other build slaves, with a short connection timeout
+	 */
+	final HttpClient peerClient = new HttpClient(new MultiThreadedHttpConnectionManager());
+
+	/**
+	 * Milliseconds to wait for another slave to connect or send data before trying elsewhere
+	 */
+	static final int PEER_TIMEOUT = 15000;
+
+	/**
+	 * Number of times an upload or download is attempted before giving up
+	 */
+	static final int MAX_ATTEMPTS = 6;
+
+	/**
+	 * Milliseconds to wait before the first retry; doubled for each one after that
+	 */
+	static final long INITIAL_BACKOFF = 1000;
+
+	static final long MAX_BACKOFF = 60000;
+
+	/**
+	 * One attempt at a request, run by {@link ApiClient#retry(String, Transfer)}
+	 */
+	static abstract class Transfer<T> {
+		/**
+		 * @param attempt Number of this attempt, starting at 1
+		 */
+		abstract T attempt(int attempt) throws IOException, ApiException;
+	}
+	
+	public ApiClient() {
+		// Status watchers and downloads for several builds may be talking to the same server at once
+		client.getHttpConnectionManager().getParams().setDefaultMaxConnectionsPerHost(20);
+		client.getHttpConnectionManager().getParams().setMaxTotalConnections(50);
+		// Don't hang for minutes on a peer slave that went away
+		peerClient.getHttpConnectionManager().getParams().setConnectionTimeout(PEER_TIMEOUT);
+		peerClient.getHttpConnectionManager().getParams().setSoTimeout(PEER_TIMEOUT);
+	}
 	
 	public static String buildQueryString(Map<String,String> params) {
 	    if(params.isEmpty())
@@ -89,9 +141,144 @@ public class ApiClient {
 	    }
 	}
 
+	/**
+	 * Run the transfer, trying again with exponential backoff after a network
+	 * error or a response that says the server is having trouble.
+	 */
+	<T> T retry(String what, Transfer<T> transfer) throws IOException, ApiException {
+		for(int attempt=1; ; attempt++) {
+			try {
+				return transfer.attempt(attempt);
+			} catch (InterruptedIOException e) {
+				throw e;
+			} catch (ApiException e) {
+				if(!isRetryable(e.getStatusCode()) || attempt >= MAX_ATTEMPTS)
+					throw e;
+				logger.warn(what+" failed (attempt "+attempt+" of "+MAX_ATTEMPTS+"): "+e.getStatusCode()+" "+e.getMessage());
+			} catch (IOException e) {
+				if(attempt >= MAX_ATTEMPTS)
+					throw e;
+				logger.warn(what+" failed (attempt "+attempt+" of "+MAX_ATTEMPTS+"): "+e);
+			}
+			backoff(attempt);
+		}
+	}
+
+	static boolean isRetryable(int statusCode) {
+		return statusCode >= 500 || statusCode == HttpStatus.SC_REQUEST_TIMEOUT;
+	}
+
+	/**
+	 * Wait before retrying; the jitter keeps slaves that failed together from retrying together
+	 */
+	static void backoff(int attempt) throws InterruptedIOException {
+		long delay = Math.min(MAX_BACKOFF, INITIAL_BACKOFF << Math.min(attempt - 1, 16));
+		delay = delay/2 + (long)(Math.random() * delay/2);
+		try {
+			Thread.sleep(delay);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to retry");
+		}
+	}
+
+	/**
+	 * Download to a file.  A download that breaks off is resumed from where
+	 * it stopped with a ranged GET, retrying with backoff; if the server
+	 * doesn't do ranges it starts over.  Until it is complete the download is
+	 * kept next to the file with a .part suffix.
+	 * 
+	 * If the server sends the SHA1 of the content in X-Content-SHA1, the file
+	 * is checked against it and downloaded again if it doesn't match.
+	 * 
+	 * @return The request that completed the download, for its response headers
+	 */
+	public GetMethod download(final String url, final File file) throws IOException, ApiException {
+		final File partFile = new File(file.getPath()+".part");
+		return retry("Download of "+url, new Transfer<GetMethod>() {
+			String etag;
+
+			@Override
+			GetMethod attempt(int attempt) throws IOException, ApiException {
+				long have = partFile.length();
+				GetMethod get = new GetMethod(url);
+				if(have > 0) {
+					get.setRequestHeader("Range", "bytes="+have+"-");
+					if(etag != null)
+						get.setRequestHeader("If-Range", etag);
+				}
+				try {
+					client.executeMethod(get);
+					int sc = get.getStatusCode();
+					if(sc == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE && have > 0) {
+						partFile.delete(); // Left over from something else; start over
+						throw new IOException("Server can't resume at "+have+" bytes");
+					}
+					if(sc != HttpStatus.SC_OK && sc != HttpStatus.SC_PARTIAL_CONTENT)
+						throw new ApiException(sc, "Error downloading "+url+": "+get.getStatusText());
+					Header etagHeader = get.getResponseHeader("ETag");
+					etag = etagHeader == null ? null : etagHeader.getValue();
+					long expected = getLength(get);
+					InputStream in = get.getResponseBodyAsStream();
+					OutputStream out = new FileOutputStream(partFile, sc == HttpStatus.SC_PARTIAL_CONTENT);
+					try {
+						if(in != null)
+							IOUtils.copy(in, out);
+					} finally {
+						out.close();
+						if(in != null)
+							in.close();
+					}
+					if(expected >= 0 && partFile.length() != expected) {
+						if(partFile.length() > expected)
+							partFile.delete();
+						throw new IOException("Got "+partFile.length()+" of "+expected+" bytes");
+					}
+					Header sha1Header = get.getResponseHeader("X-Content-SHA1");
+					if(sha1Header != null && !sha1Header.getValue().equals(CompileUtils.digestFile(null, partFile))) {
+						partFile.delete();
+						throw new IOException("Downloaded file doesn't match its checksum");
+					}
+					if(file.exists() && !file.delete())
+						throw new IOException("Failed to delete old file "+file);
+					if(!partFile.renameTo(file))
+						throw new IOException("Failed to rename "+partFile+" to "+file);
+					return get;
+				} finally {
+					get.releaseConnection();
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return The full length of the content from Content-Range or Content-Length, or -1 if not given
+	 */
+	static long getLength(GetMethod get) {
+		try {
+			Header range = get.getResponseHeader("Content-Range");
+			if(range != null && range.getValue().indexOf('/') != -1) {
+				String total = range.getValue().substring(range.getValue().indexOf('/')+1).trim();
+				return total.equals("*") ? -1 : Long.parseLong(total);
+			}
+			Header length = get.getResponseHeader("Content-Length");
+			return length == null ? -1 : Long.parseLong(length.getValue().trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
 	public String getUploadURL(String server) throws HttpException, IOException, ApiException {
+		return getUploadURL(server, "/add-build");
+	}
+	
+	/**
+	 * Ask the server for a URL to upload files for the given path to; the server
+	 * returns it in the X-Upload-URL header.
+	 */
+	public String getUploadURL(String server, String path) throws HttpException, IOException, ApiException {
 		StringBuffer url = new StringBuffer(server);
-		url.append("/add-build");
+		url.append(path);
 		HeadMethod head = new HeadMethod(url.toString());
 		client.executeMethod(head);
 		if(head.getStatusCode() != HttpStatus.SC_OK) {
@@ -104,30 +291,46 @@ public class ApiClient {
 			return server + uploadURL;
 	}
 	
-	public void addBuild(String server, String buildLabel, String buildId, String[] queues, int perms, File payloadFile) throws HttpException, IOException, ApiException {
+	/**
+	 * Upload a build with its whole payload, retrying with backoff.  A retry
+	 * after the server got the build but we didn't get its answer fails with
+	 * 409 (conflict), as for any build that is already there.
+	 */
+	public void addBuild(final String server, final String buildLabel, final String module, final String buildId, final String[] queues, final int perms, final File payloadFile) throws HttpException, IOException, ApiException {
 		if(buildId == null) throw new IllegalArgumentException("Build UI must not be null.");
 		if(queues == null) throw new IllegalArgumentException("Queues must not be null.");
 		if(perms <= 0) throw new IllegalArgumentException("permsCount must be > 0.");
-		String url = getUploadURL(server);
-		MultipartRequestEntity mp = new MultipartRequestEntity(
-				new Part[] {
-						new StringPart("id", buildId),
-						new StringPart("q", StringUtils.join(queues, ",")),
-						new StringPart("perms", String.valueOf(perms)),
-						new StringPart("label", buildLabel),
-						new FilePart("data", payloadFile)
-				}, new HttpMethodParams());
-		PostMethod post = new PostMethod(url);
-		if(logger.isDebugEnabled())
-			logger.debug("Uploading build to "+post.getURI()+" from file "+payloadFile+" with build ID "+buildId+" and queues "+StringUtils.join(queues, ",")+" and "+perms+" permutations");
-		else
-			logger.info("Uploading build to "+server+" with build ID "+buildId+" and queues "+StringUtils.join(queues, ",")+" and "+perms+" permutations");
-		post.setRequestEntity(mp);
-		client.executeMethod(post);
-		post.releaseConnection();
-		if(post.getStatusCode() != HttpStatus.SC_OK && post.getStatusCode() != HttpStatus.SC_MOVED_TEMPORARILY) {
-			throw new ApiException(post.getStatusCode(), post.getStatusText());
-		}
+		final String sha1 = CompileUtils.digestFile(null, payloadFile);
+		PostMethod post = retry("Upload of build "+buildId, new Transfer<PostMethod>() {
+			@Override
+			PostMethod attempt(int attempt) throws IOException, ApiException {
+				// Upload URLs may only be used once
+				String url = getUploadURL(server);
+				MultipartRequestEntity mp = new MultipartRequestEntity(
+						new Part[] {
+								new StringPart("id", buildId),
+								new StringPart("q", StringUtils.join(queues, ",")),
+								new StringPart("perms", String.valueOf(perms)),
+								new StringPart("label", buildLabel),
+								new StringPart("module", module),
+								new StringPart("toolchain", CompileUtils.getToolchain()),
+								new StringPart("sha1", sha1),
+								new FilePart("data", payloadFile)
+						}, new HttpMethodParams());
+				PostMethod post = new PostMethod(url);
+				if(logger.isDebugEnabled())
+					logger.debug("Uploading build to "+post.getURI()+" from file "+payloadFile+" with build ID "+buildId+" and queues "+StringUtils.join(queues, ",")+" and "+perms+" permutations");
+				else
+					logger.info("Uploading build to "+server+" with build ID "+buildId+" and queues "+StringUtils.join(queues, ",")+" and "+perms+" permutations");
+				post.setRequestEntity(mp);
+				client.executeMethod(post);
+				post.releaseConnection();
+				if(post.getStatusCode() != HttpStatus.SC_OK && post.getStatusCode() != HttpStatus.SC_MOVED_TEMPORARILY) {
+					throw new ApiException(post.getStatusCode(), post.getStatusText());
+				}
+				return post;
+			}
+		});
 		Header h = post.getResponseHeader("Location");
 		if(h != null) {
 			logger.info("Build uploaded; status URL is at "+h.getValue());
@@ -136,27 +339,314 @@ public class ApiClient {
 		}
 	}
 
-	public void addBuildResult(String server, String buildId, int perm, String uploadURL, String workerId, File payloadFile) throws HttpException, IOException, ApiException {
-		if(buildId == null) throw new IllegalArgumentException("Build UI must not be null.");
-		MultipartRequestEntity mp = new MultipartRequestEntity(
-				new Part[] {
-						new StringPart("id", buildId),
-						new StringPart("perm", String.valueOf(perm)),
-						new StringPart("workerId", workerId),
-						new FilePart("data", payloadFile)
-				}, new HttpMethodParams());
-		if(!(uploadURL.startsWith("https:") || uploadURL.startsWith("http:")))
-			uploadURL = server + uploadURL;
-		PostMethod post = new PostMethod(uploadURL);
-		logger.info("Uploading build result to "+post.getURI()+" from file "+payloadFile+" with build ID "+buildId+" and "+perm+" permutation");
-		post.setRequestEntity(mp);
-		client.executeMethod(post);
-		post.releaseConnection();
-		if(post.getStatusCode() != HttpStatus.SC_OK && post.getStatusCode() != HttpStatus.SC_MOVED_TEMPORARILY) {
-			throw new ApiException(post.getStatusCode(), post.getStatusText());
+	/**
+	 * Ask the server which of the given payload chunks it doesn't have yet.
+	 * 
+	 * @throws ApiException With status 404 if the server doesn't support chunked payloads
+	 */
+	public Set<String> findMissingChunks(final String server, final List<String> chunkIds) throws HttpException, IOException, ApiException {
+		return retry("Checking for payload chunks", new Transfer<Set<String>>() {
+			@Override
+			Set<String> attempt(int attempt) throws IOException, ApiException {
+				PostMethod post = new PostMethod(server+"/chunks");
+				post.addParameter("ids", StringUtils.join(chunkIds, ","));
+				try {
+					client.executeMethod(post);
+					if(post.getStatusCode() != HttpStatus.SC_OK) {
+						throw new ApiException(post.getStatusCode(), post.getStatusText());
+					}
+					HashSet<String> missing = new HashSet<String>();
+					for(String line : post.getResponseBodyAsString().split("\n")) {
+						if(!line.trim().isEmpty())
+							missing.add(line.trim());
+					}
+					return missing;
+				} finally {
+					post.releaseConnection();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Upload the given chunks of a chunked payload file to the server's chunk
+	 * store, retrying with backoff.  Chunks are uploaded in small batches, so
+	 * a broken connection only costs the batch it broke.
+	 */
+	public void uploadChunks(final String server, File payloadFile, List<ChunkedPayload.Chunk> chunks) throws HttpException, IOException, ApiException {
+		final Part[] parts = new Part[chunks.size()];
+		for(int i=0; i < parts.length; i++) {
+			ChunkedPayload.Chunk chunk = chunks.get(i);
+			parts[i] = new FilePart(chunk.getId(), new ByteArrayPartSource(chunk.getId(), ChunkedPayload.readChunk(payloadFile, chunk)));
 		}
+		retry("Upload of "+parts.length+" payload chunks", new Transfer<Void>() {
+			@Override
+			Void attempt(int attempt) throws IOException, ApiException {
+				PostMethod post = new PostMethod(getUploadURL(server, "/chunks"));
+				post.setRequestEntity(new MultipartRequestEntity(parts, new HttpMethodParams()));
+				try {
+					client.executeMethod(post);
+					if(post.getStatusCode() != HttpStatus.SC_OK && post.getStatusCode() != HttpStatus.SC_MOVED_TEMPORARILY) {
+						throw new ApiException(post.getStatusCode(), post.getStatusText());
+					}
+					return null;
+				} finally {
+					post.releaseConnection();
+				}
+			}
+		});
 	}
 	
+	/**
+	 * Add a build whose payload is made of chunks already uploaded to the server.
+	 */
+	public void addChunkedBuild(final String server, final String buildLabel, final String module, final String buildId, final String[] queues, final int perms, final List<String> chunkIds) throws HttpException, IOException, ApiException {
+		retry("Adding build "+buildId, new Transfer<Void>() {
+			@Override
+			Void attempt(int attempt) throws IOException, ApiException {
+				PostMethod post = new PostMethod(server+"/add-build");
+				post.addParameter("id", buildId);
+				post.addParameter("q", StringUtils.join(queues, ","));
+				post.addParameter("perms", String.valueOf(perms));
+				post.addParameter("label", buildLabel);
+				post.addParameter("module", module);
+				post.addParameter("chunks", StringUtils.join(chunkIds, ","));
+				post.addParameter("toolchain", CompileUtils.getToolchain());
+				try {
+					client.executeMethod(post);
+					if(post.getStatusCode() != HttpStatus.SC_OK && post.getStatusCode() != HttpStatus.SC_MOVED_TEMPORARILY) {
+						throw new ApiException(post.getStatusCode(), post.getStatusText());
+					}
+					Header h = post.getResponseHeader("Location");
+					if(h != null) {
+						logger.info("Build added; status URL is at "+h.getValue());
+					}
+					return null;
+				} finally {
+					post.releaseConnection();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Download one encrypted payload chunk
+	 */
+	public byte[] getChunk(final String server, final String chunkId) throws HttpException, IOException, ApiException {
+		return retry("Download of payload chunk "+chunkId, new Transfer<byte[]>() {
+			@Override
+			byte[] attempt(int attempt) throws IOException, ApiException {
+				GetMethod get = new GetMethod(server+"/chunks?id="+chunkId);
+				try {
+					client.executeMethod(get);
+					if(get.getStatusCode() != HttpStatus.SC_OK) {
+						throw new ApiException(get.getStatusCode(), "Error downloading payload chunk "+chunkId+": "+get.getStatusText());
+					}
+					return get.getResponseBody();
+				} finally {
+					get.releaseConnection();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Download a build's payload from the server with {@link #download(String, File)},
+	 * fetching its chunks if it is a chunked payload.
+	 */
+	public void getBuildPayload(String server, String buildId, File payloadFile) throws HttpException, IOException, ApiException {
+		GetMethod get = download(server+"/build-payload?id="+buildId, payloadFile);
+		Header format = get.getResponseHeader("X-Payload-Format");
+		if(format != null && "chunked".equals(format.getValue())) {
+			// What we got is the list of chunks
+			ArrayList<String> chunkIds = new ArrayList<String>();
+			for(String line : FileUtils.readFileToString(payloadFile).split("\n")) {
+				if(!line.trim().isEmpty())
+					chunkIds.add(line.trim());
+			}
+			ChunkedPayload.download(this, server, chunkIds, payloadFile);
+		}
+	}
+
+	/**
+	 * Download a build's payload from another build slave's {@link PeerPayloadServer}.
+	 */
+	public void getPeerPayload(String peerUrl, String buildId, File payloadFile) throws HttpException, IOException, ApiException {
+		GetMethod get = new GetMethod(peerUrl+PeerPayloadServer.PATH+buildId);
+		try {
+			peerClient.executeMethod(get);
+			if(get.getStatusCode() != HttpStatus.SC_OK) {
+				throw new ApiException(get.getStatusCode(), "Error downloading payload of build "+buildId+" from "+peerUrl+": "+get.getStatusText());
+			}
+			saveResponse(get, payloadFile);
+		} finally {
+			get.releaseConnection();
+		}
+	}
+
+	/**
+	 * Write the response body to a temp file and rename it into place, so a
+	 * broken download doesn't leave a partial file behind
+	 */
+	private static void saveResponse(GetMethod get, File file) throws IOException {
+		File tempFile = File.createTempFile("download", ".tmp", file.getParentFile());
+		try {
+			InputStream in = get.getResponseBodyAsStream();
+			OutputStream out = new FileOutputStream(tempFile);
+			try {
+				IOUtils.copy(in, out);
+			} finally {
+				out.close();
+				in.close();
+			}
+			if(file.exists() && !file.delete())
+				throw new IOException("Failed to delete old file "+file);
+			if(!tempFile.renameTo(file))
+				throw new IOException("Failed to rename "+tempFile+" to "+file);
+		} finally {
+			tempFile.delete();
+		}
+	}
+
+	/**
+	 * Ask the server for a new URL to upload a permutation's result to, after
+	 * a failed upload.  The server only gives one to the worker building the
+	 * permutation, and renews its lease while at it.
+	 */
+	public String getResultUploadURL(String server, String buildId, int perm, String workerId) throws HttpException, IOException, ApiException {
+		PostMethod post = new PostMethod(server+"/build-result");
+		post.addParameter("id", buildId);
+		post.addParameter("perm", String.valueOf(perm));
+		post.addParameter("workerId", workerId);
+		post.addParameter("newUploadURL", "true");
+		try {
+			client.executeMethod(post);
+			Header h = post.getResponseHeader("X-Upload-URL");
+			if(post.getStatusCode() != HttpStatus.SC_OK || h == null) {
+				throw new ApiException(post.getStatusCode(), post.getStatusText());
+			}
+			return h.getValue();
+		} finally {
+			post.releaseConnection();
+		}
+	}
+
+	/**
+	 * Upload a permutation's result, retrying with backoff.  Retries upload to
+	 * a fresh upload URL from the server, as upload URLs may only be used once.
+	 * 
+	 * @param heapMB Maximum heap it was compiled with, so the server learns which permutations need more memory
+	 */
+	public void addBuildResult(final String server, final String buildId, final int perm, final String uploadURL, final String workerId, final File payloadFile, final long heapMB) throws HttpException, IOException, ApiException {
+		if(buildId == null) throw new IllegalArgumentException("Build UI must not be null.");
+		final String sha1 = CompileUtils.digestFile(null, payloadFile);
+		retry("Upload of permutation "+perm+" of build "+buildId, new Transfer<Void>() {
+			@Override
+			Void attempt(int attempt) throws IOException, ApiException {
+				MultipartRequestEntity mp = new MultipartRequestEntity(
+						new Part[] {
+								new StringPart("id", buildId),
+								new StringPart("perm", String.valueOf(perm)),
+								new StringPart("workerId", workerId),
+								new StringPart("toolchain", CompileUtils.getToolchain()),
+								new StringPart("sha1", sha1),
+								new StringPart("heapMB", String.valueOf(heapMB)),
+								new FilePart("data", payloadFile)
+						}, new HttpMethodParams());
+				String url = uploadURL;
+				if(attempt > 1) {
+					try {
+						url = getResultUploadURL(server, buildId, perm, workerId);
+					} catch (ApiException e) {
+						if(isRetryable(e.getStatusCode()))
+							throw e;
+						// An earlier attempt got through and we just didn't hear back, or the permutation went to another worker
+						logger.info("Server no longer takes a result for permutation "+perm+" of build "+buildId+" from us: "+e.getMessage());
+						return null;
+					}
+				}
+				if(!(url.startsWith("https:") || url.startsWith("http:")))
+					url = server + url;
+				PostMethod post = new PostMethod(url);
+				logger.info("Uploading build result to "+post.getURI()+" from file "+payloadFile+" with build ID "+buildId+" and "+perm+" permutation");
+				post.setRequestEntity(mp);
+				client.executeMethod(post);
+				post.releaseConnection();
+				if(attempt > 1 && post.getStatusCode() == HttpStatus.SC_BAD_REQUEST) {
+					// Most likely an earlier attempt got through and we just didn't hear back
+					logger.info("Server already has a result for permutation "+perm+" of build "+buildId+": "+post.getStatusText());
+					return null;
+				}
+				if(post.getStatusCode() != HttpStatus.SC_OK && post.getStatusCode() != HttpStatus.SC_MOVED_TEMPORARILY) {
+					throw new ApiException(post.getStatusCode(), post.getStatusText());
+				}
+				return null;
+			}
+		});
+	}
+	
+
+	/**
+	 * What the server said to a heartbeat
+	 */
+	public static class Heartbeat {
+		final long leaseTime;
+		final Set<String> lost;
+
+		Heartbeat(long leaseTime, Set<String> lost) {
+			this.leaseTime = leaseTime;
+			this.lost = lost;
+		}
+
+		/**
+		 * How long our leases last from now in milliseconds, or -1 if the server didn't say
+		 */
+		public long getLeaseTime() {
+			return leaseTime;
+		}
+
+		/**
+		 * The permutations we are no longer building, as buildId/permutation
+		 */
+		public Set<String> getLost() {
+			return lost;
+		}
+	}
+
+	/**
+	 * Renew our leases on all the permutations we are building for the server at once
+	 * 
+	 * @param perms Permutations as buildId/permutation
+	 * @throws ApiException If the server refused; a 404 means it doesn't take batched heartbeats
+	 */
+	public Heartbeat heartbeat(String server, String workerId, Collection<String> perms) throws HttpException, IOException, ApiException {
+		PostMethod post = new PostMethod(server+"/heartbeat");
+		post.addParameter("workerId", workerId);
+		post.addParameter("perms", StringUtils.join(perms, ","));
+		try {
+			executeMethod(post);
+			if(post.getStatusCode() != HttpStatus.SC_OK)
+				throw new ApiException(post.getStatusCode(), post.getStatusText());
+			Set<String> lost = new HashSet<String>();
+			for(String line : post.getResponseBodyAsString().split("\n")) {
+				if(!line.trim().isEmpty())
+					lost.add(line.trim());
+			}
+			long leaseTime = -1;
+			Header leaseHeader = post.getResponseHeader("X-Lease-Time");
+			if(leaseHeader != null) {
+				try {
+					leaseTime = Long.parseLong(leaseHeader.getValue());
+				} catch (NumberFormatException e) {
+					logger.warn("Server sent a bad lease time: "+leaseHeader.getValue());
+				}
+			}
+			logger.debug("Renewed "+perms.size()+" leases at "+server+" for "+leaseTime+"ms, lost "+lost);
+			return new Heartbeat(leaseTime, lost);
+		} finally {
+			post.releaseConnection();
+		}
+	}
 
 	public int buildAlive(String server, String buildId, int perm, String workerId) throws HttpException, IOException {
 		TreeMap<String,String> params = new TreeMap<String,String>();
@@ -176,12 +666,17 @@ public class ApiClient {
 		return post.getStatusCode();
 	}
 	
-	public void addBuildFailure(String server, String buildId, int perm, String workerId, String error) throws HttpException, IOException {
+	/**
+	 * @param heapMB Maximum heap of the compile that failed, or -1 if there wasn't one
+	 */
+	public void addBuildFailure(String server, String buildId, int perm, String workerId, String error, long heapMB) throws HttpException, IOException {
 		TreeMap<String,String> params = new TreeMap<String,String>();
 		params.put("id", buildId);
 		params.put("workerId", workerId);
 		params.put("perm", String.valueOf(perm));
 		params.put("error", error);
+		if(heapMB > 0)
+			params.put("heapMB", String.valueOf(heapMB));
 		StringBuffer url=new StringBuffer(server).append("/build-result?");
 		appendQueryString(url, params);
 		PostMethod post = new PostMethod(url.toString());
@@ -198,9 +693,32 @@ public class ApiClient {
 	}
 
 	public HeadMethod getBuildStatus(String server, String buildId) throws HttpException, IOException {
-		String buildStatusURL = server+"/build-status?id="+buildId;
-		HeadMethod req = new HeadMethod(buildStatusURL);
-		executeMethod(req);
+		return getBuildStatus(server, buildId, -1, 0);
+	}
+
+	/**
+	 * Get the build status, waiting up to the given number of seconds for the
+	 * status version to change from the one given.  The current status version
+	 * is returned in the X-Status-Version header.
+	 * 
+	 * @param version Last status version seen, or -1 to return the status immediately
+	 * @param wait Number of seconds the server may wait for the status to change
+	 */
+	public HeadMethod getBuildStatus(String server, String buildId, long version, int wait) throws HttpException, IOException {
+		TreeMap<String,String> params = new TreeMap<String,String>();
+		params.put("id", buildId);
+		if(version >= 0) {
+			params.put("version", String.valueOf(version));
+			params.put("wait", String.valueOf(wait));
+		}
+		StringBuffer url=new StringBuffer(server).append("/build-status?");
+		appendQueryString(url, params);
+		HeadMethod req = new HeadMethod(url.toString());
+		try {
+			executeMethod(req);
+		} finally {
+			req.releaseConnection();
+		}
 		return req;
 	}
 
@@ -0,0 +1,512 @@
+package gwtdistcc.client;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Index of the builds a build slave keeps in its work dir, so it can tell the
+ * server which payloads it has without scanning the disk on every poll, and
+ * keep the disk space they use within a budget.
+ *
+ * Each build folder holds the downloaded payload, the decrypted AST and the
+ * compile output.  When the total goes over the budget the least recently
+ * used builds are deleted, except those being compiled.  Folders are renamed
+ * out of the way and deleted in the background, so a slow delete doesn't hold
+ * up polling and a fresh download of the same build isn't affected.
+ *
+ * A compile client sharing the work dir may add builds behind our back, so
+ * the folder is rescanned for new builds every few minutes.  We advertise
+ * those once the client has uploaded them, but only folders we created
+ * ourselves (marked with {@link #OWNER_FILE}) count towards the budget and
+ * are ever evicted; the client's are deleted when the server says so.
+ *
+ * Every change to the builds we advertise bumps the cache version, and the
+ * recent changes are kept so we can tell a server just what changed since
+ * the version it last saw (see {@link #getAdvertisement(String, long)}).
+ */
+public class BuildCache {
+	static final Logger logger = LoggerFactory.getLogger(BuildCache.class);
+
+	/**
+	 * Prefix of folders waiting to be deleted
+	 */
+	static final String TRASH_PREFIX = ".deleting-";
+
+	/**
+	 * File in the build folders we created, which we may evict
+	 */
+	static final String OWNER_FILE = ".build-cache";
+
+	/**
+	 * How often to look for builds added to the work dir by someone else
+	 */
+	static final long RESCAN_INTERVAL = 5*60*1000;
+
+	/**
+	 * Number of changes to remember for sending servers only what changed
+	 */
+	static final int MAX_CHANGES = 1000;
+
+	static final class Entry {
+		final String buildId;
+		/**
+		 * Server the build came from, or null if we don't know
+		 */
+		String server;
+		long size;
+		boolean payloadReady;
+		/**
+		 * Number of builds in progress using this folder
+		 */
+		int users;
+		/**
+		 * The server told us to delete it while it was in use
+		 */
+		boolean deleteWhenUnused;
+		/**
+		 * We created the folder; otherwise it is a compile client's, which we
+		 * never evict
+		 */
+		boolean owned;
+
+		Entry(String buildId) {
+			this.buildId = buildId;
+		}
+
+		boolean isAdvertised() {
+			return payloadReady && !deleteWhenUnused && server != null;
+		}
+	}
+
+	static final class Change {
+		final long version;
+		final String server;
+		final String buildId;
+		final boolean added;
+
+		Change(long version, String server, String buildId, boolean added) {
+			this.version = version;
+			this.server = server;
+			this.buildId = buildId;
+			this.added = added;
+		}
+	}
+
+	/**
+	 * What to tell a server about our cache
+	 */
+	public static final class Advertisement {
+		final long version;
+		final TreeSet<String> all;
+		final TreeSet<String> added;
+		final TreeSet<String> removed;
+
+		Advertisement(long version, TreeSet<String> all, TreeSet<String> added, TreeSet<String> removed) {
+			this.version = version;
+			this.all = all;
+			this.added = added;
+			this.removed = removed;
+		}
+
+		public long getVersion() {
+			return version;
+		}
+
+		/**
+		 * @return All the builds we have from the server, or null if only changes are to be sent
+		 */
+		public TreeSet<String> getAll() {
+			return all;
+		}
+
+		/**
+		 * @return Builds added since the server's version, or null if everything is to be sent
+		 */
+		public TreeSet<String> getAdded() {
+			return added;
+		}
+
+		/**
+		 * @return Builds removed since the server's version, or null if everything is to be sent
+		 */
+		public TreeSet<String> getRemoved() {
+			return removed;
+		}
+
+		/**
+		 * @return true if the server already knows this version
+		 */
+		public boolean isUnchanged() {
+			return all == null && added.isEmpty() && removed.isEmpty();
+		}
+	}
+
+	final File workDir;
+	final long budget;
+	/**
+	 * Least recently used first
+	 */
+	final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	long totalSize;
+	/**
+	 * Starts at the time we started so versions from before a restart aren't mistaken for current ones
+	 */
+	long version = System.currentTimeMillis();
+	final LinkedList<Change> changes = new LinkedList<Change>();
+	/**
+	 * All changes after this version are in the change list
+	 */
+	long changesSince = version;
+	final ScheduledExecutorService background = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "build-cache");
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		}
+	});
+
+	/**
+	 * @param budget Number of bytes the builds may use before old ones are deleted
+	 */
+	public BuildCache(File workDir, long budget) {
+		this.workDir = workDir;
+		this.budget = budget;
+	}
+
+	/**
+	 * Index the builds already in the work dir and start background cleanup.
+	 */
+	public void start() {
+		rescan();
+		synchronized(this) {
+			logger.info("Build cache has "+entries.size()+" builds using "+(totalSize/(1024*1024))+" of "+(budget/(1024*1024))+" MB");
+			evict();
+		}
+		background.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				rescan();
+				synchronized(BuildCache.this) {
+					evict();
+				}
+			}
+		}, RESCAN_INTERVAL, RESCAN_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Add builds in the work dir we don't know about yet, oldest first, and
+	 * delete anything left over from an interrupted delete.
+	 */
+	void rescan() {
+		File[] dirs = workDir.listFiles();
+		if(dirs == null)
+			return;
+		ArrayList<File> newDirs = new ArrayList<File>();
+		for(File dir : dirs) {
+			if(!dir.isDirectory())
+				continue;
+			if(dir.getName().startsWith(TRASH_PREFIX)) {
+				deleteInBackground(dir);
+				continue;
+			}
+			if(!new File(dir, "payload").exists())
+				continue; // Not a build, or still being set up
+			if(!new File(dir, OWNER_FILE).exists() && !new File(dir, "server").exists())
+				continue; // A compile client's build, still being uploaded
+			synchronized(this) {
+				if(entries.containsKey(dir.getName()))
+					continue;
+			}
+			newDirs.add(dir);
+		}
+		// Make the oldest the first to go
+		final File[] sorted = newDirs.toArray(new File[newDirs.size()]);
+		Arrays.sort(sorted, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long am = new File(a, "payload").lastModified();
+				long bm = new File(b, "payload").lastModified();
+				return am < bm ? -1 : am > bm ? 1 : 0;
+			}
+		});
+		for(File dir : sorted) {
+			String server = null;
+			File serverFile = new File(dir, "server");
+			if(serverFile.exists()) {
+				try {
+					server = FileUtils.readFileToString(serverFile).trim();
+				} catch (IOException e) {
+					logger.warn("Unable to read "+serverFile, e);
+				}
+			}
+			long size = sizeOf(dir);
+			synchronized(this) {
+				if(entries.containsKey(dir.getName()))
+					continue;
+				Entry e = new Entry(dir.getName());
+				e.server = server;
+				e.payloadReady = true;
+				e.size = size;
+				e.owned = new File(dir, OWNER_FILE).exists();
+				entries.put(e.buildId, e);
+				if(e.owned)
+					totalSize += size;
+				advertisementChanged(e, false);
+			}
+		}
+	}
+
+	/**
+	 * Mark the build's folder as in use so it isn't evicted, creating it if need be.
+	 * Call {@link #release(String)} once the build is done with it.
+	 *
+	 * @return The build's folder
+	 */
+	public synchronized File acquire(String server, String buildId) {
+		Entry e = entries.get(buildId);
+		if(e == null) {
+			e = new Entry(buildId);
+			entries.put(buildId, e);
+		}
+		if(!server.equals(e.server)) {
+			if(e.isAdvertised()) {
+				// Now from another server; stop advertising it to the old one
+				e.payloadReady = false;
+				advertisementChanged(e, true);
+				e.payloadReady = true;
+			}
+			e.server = server;
+			advertisementChanged(e, false);
+		}
+		e.users++;
+		File buildDir = new File(workDir, buildId);
+		if(!buildDir.exists()) {
+			buildDir.mkdirs();
+			try {
+				new File(buildDir, OWNER_FILE).createNewFile();
+			} catch (IOException ioe) {
+				logger.warn("Unable to mark "+buildDir+" as ours; it won't be evicted", ioe);
+			}
+		}
+		if(!e.owned && new File(buildDir, OWNER_FILE).exists()) {
+			e.owned = true;
+			totalSize += e.size;
+		}
+		return buildDir;
+	}
+
+	/**
+	 * Record that the build's payload is on disk, so we can tell the server we have it.
+	 */
+	public void payloadReady(String buildId) throws IOException {
+		String server;
+		synchronized(this) {
+			Entry e = entries.get(buildId);
+			if(e == null)
+				return;
+			boolean wasAdvertised = e.isAdvertised();
+			e.payloadReady = true;
+			advertisementChanged(e, wasAdvertised);
+			server = e.server;
+		}
+		// So we still know where it came from after a restart
+		FileUtils.writeStringToFile(new File(new File(workDir, buildId), "server"), server);
+		updateSize(buildId);
+	}
+
+	/**
+	 * A build using the folder is done with it; if we're over budget now the
+	 * least recently used builds are deleted.
+	 */
+	public void release(String buildId) {
+		updateSize(buildId);
+		synchronized(this) {
+			Entry e = entries.get(buildId);
+			if(e == null)
+				return;
+			e.users--;
+			if(e.users <= 0 && e.deleteWhenUnused)
+				remove(e);
+			evict();
+		}
+	}
+
+	/**
+	 * Delete the build now, or as soon as the builds using it are done.
+	 */
+	public synchronized void delete(String buildId) {
+		Entry e = entries.get(buildId);
+		if(e == null) {
+			// Not indexed, e.g. added since the last rescan
+			File dir = new File(workDir, buildId);
+			if(dir.isDirectory())
+				trash(dir);
+			return;
+		}
+		if(e.users > 0) {
+			boolean wasAdvertised = e.isAdvertised();
+			e.deleteWhenUnused = true;
+			advertisementChanged(e, wasAdvertised);
+			return;
+		}
+		remove(e);
+	}
+
+	/**
+	 * @return The ids of the builds from the given server whose payload we have
+	 */
+	public synchronized TreeSet<String> getCachedBuilds(String server) {
+		TreeSet<String> cachedBuilds = new TreeSet<String>();
+		for(Entry e : entries.values()) {
+			if(e.payloadReady && !e.deleteWhenUnused && server.equals(e.server))
+				cachedBuilds.add(e.buildId);
+		}
+		return cachedBuilds;
+	}
+
+	/**
+	 * Open the build's payload to send to another slave.  The stream stays
+	 * readable if the build is evicted while it is being sent.
+	 *
+	 * @return null if we don't have the whole payload
+	 */
+	public synchronized FileInputStream openPayload(String buildId) throws IOException {
+		Entry e = entries.get(buildId);
+		if(e == null || !e.payloadReady || e.deleteWhenUnused)
+			return null;
+		return new FileInputStream(new File(new File(workDir, buildId), "payload"));
+	}
+
+	/**
+	 * What to send the server about the builds we have from it
+	 *
+	 * @param serverVersion The version the server last acknowledged, or -1 if it doesn't know our cache
+	 * @return The changes since that version if we still have them, otherwise the whole list
+	 */
+	public synchronized Advertisement getAdvertisement(String server, long serverVersion) {
+		if(serverVersion < changesSince || serverVersion > version)
+			return new Advertisement(version, getCachedBuilds(server), null, null);
+		TreeSet<String> added = new TreeSet<String>();
+		TreeSet<String> removed = new TreeSet<String>();
+		for(Change c : changes) {
+			if(c.version <= serverVersion || !server.equals(c.server))
+				continue;
+			if(c.added) {
+				added.add(c.buildId);
+				removed.remove(c.buildId);
+			} else {
+				removed.add(c.buildId);
+				added.remove(c.buildId);
+			}
+		}
+		return new Advertisement(version, null, added, removed);
+	}
+
+	/**
+	 * Log the change if the entry started or stopped being advertised
+	 */
+	private void advertisementChanged(Entry e, boolean wasAdvertised) {
+		boolean advertised = e.isAdvertised();
+		if(advertised == wasAdvertised)
+			return;
+		version++;
+		changes.addLast(new Change(version, e.server, e.buildId, advertised));
+		while(changes.size() > MAX_CHANGES) {
+			changesSince = changes.removeFirst().version;
+		}
+	}
+
+	private void updateSize(String buildId) {
+		long size = sizeOf(new File(workDir, buildId));
+		synchronized(this) {
+			Entry e = entries.get(buildId);
+			if(e != null) {
+				if(e.owned)
+					totalSize += size - e.size;
+				e.size = size;
+			}
+		}
+	}
+
+	/**
+	 * Delete least recently used builds of ours nobody is using until we're within budget
+	 */
+	private void evict() {
+		List<Entry> victims = new ArrayList<Entry>();
+		long size = totalSize;
+		for(Iterator<Entry> it = entries.values().iterator(); it.hasNext() && size > budget; ) {
+			Entry e = it.next();
+			if(e.users > 0 || !e.owned)
+				continue;
+			victims.add(e);
+			size -= e.size;
+		}
+		for(Entry e : victims) {
+			logger.info("Evicting build "+e.buildId+" ("+(e.size/1024)+" KB) from the cache");
+			remove(e);
+		}
+	}
+
+	private void remove(Entry e) {
+		boolean wasAdvertised = e.isAdvertised();
+		e.deleteWhenUnused = true;
+		advertisementChanged(e, wasAdvertised);
+		entries.remove(e.buildId);
+		if(e.owned)
+			totalSize -= e.size;
+		trash(new File(workDir, e.buildId));
+	}
+
+	/**
+	 * Move the folder out of the way and delete it in the background
+	 */
+	private void trash(File dir) {
+		File trash = new File(workDir, TRASH_PREFIX+dir.getName()+"-"+System.nanoTime());
+		if(dir.renameTo(trash))
+			deleteInBackground(trash);
+		else
+			deleteInBackground(dir);
+	}
+
+	private void deleteInBackground(final File dir) {
+		background.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					FileUtils.deleteDirectory(dir);
+				} catch (IOException e) {
+					logger.warn("Unable to delete "+dir, e);
+				}
+			}
+		});
+	}
+
+	static long sizeOf(File dir) {
+		if(!dir.isDirectory())
+			return 0;
+		try {
+			return FileUtils.sizeOfDirectory(dir);
+		} catch (IllegalArgumentException e) {
+			return 0; // Deleted while we were looking at it
+		}
+	}
+}
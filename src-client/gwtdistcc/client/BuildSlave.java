@@ -2,6 +2,7 @@ package gwtdistcc.client;
 
 import gwtdistcc.client.CompileUtils.RunResult;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -10,9 +11,16 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.UnknownHostException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.UUID;
@@ -20,10 +28,13 @@ import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpException;
+import org.apache.commons.httpclient.HttpMethodBase;
 import org.apache.commons.httpclient.HttpStatus;
 import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
@@ -45,7 +56,19 @@ import com.google.gwt.dev.Precompile;
  * 3. label: Worker Label (optional, default to local host name)
  * 4. key: Secret Key
  * 
+ * With -peerPort, the payloads we have are served to other slaves on that
+ * port (see {@link PeerPayloadServer}), and we get payloads from the slaves
+ * the server points us at when it can.  -peerHost sets the name or address
+ * other slaves reach us at; by default it is the address of one of our
+ * network interfaces other than loopback.
  * 
+ * Each poll tells the server how many permutations we can start, the heap
+ * of each compile, our physical memory and our download bandwidth, so it
+ * doesn't give us permutations that ran out of memory on machines like ours.
+ * 
+ * A compile that runs out of memory is tried again with a bigger heap, up to
+ * -maxHeapMB (by default 3/4 of physical memory), before the permutations are
+ * handed back; see {@link HeapSizer}.
  */
 public class BuildSlave {
 
@@ -54,22 +77,78 @@ public class BuildSlave {
 	private static String workerId;
 	private static String workerLabel;
 	private static File workDir;
+	/**
+	 * Warm compiler JVMs, or null to start a new JVM for each permutation
+	 */
+	private static volatile CompileWorkerPool workerPool;
+	private static BuildCache buildCache;
+	/**
+	 * Serves our payloads to other slaves, or null if peer mode is off
+	 */
+	private static PeerPayloadServer peerServer;
+	/**
+	 * Version of our build cache each server last acknowledged
+	 */
+	private static final HashMap<String, Long> serverCacheVersions = new HashMap<String, Long>();
+	/**
+	 * Servers that don't understand cache versions, which get our whole cache list in the URL every time
+	 */
+	private static final HashSet<String> legacyCacheServers = new HashSet<String>();
+	/**
+	 * Servers that don't take batched heartbeats, which get a ping for each permutation instead
+	 */
+	private static final HashSet<String> legacyHeartbeatServers = new HashSet<String>();
+	/**
+	 * How often we ping servers that don't tell us how long our leases last
+	 */
+	static final long HEARTBEAT_INTERVAL = 5000;
+	/**
+	 * How often we check whether a heartbeat is due
+	 */
+	static final long HEARTBEAT_CHECK_INTERVAL = 1000;
+	/**
+	 * Times we renew each lease during it, as the server expects
+	 */
+	static final int RENEWALS_PER_LEASE = 3;
+	/**
+	 * When the next heartbeat is due
+	 */
+	private static volatile long nextHeartbeat;
+	/**
+	 * Picks the heap of each compile
+	 */
+	private static HeapSizer heapSizer;
+	/**
+	 * Largest heap we give a compile and physical memory of the machine in
+	 * megabytes, sent with each poll so the server doesn't give us
+	 * permutations that ran out of memory on a machine like ours; -1 if unknown
+	 */
+	private static long heapMB = -1;
+	private static long memoryMB = -1;
+	/**
+	 * Rate we downloaded payloads at lately in KB/s, or -1 if we haven't yet
+	 */
+	private static volatile long downloadBandwidth = -1;
+	/**
+	 * Payloads smaller than this download too quickly to tell us our bandwidth
+	 */
+	private static final long MIN_BANDWIDTH_SAMPLE = 256*1024;
 
 	private static final class Build implements Runnable {
-		private final BuildInProgress bip;
+		private final List<BuildInProgress> bips;
 		private final String key;
-		private final String uploadURL;
+		private final List<String> uploadURLs;
 
-		private Build(BuildInProgress bip, String key,
-				String uploadURL) {
-			this.bip = bip;
+		private Build(List<BuildInProgress> bips, String key,
+				List<String> uploadURLs) {
+			this.bips = bips;
 			this.key = key;
-			this.uploadURL = uploadURL;
+			this.uploadURLs = uploadURLs;
 		}
 
 		@Override
 		public void run() {
-			doBuild(bip, uploadURL, key);
+			doBuild(bips, uploadURLs, key);
 		}
 	}
 	static class QueueToWatch implements Comparable<QueueToWatch> {
@@ -98,40 +177,83 @@ public class BuildSlave {
 				return cmp;
 			return 0;
 		}
-		private String getCheckForWorkURL() {
+		/**
+		 * @param wait Number of seconds the server may wait for work to show up before responding
+		 * @param max Number of permutations of one build we are willing to take at once
+		 * @param slots Number of permutations we could start right now
+		 * @param cache What to tell the server about our build cache
+		 */
+		private String getCheckForWorkURL(int wait, int max, int slots, BuildCache.Advertisement cache) {
 			StringBuffer url = new StringBuffer(this.server+"/check-for-work?");
 			TreeMap<String,String> params = new TreeMap<String, String>();
 			params.put("q", this.queues);
+			if(wait > 0)
+				params.put("wait", String.valueOf(wait));
+			if(max > 1)
+				params.put("max", String.valueOf(max));
 			params.put("workerLabel", this.workerLabel);
 			params.put("workerId", BuildSlave.workerId);
-			TreeSet<String> cachedBuilds = getCachedBuilds();
-			if(!cachedBuilds.isEmpty()) {
-				params.put("cache", StringUtils.join(cachedBuilds,","));
+			if(peerServer != null)
+				params.put("peerUrl", peerServer.getUrl());
+			params.put("slots", String.valueOf(slots));
+			if(heapMB > 0)
+				params.put("heapMB", String.valueOf(heapMB));
+			if(memoryMB > 0)
+				params.put("memoryMB", String.valueOf(memoryMB));
+			if(downloadBandwidth > 0)
+				params.put("bandwidth", String.valueOf(downloadBandwidth));
+			if(legacyCacheServers.contains(this.server)) {
+				TreeSet<String> cachedBuilds = buildCache.getCachedBuilds(this.server);
+				if(!cachedBuilds.isEmpty()) {
+					params.put("cache", StringUtils.join(cachedBuilds,","));
+				}
+			} else {
+				params.put("cacheVersion", String.valueOf(cache.getVersion()));
 			}
 			
 			ApiClient.appendQueryString(url, params);
 			return url.toString();
 		}
-		private TreeSet<String> getCachedBuilds() {
-			TreeSet<String> cachedBuilds = new TreeSet<String>();
-			File[] buildDirs = BuildSlave.workDir.listFiles();
-			for(File dir : buildDirs) {
-				if(!dir.isDirectory())
-					continue;
-				File payload = new File(dir, "payload");
-				if(!payload.exists())
-					continue;
-				File serverFile = new File(dir, "server");
-				if(!serverFile.exists())
-					continue;
-				try {
-					String server = FileUtils.readFileToString(serverFile).trim();
-					if(server.equals(this.server))
-						cachedBuilds.add(dir.getName());
-				} catch (IOException e) {
-				}
+		/**
+		 * @return What to tell the server about our cache, given the version it last acknowledged
+		 */
+		private BuildCache.Advertisement getCacheAdvertisement() {
+			Long acked = serverCacheVersions.get(this.server);
+			return buildCache.getAdvertisement(this.server, acked == null ? -1 : acked);
+		}
+		/**
+		 * A GET if the server already knows our cache, otherwise a POST with
+		 * what changed in the body, so the URL doesn't grow with the cache.
+		 */
+		private HttpMethodBase newCheckForWork(String url, BuildCache.Advertisement cache) {
+			if(legacyCacheServers.contains(this.server) || cache.isUnchanged())
+				return new GetMethod(url);
+			PostMethod post = new PostMethod(url);
+			if(cache.getAll() != null) {
+				post.addParameter("cache", StringUtils.join(cache.getAll(), ","));
+			} else {
+				post.addParameter("cacheBase", String.valueOf(serverCacheVersions.get(this.server)));
+				post.addParameter("cacheAdd", StringUtils.join(cache.getAdded(), ","));
+				post.addParameter("cacheRemove", StringUtils.join(cache.getRemoved(), ","));
+			}
+			return post;
+		}
+		/**
+		 * Remember which version of our cache the server acknowledged, if any
+		 */
+		private void cacheAdvertised(HttpMethodBase method, BuildCache.Advertisement cache) {
+			Header versionHeader = method.getResponseHeader("X-Cache-Version");
+			if(versionHeader != null) {
+				serverCacheVersions.put(this.server, Long.valueOf(versionHeader.getValue()));
+				return;
+			}
+			serverCacheVersions.remove(this.server); // Send everything next time
+			int sc = method.getStatusCode();
+			if(sc == HttpStatus.SC_METHOD_NOT_ALLOWED || (cache.getAll() != null && !legacyCacheServers.contains(this.server)
+					&& (sc == HttpStatus.SC_OK || sc == HttpStatus.SC_NOT_MODIFIED || sc == HttpStatus.SC_NOT_FOUND))) {
+				logger.info("Server "+this.server+" doesn't understand cache versions, sending it the whole cache list every time");
+				legacyCacheServers.add(this.server);
 			}
-			return cachedBuilds;
 		}
 		static BuildSlave.QueueToWatch load(File f) throws IOException,
 				FileNotFoundException {
@@ -157,6 +279,14 @@ public class BuildSlave {
 		workDir = new File("build").getAbsoluteFile();
 		workerId = UUID.randomUUID().toString();
 		boolean once=false;
+		boolean forkPerPermutation=false;
+		int workerJobs=20;
+		int longPollWait=20;
+		int batchPerms=1;
+		long cacheMB=4096;
+		int peerPort=-1;
+		long maxHeapMB=-1;
+		String peerHost=null;
 		int localWorkers=Runtime.getRuntime().availableProcessors(); // default to the number of processors on the system
 		for(int i=0; i < args.length; i++) {
 			if(args[i].startsWith("-")) {
@@ -165,6 +295,23 @@ public class BuildSlave {
 				} else if(args[i].equals("-once")) {
 					once = true;
 					continue;
+				} else if(args[i].equals("-forkPerPermutation")) {
+					forkPerPermutation = true;
+					continue;
+				} else if(args[i].equals("-workerJobs")) {
+					workerJobs = Integer.parseInt(args[i+1]);
+				} else if(args[i].equals("-batchPerms")) {
+					batchPerms = Math.max(1, Integer.parseInt(args[i+1]));
+				} else if(args[i].equals("-cacheMB")) {
+					cacheMB = Long.parseLong(args[i+1]);
+				} else if(args[i].equals("-peerPort")) {
+					peerPort = Integer.parseInt(args[i+1]);
+				} else if(args[i].equals("-maxHeapMB")) {
+					maxHeapMB = Long.parseLong(args[i+1]);
+				} else if(args[i].equals("-peerHost")) {
+					peerHost = args[i+1];
+				} else if(args[i].equals("-pollWait")) {
+					longPollWait = Integer.parseInt(args[i+1]);
 				} else if(args[i].equals("-label")) {
 					workerLabel = args[i+1];
 				} else if(args[i].equals("-id")) {
@@ -195,15 +342,55 @@ public class BuildSlave {
 		client = new ApiClient();
 		logger = LoggerFactory.getLogger(BuildSlave.class);
 		
+		heapSizer = new HeapSizer(workDir, maxHeapMB);
+		heapMB = heapSizer.getCeilingMB();
+		long memory = CompileUtils.getTotalPhysicalMemory();
+		memoryMB = memory > 0 ? memory / (1024*1024) : -1;
+		logger.info("Compiling with "+heapSizer.getDefaultMB()+"MB to "+heapMB+"MB heap on a machine with "+memoryMB+"MB memory");
+		
 		String workerStatus="";
 		
+		buildCache = new BuildCache(workDir, cacheMB*1024*1024);
+		buildCache.start();
+		
+		if(peerPort >= 0) {
+			try {
+				if(peerHost == null)
+					peerHost = PeerPayloadServer.findHostAddress();
+				peerServer = new PeerPayloadServer(buildCache, peerHost, peerPort);
+				peerServer.start();
+			} catch (IOException e) {
+				logger.warn("Unable to serve payloads to other build slaves", e);
+				peerServer = null;
+			}
+		}
+		
+		if(!forkPerPermutation) {
+			try {
+				workerPool = new CompileWorkerPool(localWorkers, workerJobs);
+			} catch (IOException e) {
+				logger.warn("Unable to set up compile worker pool, will start a new JVM for each permutation", e);
+			}
+		}
+		
 		ThreadPoolExecutor executor = new ThreadPoolExecutor(localWorkers, localWorkers,
 		  0L, TimeUnit.MILLISECONDS,
 		  new LinkedBlockingQueue<Runnable>());
+		new Timer("heartbeat", true).schedule(new TimerTask() {
+			@Override
+			public void run() {
+				if(System.currentTimeMillis() >= nextHeartbeat)
+					sendHeartbeats();
+			}
+		}, HEARTBEAT_CHECK_INTERVAL, HEARTBEAT_CHECK_INTERVAL);
+		
 		// Loop forever
 		for(;;) {
 			boolean newBuild=false;
+			long pollStartTime = System.currentTimeMillis();
 			File[] files = queuesDir.listFiles();
+			// Split the long-poll time between the queue files so we get around to all of them
+			int pollWait = (files == null || files.length == 0) ? 0 : Math.max(1, longPollWait / files.length);
 			if(files == null || files.length == 0) {
 				System.err.println("No queues defined in "+queuesDir+" please create some or I'll have nothing to do.");
 			} else for(File f : files) {
@@ -232,16 +419,24 @@ public class BuildSlave {
 					if(qtw.queues.isEmpty())
 						continue;
 					try {
-						String url = qtw.getCheckForWorkURL();
-						GetMethod get = new GetMethod(url);
+						int slots;
+						synchronized(buildsInProgress) {
+							slots = Math.max(0, localWorkers - buildsInProgress.size());
+						}
+						if(slots == 0)
+							break; // Work from an earlier queue filled our workers; anything we claimed now would sit waiting
+						int max = Math.min(batchPerms, slots);
+						BuildCache.Advertisement cache = qtw.getCacheAdvertisement();
+						String url = qtw.getCheckForWorkURL(pollWait, max, slots, cache);
+						HttpMethodBase get = qtw.newCheckForWork(url, cache);
 						client.executeMethod(get);
 						try {
+							qtw.cacheAdvertised(get, cache);
 							Header invalidCachedBuildsHeader = get.getResponseHeader("X-Delete-Cached-Builds");
 							if(invalidCachedBuildsHeader != null && !invalidCachedBuildsHeader.getValue().isEmpty()) {
 								for(String delBuildId : invalidCachedBuildsHeader.getValue().split(",")) {
-									File buildDir = new File(workDir, delBuildId);
-									logger.info("Deleting expired/old build "+buildDir);
-									FileUtils.deleteDirectory(buildDir);
+									logger.info("Deleting expired/old build "+delBuildId);
+									buildCache.delete(delBuildId);
 								}
 							}
 							if(get.getStatusCode() == HttpStatus.SC_OK || get.getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
@@ -257,39 +452,71 @@ public class BuildSlave {
 									logger.error("Server didn't return a permutation number for the build!");
 									continue;
 								}
-								final int perm = Integer.parseInt(permHeader.getValue());
 								Header uploadResultURLHeader = get.getResponseHeader("X-Upload-Result-To");
 								if(uploadResultURLHeader == null) {
 									logger.error("Server didn't return an upload URL for the build result!");
 									continue;
 								}
-								final String uploadURL = uploadResultURLHeader.getValue();
-								BuildInProgress bip = new BuildInProgress(qtw.server, buildId, perm);
-								if(beginNewBuild(bip)) {
+								// We may have been given several permutations, each with its own upload URL
+								String[] perms = permHeader.getValue().split(",");
+								String[] uploadURLs = uploadResultURLHeader.getValue().split(",");
+								if(perms.length != uploadURLs.length) {
+									logger.error("Server returned "+perms.length+" permutations but "+uploadURLs.length+" upload URLs!");
+									continue;
+								}
+								Header payloadFormatHeader = get.getResponseHeader("X-Payload-Format");
+								ArrayList<BuildInProgress> bips = new ArrayList<BuildInProgress>();
+								ArrayList<String> bipUploadURLs = new ArrayList<String>();
+								for(int i=0; i < perms.length; i++) {
+									BuildInProgress bip = new BuildInProgress(qtw.server, buildId, Integer.parseInt(perms[i].trim()), bips);
+									if(beginNewBuild(bip)) {
+										bips.add(bip);
+										bipUploadURLs.add(uploadURLs[i].trim());
+									}
+								}
+								if(!bips.isEmpty()) {
+									File buildDir = buildCache.acquire(qtw.server, buildId);
+									boolean started = false;
 									try {
 										newBuild=true;
-										File buildDir = new File(workDir, buildId);
-										buildDir.mkdirs();
 										File payloadFile = new File(buildDir, "payload");
-										if(payloadFile.exists()) {
+										boolean cached = payloadFile.exists();
+										long downloadStartTime = System.currentTimeMillis();
+										if(cached) {
 											logger.info("Payload already downloaded at "+payloadFile+", skipping download.");
 										} else if(get.getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
 											logger.error("Server thought we have this build here already, but we don't.  No smart handling for this scenario is in place yet.");
 											continue;
-										} else {
-											FileOutputStream fos = new FileOutputStream(payloadFile);
-											InputStream payloadStream = get.getResponseBodyAsStream();
-											try {
-												IOUtils.copy(payloadStream, fos); // Write response to a file first
-											} finally {
-												fos.close();
-												payloadStream.close();
+										} else if(payloadFormatHeader != null && "chunked".equals(payloadFormatHeader.getValue())) {
+											// Body is the list of chunks making up the payload
+											ArrayList<String> chunkIds = new ArrayList<String>();
+											for(String line : get.getResponseBodyAsString().split("\n")) {
+												if(!line.trim().isEmpty())
+													chunkIds.add(line.trim());
 											}
+											downloadChunks(qtw, buildId, chunkIds, payloadFile);
+										} else if(payloadFormatHeader != null && "peers".equals(payloadFormatHeader.getValue())) {
+											Header peersHeader = get.getResponseHeader("X-Payload-Peers");
+											downloadFromPeers(qtw, buildId, peersHeader == null ? new String[0] : peersHeader.getValue().split(","), payloadFile);
+										} else {
+											savePayload(qtw, buildId, get, payloadFile);
 										}
-										executor.execute(new Build(bip, qtw.key, uploadURL));
+										if(!cached)
+											recordDownload(payloadFile.length(), System.currentTimeMillis() - downloadStartTime);
+										buildCache.payloadReady(buildId);
+										executor.execute(new Build(bips, qtw.key, bipUploadURLs));
+										started = true;
 									} catch (IOException e) {
 										e.printStackTrace();
 										continue;
+									} catch (ApiException e) {
+										e.printStackTrace();
+										continue;
+									} finally {
+										if(!started) {
+											exitBuilds(bips);
+											buildCache.release(buildId);
+										}
 									}
 								} else {
 									continue; // Build already started
@@ -317,46 +544,144 @@ public class BuildSlave {
 			
 			
 			try {
-				boolean wait;
-				do {
-					synchronized(buildsInProgress) {
-						wait = (executor.getActiveCount() >= localWorkers || buildsInProgress.size()>=localWorkers);
-						for(BuildInProgress bip : new ArrayList<BuildInProgress>(buildsInProgress)) {
-							try {
-								int sc = client.buildAlive(bip.server, bip.buildId, bip.perm, workerId);
-								if(sc == HttpStatus.SC_NOT_FOUND && bip.thread != null) {
-									// Bad permutation,  abort!
-									bip.thread.interrupt();
-									buildsInProgress.remove(bip);
-								}
-							} catch (Exception e) {
-								logger.error("Error sending build ping to server", e);
-							}
-						}
-						String newWorkerStatus = executor.getActiveCount()+" of "+localWorkers+" workers active for "+buildsInProgress.size()+" builds in progress";
-						if(!newWorkerStatus.equals(workerStatus))
-							logger.info(workerStatus = newWorkerStatus);
+				synchronized(buildsInProgress) {
+					// Wait for a local worker to free up before asking for more work
+					while(buildsInProgress.size() >= localWorkers) {
+						workerStatus = logWorkerStatus(executor, localWorkers, workerStatus);
+						buildsInProgress.wait(5000);
 					}
-					if(wait || !newBuild)
-						Thread.sleep(5000);
-				} while(wait);
+					workerStatus = logWorkerStatus(executor, localWorkers, workerStatus);
+				}
+				if(!newBuild && System.currentTimeMillis() - pollStartTime < 1000) {
+					// The server didn't hold our request open (maybe it doesn't support waiting), don't hammer it
+					Thread.sleep(5000);
+				}
 			} catch(InterruptedException ie) {
 				System.err.println("Interrupted, exiting.");
 				System.exit(1);
 			}
 		}
 	}
+	private static String logWorkerStatus(ThreadPoolExecutor executor, int localWorkers, String workerStatus) {
+		String newWorkerStatus = executor.getActiveCount()+" of "+localWorkers+" workers active for "+buildsInProgress.size()+" builds in progress";
+		if(!newWorkerStatus.equals(workerStatus))
+			logger.info(newWorkerStatus);
+		return newWorkerStatus;
+	}
+	/**
+	 * Let the servers know we're still working on our builds, and abort any
+	 * builds they no longer want from us.  The next heartbeat is scheduled
+	 * for the soonest any of the servers needs to hear from us again.
+	 */
+	static void sendHeartbeats() {
+		ArrayList<BuildInProgress> bips;
+		synchronized(buildsInProgress) {
+			bips = new ArrayList<BuildInProgress>(buildsInProgress);
+		}
+		Map<String, List<BuildInProgress>> byServer = new HashMap<String, List<BuildInProgress>>();
+		for(BuildInProgress bip : bips) {
+			List<BuildInProgress> serverBips = byServer.get(bip.server);
+			if(serverBips == null) {
+				serverBips = new ArrayList<BuildInProgress>();
+				byServer.put(bip.server, serverBips);
+			}
+			serverBips.add(bip);
+		}
+		long interval = HEARTBEAT_INTERVAL;
+		if(!byServer.isEmpty()) {
+			interval = Long.MAX_VALUE;
+			for(Map.Entry<String, List<BuildInProgress>> e : byServer.entrySet()) {
+				interval = Math.min(interval, sendHeartbeat(e.getKey(), e.getValue()));
+			}
+		}
+		// Spread out the heartbeats of slaves that started together
+		nextHeartbeat = System.currentTimeMillis() + interval - (long)(Math.random() * interval / 10);
+	}
+
+	/**
+	 * Renew our leases on the server's permutations, in one request if the
+	 * server takes batched heartbeats and with a ping for each otherwise.
+	 * 
+	 * @return Milliseconds until the server needs to hear from us again
+	 */
+	static long sendHeartbeat(String server, List<BuildInProgress> bips) {
+		if(!legacyHeartbeatServers.contains(server)) {
+			ArrayList<String> perms = new ArrayList<String>();
+			for(BuildInProgress bip : bips) {
+				perms.add(bip.buildId+"/"+bip.perm);
+			}
+			try {
+				ApiClient.Heartbeat heartbeat = client.heartbeat(server, workerId, perms);
+				for(BuildInProgress bip : bips) {
+					if(heartbeat.getLost().contains(bip.buildId+"/"+bip.perm))
+						abandon(bip);
+				}
+				if(heartbeat.getLeaseTime() <= 0)
+					return HEARTBEAT_INTERVAL;
+				return Math.max(HEARTBEAT_CHECK_INTERVAL, heartbeat.getLeaseTime() / RENEWALS_PER_LEASE);
+			} catch (ApiException e) {
+				if(e.getStatusCode() != HttpStatus.SC_NOT_FOUND) {
+					logger.error("Error sending heartbeat to "+server+": "+e.getStatusCode()+" "+e.getMessage());
+					return HEARTBEAT_INTERVAL;
+				}
+				logger.info(server+" doesn't take batched heartbeats, pinging each permutation instead");
+				legacyHeartbeatServers.add(server);
+			} catch (Exception e) {
+				logger.error("Error sending heartbeat to "+server, e);
+				return HEARTBEAT_INTERVAL;
+			}
+		}
+		for(BuildInProgress bip : bips) {
+			try {
+				int sc = client.buildAlive(bip.server, bip.buildId, bip.perm, workerId);
+				if(sc == HttpStatus.SC_NOT_FOUND)
+					abandon(bip);
+			} catch (Exception e) {
+				logger.error("Error sending build ping to server", e);
+			}
+		}
+		return HEARTBEAT_INTERVAL;
+	}
+
+	/**
+	 * The server no longer wants the permutation from us: drop it, and abort
+	 * the compile if it has nothing else left to do
+	 */
+	static void abandon(BuildInProgress bip) {
+		if(bip.thread == null)
+			return;
+		bip.abandoned = true;
+		exitBuild(bip);
+		if(bip.isBatchAbandoned())
+			bip.thread.interrupt();
+	}
 	static class BuildInProgress {
 		String server;
 		String buildId;
 		int perm;
 		Thread thread;
+		/**
+		 * Permutations compiled together with this one, including this one
+		 */
+		List<BuildInProgress> batch;
+		/**
+		 * Set when the server tells us the permutation is no longer ours to build
+		 */
+		volatile boolean abandoned;
 		
-		public BuildInProgress(String server, String buildId, int perm) {
+		public BuildInProgress(String server, String buildId, int perm, List<BuildInProgress> batch) {
 			super();
 			this.server = server;
 			this.buildId = buildId;
 			this.perm = perm;
+			this.batch = batch;
+		}
+		boolean isBatchAbandoned() {
+			for(BuildInProgress bip : batch) {
+				if(!bip.abandoned)
+					return false;
+			}
+			return true;
 		}
 		@Override
 		public int hashCode() {
@@ -396,6 +721,8 @@ public class BuildSlave {
 	}
 	static final HashSet<BuildInProgress> buildsInProgress = new HashSet<BuildInProgress>();
 	static boolean beginNewBuild(BuildInProgress bip) {
+		// Renew the new lease soon; it may be shorter than the ones we have
+		nextHeartbeat = Math.min(nextHeartbeat, System.currentTimeMillis() + HEARTBEAT_INTERVAL);
 		synchronized (buildsInProgress) {
 			return buildsInProgress.add(bip);
 		}
@@ -403,6 +730,177 @@ public class BuildSlave {
 	static void exitBuild(BuildInProgress bip) {
 		synchronized (buildsInProgress) {
 			buildsInProgress.remove(bip);
+			buildsInProgress.notifyAll();
+		}
+	}
+	static void exitBuilds(List<BuildInProgress> bips) {
+		for(BuildInProgress bip : bips) {
+			exitBuild(bip);
+		}
+	}
+	
+	/**
+	 * Update our idea of our download bandwidth after downloading a payload
+	 */
+	static void recordDownload(long bytes, long millis) {
+		if(bytes < MIN_BANDWIDTH_SAMPLE || millis <= 0)
+			return;
+		long rate = bytes * 1000 / 1024 / millis;
+		long previous = downloadBandwidth;
+		downloadBandwidth = previous > 0 ? (previous * 3 + rate) / 4 : rate;
+	}
+
+	/**
+	 * Save the payload that came with the work.  If the response breaks off or
+	 * doesn't match the checksum the server sent in X-Content-SHA1, get it
+	 * again with the resumable download instead.
+	 */
+	static void savePayload(QueueToWatch qtw, String buildId, HttpMethodBase get, File payloadFile) throws IOException, ApiException {
+		File tempFile = File.createTempFile("payload", ".tmp", payloadFile.getParentFile());
+		try {
+			try {
+				FileOutputStream fos = new FileOutputStream(tempFile);
+				InputStream payloadStream = get.getResponseBodyAsStream();
+				try {
+					IOUtils.copy(payloadStream, fos); // Write response to a file first
+				} finally {
+					fos.close();
+					payloadStream.close();
+				}
+				Header sha1Header = get.getResponseHeader("X-Content-SHA1");
+				if((sha1Header == null || sha1Header.getValue().equals(CompileUtils.digestFile(null, tempFile)))
+						&& payloadMatches(tempFile, qtw.key, buildId)) {
+					if(!tempFile.renameTo(payloadFile))
+						throw new IOException("Failed to rename "+tempFile+" to "+payloadFile);
+					return;
+				}
+				logger.warn("Payload of build "+buildId+" doesn't match its checksum, downloading it again");
+			} catch (IOException e) {
+				logger.warn("Download of payload of build "+buildId+" failed, downloading it again: "+e);
+			}
+		} finally {
+			tempFile.delete();
+		}
+		downloadFromServer(qtw, buildId, payloadFile);
+	}
+
+	/**
+	 * Download the chunks of a chunked payload from the server, and check the
+	 * payload they make up against the build ID before putting it in place.
+	 */
+	static void downloadChunks(QueueToWatch qtw, String buildId, List<String> chunkIds, File payloadFile) throws IOException, ApiException {
+		File tempFile = File.createTempFile("payload", ".tmp", payloadFile.getParentFile());
+		try {
+			ChunkedPayload.download(client, qtw.server, chunkIds, tempFile);
+			installPayload(tempFile, qtw.key, buildId, payloadFile);
+		} finally {
+			tempFile.delete();
+		}
+	}
+
+	/**
+	 * Get the payload from the server with the resumable download, and check
+	 * it against the build ID before putting it in place.
+	 */
+	static void downloadFromServer(QueueToWatch qtw, String buildId, File payloadFile) throws IOException, ApiException {
+		File tempFile = File.createTempFile("payload", ".tmp", payloadFile.getParentFile());
+		try {
+			client.getBuildPayload(qtw.server, buildId, tempFile);
+			installPayload(tempFile, qtw.key, buildId, payloadFile);
+		} finally {
+			tempFile.delete();
+		}
+	}
+
+	/**
+	 * Move a downloaded payload into place if it matches the build ID
+	 */
+	static void installPayload(File tempFile, String cryptKey, String buildId, File payloadFile) throws IOException {
+		if(!payloadMatches(tempFile, cryptKey, buildId))
+			throw new IOException("Payload of build "+buildId+" doesn't match the build ID; wrong key or corrupted download.");
+		if(!tempFile.renameTo(payloadFile))
+			throw new IOException("Failed to rename "+tempFile+" to "+payloadFile);
+	}
+
+	/**
+	 * Get the payload from one of the given slaves, or from the server if none
+	 * of them can give us one that matches the build's content hash.
+	 */
+	static void downloadFromPeers(QueueToWatch qtw, String buildId, String[] peers, File payloadFile) throws IOException, ApiException {
+		for(String peer : peers) {
+			peer = peer.trim();
+			if(peer.isEmpty() || (peerServer != null && peer.equals(peerServer.getUrl())))
+				continue;
+			File tempFile = File.createTempFile("peer", ".tmp", payloadFile.getParentFile());
+			try {
+				client.getPeerPayload(peer, buildId, tempFile);
+				if(!payloadMatches(tempFile, qtw.key, buildId)) {
+					logger.warn("Payload of build "+buildId+" from "+peer+" doesn't match the build ID, ignoring it");
+					continue;
+				}
+				if(!tempFile.renameTo(payloadFile))
+					throw new IOException("Failed to rename "+tempFile+" to "+payloadFile);
+				logger.info("Got payload of build "+buildId+" from "+peer);
+				return;
+			} catch (IOException e) {
+				logger.warn("Unable to get payload of build "+buildId+" from "+peer+": "+e);
+			} catch (ApiException e) {
+				logger.warn("Unable to get payload of build "+buildId+" from "+peer+": "+e.getMessage());
+			} finally {
+				tempFile.delete();
+			}
+		}
+		logger.info("Downloading payload of build "+buildId+" from the server");
+		downloadFromServer(qtw, buildId, payloadFile);
+	}
+
+	/**
+	 * Check a payload against the build ID, which the client computes as the
+	 * SHA1 of the key and the AST.
+	 */
+	static boolean payloadMatches(File payloadFile, String cryptKey, String buildId) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new Error(e);
+		}
+		if(cryptKey != null)
+			digest.update(cryptKey.getBytes());
+		InputStream in = openPayload(payloadFile, cryptKey);
+		try {
+			CompileUtils.readSmallString(in); // Module name isn't part of the hash
+			byte[] buf = new byte[64*1024];
+			int len;
+			while((len = in.read(buf)) != -1) {
+				digest.update(buf, 0, len);
+			}
+		} finally {
+			in.close();
+		}
+		return new String(Hex.encodeHex(digest.digest())).equals(buildId);
+	}
+
+	/**
+	 * @return The plain text of the payload: the module name followed by the AST
+	 */
+	static InputStream openPayload(File payloadFile, String cryptKey) throws IOException {
+		FileInputStream fis = new FileInputStream(payloadFile);
+		int version = fis.read();
+		if(version == DistCompile.V1_BYTE) {
+			return CompileUtils.maybeDecryptStream(cryptKey, fis);
+		} else if(version == DistCompile.V2_BYTE) {
+			if(cryptKey == null || cryptKey.isEmpty()) {
+				fis.close();
+				throw new IOException("Build payload is encrypted but no key is configured for its queue");
+			}
+			PayloadCodec codec = PayloadCodec.forId(fis.read());
+			return codec.decompress(new GcmStreams.GcmInputStream(cryptKey, new BufferedInputStream(fis)));
+		} else if(version == DistCompile.CHUNKED_BYTE || version == DistCompile.CHUNKED_V2_BYTE) {
+			return new ChunkedPayload.ChunkedInputStream(cryptKey, new BufferedInputStream(fis), version);
+		} else {
+			fis.close();
+			throw new IOException("Build file has unspported version number, or is corrupted.");
 		}
 	}
 	
@@ -411,12 +909,7 @@ public class BuildSlave {
 		File payloadFile = new File(buildDir, "payload");
 		
 		// Decrypt payload
-		FileInputStream fis = new FileInputStream(payloadFile);
-		int version = fis.read();
-		if(version != DistCompile.V1_BYTE) {									
-			throw new Error("Build file has unspported version number, or is corrupted.  Aborting!");
-		}
-		InputStream in = CompileUtils.maybeDecryptStream(cryptKey, fis);
+		InputStream in = openPayload(payloadFile, cryptKey);
 		
 		String moduleName = CompileUtils.readSmallString(in);
 		
@@ -443,15 +936,22 @@ public class BuildSlave {
 		}
 		return moduleName;
 	}
-	public static void doBuild(BuildInProgress bip, String uploadURL, String cryptKey) {
-		String server = bip.server;
-		String buildId = bip.buildId;
-		int perm = bip.perm;
-		try {
+	/**
+	 * Compile the given permutations of one build in a single CompilePerms run,
+	 * then upload each result separately.
+	 */
+	public static void doBuild(List<BuildInProgress> bips, List<String> uploadURLs, String cryptKey) {
+		String server = bips.get(0).server;
+		String buildId = bips.get(0).buildId;
+		ArrayList<Integer> perms = new ArrayList<Integer>();
+		for(BuildInProgress bip : bips) {
 			bip.thread = Thread.currentThread();
-			
+			perms.add(bip.perm);
+		}
+		String permList = StringUtils.join(perms, ",");
+		try {
 			String moduleName = decryptPayload(buildId, cryptKey);
-			logger.info("Compiling "+moduleName+" in build ID "+buildId+" and permutation "+perm);
+			logger.info("Compiling "+moduleName+" in build ID "+buildId+" and permutation(s) "+permList);
 			
 			File buildDir = new File(workDir, buildId);
 			
@@ -462,55 +962,105 @@ public class BuildSlave {
 			if(cachedFailure.exists()) {
 				String failure = FileUtils.readFileToString(cachedFailure);
 				logger.info("Rejecting build since we've already failed to build this one before.  Hopefully another worker will pick it up.");
-				client.addBuildFailure(server, buildId, perm, workerId, failure);
+				reportFailure(bips, failure, -1);
 				return;
 			}
 			
+			long compileHeapMB = -1;
 			try {
-				File permutationFile = new File(compileDir, "permutation-"+perm+".js");
-				if(!permutationFile.exists()) {
-					RunResult buildResult = CompileUtils.launchTool(CompilePerms.class, moduleName, "-workDir", buildDir.getAbsolutePath(), "-perms", String.valueOf(perm));
-					try {
-						if(buildResult.waitFor() != 0) {
-							String failure = "CompileDist returned non-zero exit status.";
-							if(buildResult.isOutOfMemoryError()) {
-								failure = "out of memory";
-							} else if(buildResult.isClassNotFound()) {
-								failure = "class not found";
+				ArrayList<Integer> toCompile = new ArrayList<Integer>();
+				for(int perm : perms) {
+					File permutationFile = new File(compileDir, "permutation-"+perm+".js");
+					if(permutationFile.exists()) {
+						logger.info("Permutation "+permutationFile+" already exists, using cached artifact");
+					} else {
+						toCompile.add(perm);
+					}
+				}
+				if(!toCompile.isEmpty()) {
+					String[] compileArgs = {moduleName, "-workDir", buildDir.getAbsolutePath(), "-perms", StringUtils.join(toCompile, ",")};
+					File astFile = new File(compileDir, Precompile.PRECOMPILE_FILENAME);
+					compileHeapMB = heapSizer.getInitialMB(moduleName, astFile.length());
+					boolean retried = false;
+					for(;;) {
+						RunResult buildResult = null;
+						int exitValue;
+						try {
+							CompileWorkerPool pool = workerPool;
+							if(pool != null) {
+								try {
+									buildResult = pool.compile(compileHeapMB, compileArgs);
+								} catch (CompileWorkerPool.UnavailableException e) {
+									logger.warn("Compile workers can't run in this JVM, will start a new JVM for each permutation", e);
+									workerPool = null;
+									pool.shutdown();
+								} catch (IOException e) {
+									logger.warn("Compile worker failed, falling back to a new JVM for this build", e);
+								}
 							}
-							FileUtils.writeStringToFile(cachedFailure, failure);
-							client.addBuildFailure(server, buildId, perm, workerId, failure);
-							return;
+							if(buildResult == null)
+								buildResult = CompileUtils.launchTool(CompilePerms.class, compileHeapMB, compileArgs);
+							exitValue = buildResult.waitFor();
+						} finally {
+							if(buildResult != null)
+								buildResult.terminateProcess();
+							if(retried)
+								heapSizer.releaseRetry(compileHeapMB);
 						}
-					} finally {
-						buildResult.terminateProcess();
+						if(exitValue == 0) {
+							if(retried)
+								heapSizer.succeeded(moduleName, compileHeapMB);
+							break;
+						}
+						if(buildResult.isOutOfMemoryError()) {
+							long retryHeapMB = heapSizer.reserveRetry(compileHeapMB);
+							if(retryHeapMB > 0) {
+								logger.warn("Ran out of memory with "+compileHeapMB+"MB heap compiling "+moduleName+" permutation(s) "+permList+", trying again with "+retryHeapMB+"MB");
+								compileHeapMB = retryHeapMB;
+								retried = true;
+								continue;
+							}
+						}
+						String failure = "CompileDist returned non-zero exit status.";
+						if(buildResult.isOutOfMemoryError()) {
+							failure = "out of memory";
+						} else if(buildResult.isClassNotFound()) {
+							failure = "class not found";
+						}
+						FileUtils.writeStringToFile(cachedFailure, failure);
+						reportFailure(bips, failure, compileHeapMB);
+						return;
 					}
-				} else {
-					logger.info("Permutation "+permutationFile+" already exists, using cached artifact");
 				}
-				File encryptedJs = new File(compileDir, "permutation-"+perm+".js.crypt");
-				boolean alreadyEncrypted = encryptedJs.exists() && encryptedJs.lastModified() >= permutationFile.lastModified();
-				if(!alreadyEncrypted) {
-					CompileUtils.encryptFile(cryptKey, permutationFile, encryptedJs);
-				}
-				try {
-					client.addBuildResult(server, buildId, perm, uploadURL, workerId, encryptedJs);
-				} catch (NumberFormatException e) {
-					throw new Error(e);
-				} catch (ApiException e) {
-					e.printStackTrace();
-					return;
+				for(int i=0; i < bips.size(); i++) {
+					BuildInProgress bip = bips.get(i);
+					if(bip.abandoned)
+						continue;
+					File permutationFile = new File(compileDir, "permutation-"+bip.perm+".js");
+					File encryptedJs = new File(compileDir, "permutation-"+bip.perm+".js.crypt");
+					boolean alreadyEncrypted = encryptedJs.exists() && encryptedJs.lastModified() >= permutationFile.lastModified();
+					if(!alreadyEncrypted) {
+						CompileUtils.encryptFile(cryptKey, permutationFile, encryptedJs);
+					}
+					try {
+						client.addBuildResult(server, buildId, bip.perm, uploadURLs.get(i), workerId, encryptedJs, compileHeapMB);
+					} catch (NumberFormatException e) {
+						throw new Error(e);
+					} catch (ApiException e) {
+						e.printStackTrace();
+					}
+					exitBuild(bip); // Free up the slot as soon as this one is done
 				}
 				
 			} catch (InterruptedException e) {
-				client.addBuildFailure(server, buildId, perm, workerId, "interrupted");
+				reportFailure(bips, "interrupted", -1);
 				logger.error("Interrupted build, exiting ...");
 			}
 			
 		} catch (Throwable t) {
 			try {
 				logger.error("Build failed", t);
-				client.addBuildFailure(server, buildId, perm, workerId, StringUtils.defaultString(t.getLocalizedMessage(), t.getClass().getName()));
+				reportFailure(bips, StringUtils.defaultString(t.getLocalizedMessage(), t.getClass().getName()), -1);
 			} catch (HttpException e) {
 				logger.error("Failed to report build failure to server.", e);
 			} catch (IOException e) {
@@ -518,7 +1068,19 @@ public class BuildSlave {
 			}
 			return;
 		} finally {
-			exitBuild(bip);
+			exitBuilds(bips);
+			buildCache.release(buildId);
+		}
+	}
+	/**
+	 * Tell the server we failed to build the given permutations, except any it already took away from us
+	 * 
+	 * @param compileHeapMB Maximum heap of the compile that failed, or -1 if we didn't get that far
+	 */
+	private static void reportFailure(List<BuildInProgress> bips, String failure, long compileHeapMB) throws HttpException, IOException {
+		for(BuildInProgress bip : bips) {
+			if(!bip.abandoned)
+				client.addBuildFailure(bip.server, bip.buildId, bip.perm, workerId, failure, compileHeapMB);
 		}
 	}
 	private static File getCompileDir(File buildDir, String moduleName) {
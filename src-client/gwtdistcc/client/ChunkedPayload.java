@@ -0,0 +1,572 @@
+package gwtdistcc.client;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.DigestInputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Chunked payload format, used so that successive builds of the same module
+ * only upload the parts of the AST that changed.
+ *
+ * The plain text (module name followed by the AST, as in the V1 format) is
+ * split into chunks at content-defined boundaries, so an edit only changes
+ * the chunks around it.  Each chunk is compressed and encrypted separately
+ * and identified by {@link #CHUNK_ID_PREFIX} and the SHA1 of the key and
+ * its plain text.  Chunks are encoded and decoded on all cores, using the
+ * thread pool of {@link GcmStreams}.
+ *
+ * File layout:
+ *
+ * 1. {@link DistCompile#CHUNKED_V2_BYTE}
+ * 2. For each chunk: id (UTF), length (int) followed by the encoded chunk
+ *
+ * An encoded chunk starts with its format byte and the {@link PayloadCodec}
+ * id.  With a key, the format is {@link #FORMAT_GCM}: a random IV follows,
+ * then the compressed plain text sealed with AES-GCM.  The format byte, codec
+ * id and chunk id are authenticated along with it, so a chunk can't be passed
+ * off under another chunk's id, and the decoded plain text is checked against
+ * its id too.  Without a key, the format is {@link #FORMAT_CBC}.  Chunk ids
+ * don't depend on the codec, so a chunk already on the server is re-used
+ * whatever codec it was uploaded with.
+ *
+ * Chunks are authenticated by id rather than by position because the same
+ * chunk is re-used at different positions by later builds; the order of the
+ * chunks is checked when the plain text is matched against the build ID.
+ *
+ * Chunks whose id has no prefix were written by older clients without a
+ * format byte, in files starting with {@link DistCompile#CHUNKED_BYTE} that
+ * don't list the ids.  They are either the encrypted plain text (uncompressed
+ * chunks), or {@link #CODEC_MAGIC}, the codec id and then the encrypted,
+ * compressed plain text.  They are still read, but never written.
+ */
+public class ChunkedPayload {
+	/**
+	 * Chunks are never cut smaller than this, except the last one
+	 */
+	static final int MIN_CHUNK_SIZE = 256*1024;
+
+	/**
+	 * Chunks are always cut at this size
+	 */
+	static final int MAX_CHUNK_SIZE = 4*1024*1024;
+
+	/**
+	 * A boundary is found when these bits of the rolling hash are zero, which
+	 * gives chunks of about 1MB on average.
+	 */
+	static final long BOUNDARY_MASK = 0xFFFFF00000000000L;
+
+	/**
+	 * Random values for the rolling hash; java.util.Random is specified to give
+	 * the same sequence everywhere, so every client cuts chunks the same way.
+	 */
+	static final long[] GEAR = new long[256];
+
+	/**
+	 * Marks a compressed chunk in the old format that has no format byte.
+	 * Uncompressed chunks start with a random IV, or in the first chunk of an
+	 * unencrypted payload with the (non-zero) module name length, so they are
+	 * very unlikely to start like this.
+	 */
+	static final byte[] CODEC_MAGIC = {0, 'G', 'D', 'Z'};
+
+	/**
+	 * Start of the ids of chunks that begin with a format byte
+	 */
+	static final String CHUNK_ID_PREFIX = "2-";
+
+	/**
+	 * Chunk format: codec id, then the compressed plain text encrypted with
+	 * {@link CompileUtils#maybeEncryptStream}.  Only written without a key.
+	 */
+	static final byte FORMAT_CBC = 1;
+
+	/**
+	 * Chunk format: codec id, IV, then the compressed plain text sealed with
+	 * AES-GCM
+	 */
+	static final byte FORMAT_GCM = 2;
+	static {
+		Random random = new Random(0x6777746469737463L);
+		for(int i=0; i < GEAR.length; i++) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+
+	/**
+	 * Location of one encrypted chunk in a chunked payload file
+	 */
+	public static final class Chunk {
+		final String id;
+		final long offset;
+		final int length;
+
+		Chunk(String id, long offset, int length) {
+			this.id = id;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public int getLength() {
+			return length;
+		}
+	}
+
+	/**
+	 * Splits everything written to it into chunks, encrypts them on all cores
+	 * and writes them to the payload file in order.
+	 */
+	static final class ChunkingOutputStream extends OutputStream {
+		final String cryptKey;
+		final PayloadCodec codec;
+		final DataOutputStream out;
+		final List<Chunk> chunks = new ArrayList<Chunk>();
+		final LinkedList<Future<EncodedChunk>> pending = new LinkedList<Future<EncodedChunk>>();
+		final byte[] buf = new byte[MAX_CHUNK_SIZE];
+		int len;
+		long hash;
+		long offset;
+
+		ChunkingOutputStream(String cryptKey, PayloadCodec codec, OutputStream out) throws IOException {
+			this.cryptKey = cryptKey;
+			this.codec = codec;
+			this.out = new DataOutputStream(out);
+			this.out.write(DistCompile.CHUNKED_V2_BYTE);
+			this.offset = 1;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			buf[len++] = (byte)b;
+			hash = (hash << 1) + GEAR[b & 0xff];
+			if(len >= MAX_CHUNK_SIZE || (len >= MIN_CHUNK_SIZE && (hash & BOUNDARY_MASK) == 0))
+				flushChunk();
+		}
+
+		@Override
+		public void write(byte[] b, int off, int n) throws IOException {
+			for(int i=off; i < off+n; i++) {
+				buf[len++] = b[i];
+				hash = (hash << 1) + GEAR[b[i] & 0xff];
+				if(len >= MAX_CHUNK_SIZE || (len >= MIN_CHUNK_SIZE && (hash & BOUNDARY_MASK) == 0))
+					flushChunk();
+			}
+		}
+
+		private void flushChunk() throws IOException {
+			if(len == 0)
+				return;
+			final byte[] plain = Arrays.copyOf(buf, len);
+			pending.add(GcmStreams.getExecutor().submit(new Callable<EncodedChunk>() {
+				@Override
+				public EncodedChunk call() throws Exception {
+					String id = chunkId(cryptKey, plain, plain.length);
+					return new EncodedChunk(id, encode(cryptKey, codec, id, plain));
+				}
+			}));
+			len = 0;
+			hash = 0;
+			// Don't get too far ahead of the output
+			while(pending.size() > GcmStreams.getParallelism()) {
+				writeChunk(GcmStreams.await(pending.removeFirst()));
+			}
+		}
+
+		private void writeChunk(EncodedChunk chunk) throws IOException {
+			int idLength = writeId(out, chunk.id);
+			out.writeInt(chunk.data.length);
+			out.write(chunk.data);
+			chunks.add(new Chunk(chunk.id, offset+idLength+4, chunk.data.length));
+			offset += idLength + 4 + chunk.data.length;
+		}
+
+		@Override
+		public void close() throws IOException {
+			flushChunk();
+			while(!pending.isEmpty()) {
+				writeChunk(GcmStreams.await(pending.removeFirst()));
+			}
+			out.close();
+		}
+	}
+
+	static final class EncodedChunk {
+		final String id;
+		final byte[] data;
+
+		EncodedChunk(String id, byte[] data) {
+			this.id = id;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * Reads the plain text back out of a chunked payload, decoding chunks ahead
+	 * of the reader on all cores.
+	 */
+	static final class ChunkedInputStream extends InputStream {
+		final String cryptKey;
+		final DataInputStream in;
+		final boolean hasIds;
+		final LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+		boolean sawEnd;
+		byte[] current;
+		int pos;
+
+		/**
+		 * @param in Payload stream, positioned just after the version byte
+		 * @param version The version byte, {@link DistCompile#CHUNKED_V2_BYTE} if the file lists chunk ids
+		 */
+		ChunkedInputStream(String cryptKey, InputStream in, int version) {
+			this.cryptKey = cryptKey;
+			this.in = new DataInputStream(in);
+			this.hasIds = version == DistCompile.CHUNKED_V2_BYTE;
+		}
+
+		private void readAhead() throws IOException {
+			while(!sawEnd && pending.size() <= GcmStreams.getParallelism()) {
+				final String id;
+				int len;
+				try {
+					id = hasIds ? in.readUTF() : null;
+					len = in.readInt();
+				} catch (EOFException e) {
+					sawEnd = true;
+					return;
+				}
+				// Compression can't grow a chunk by more than this
+				if(len < 0 || len > 2*MAX_CHUNK_SIZE) {
+					throw new IOException("Chunk "+id+" has bad length "+len+"; data is corrupted.");
+				}
+				final byte[] data = new byte[len];
+				in.readFully(data);
+				pending.add(GcmStreams.getExecutor().submit(new Callable<byte[]>() {
+					@Override
+					public byte[] call() throws Exception {
+						return decode(cryptKey, id, data);
+					}
+				}));
+			}
+		}
+
+		/**
+		 * @return false at the end of the stream
+		 */
+		private boolean nextChunk() throws IOException {
+			while(current == null || pos >= current.length) {
+				readAhead();
+				if(pending.isEmpty())
+					return false;
+				current = GcmStreams.await(pending.removeFirst());
+				pos = 0;
+			}
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if(!nextChunk())
+				return -1;
+			return current[pos++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int n) throws IOException {
+			if(n == 0)
+				return 0;
+			if(!nextChunk())
+				return -1;
+			int count = Math.min(n, current.length - pos);
+			System.arraycopy(current, pos, b, off, count);
+			pos += count;
+			return count;
+		}
+
+		@Override
+		public void close() throws IOException {
+			for(Future<byte[]> f : pending) {
+				f.cancel(false);
+			}
+			in.close();
+		}
+	}
+
+	/**
+	 * Encode one chunk in the current format
+	 */
+	static byte[] encode(String cryptKey, PayloadCodec codec, String id, byte[] plain) throws IOException {
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream(plain.length + 64);
+		if(cryptKey == null) {
+			encoded.write(FORMAT_CBC);
+			encoded.write(codec.getId());
+			OutputStream enc = codec.compress(CompileUtils.maybeEncryptStream(cryptKey, encoded));
+			enc.write(plain);
+			enc.close();
+			return encoded.toByteArray();
+		}
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(plain.length);
+		OutputStream enc = codec.compress(compressed);
+		enc.write(plain);
+		enc.close();
+		byte[] iv = new byte[GcmStreams.IV_SIZE];
+		GcmStreams.random.nextBytes(iv);
+		Cipher cipher = GcmStreams.getCipher();
+		try {
+			cipher.init(Cipher.ENCRYPT_MODE, GcmStreams.getKey(cryptKey), new GCMParameterSpec(GcmStreams.TAG_BITS, iv));
+			cipher.updateAAD(aad(FORMAT_GCM, codec.getId(), id));
+			encoded.write(FORMAT_GCM);
+			encoded.write(codec.getId());
+			encoded.write(iv);
+			encoded.write(cipher.doFinal(compressed.toByteArray()));
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Failed to encrypt chunk "+id, e);
+		}
+		return encoded.toByteArray();
+	}
+
+	/**
+	 * @param id The chunk's id, or null if it came from a file that doesn't list them
+	 * @return The plain text of an encoded chunk
+	 */
+	static byte[] decode(String cryptKey, String id, byte[] data) throws IOException {
+		if(id != null && id.startsWith(CHUNK_ID_PREFIX)) {
+			byte[] plain = decodeFormatted(cryptKey, id, data);
+			if(!id.equals(chunkId(cryptKey, plain, plain.length)))
+				throw new IOException("Chunk "+id+" doesn't match its id; wrong key or corrupted data.");
+			return plain;
+		}
+		// Written by an older client, without a format byte
+		int header = CODEC_MAGIC.length + 1;
+		InputStream in;
+		if(data.length >= header && Arrays.equals(Arrays.copyOf(data, CODEC_MAGIC.length), CODEC_MAGIC)) {
+			PayloadCodec codec = PayloadCodec.forId(data[CODEC_MAGIC.length]);
+			in = codec.decompress(CompileUtils.maybeDecryptStream(cryptKey, new ByteArrayInputStream(data, header, data.length - header)));
+		} else {
+			in = CompileUtils.maybeDecryptStream(cryptKey, new ByteArrayInputStream(data));
+		}
+		try {
+			return IOUtils.toByteArray(in);
+		} finally {
+			in.close(); // Frees the decompressor
+		}
+	}
+
+	private static byte[] decodeFormatted(String cryptKey, String id, byte[] data) throws IOException {
+		if(data.length < 2 || (data[0] != FORMAT_CBC && data[0] != FORMAT_GCM))
+			throw new IOException("Chunk "+id+" has unknown format "+(data.length > 0 ? data[0] : -1)+"; this build slave may need upgrading.");
+		PayloadCodec codec = PayloadCodec.forId(data[1]);
+		InputStream in;
+		if(data[0] == FORMAT_CBC) {
+			in = CompileUtils.maybeDecryptStream(cryptKey, new ByteArrayInputStream(data, 2, data.length - 2));
+		} else {
+			int header = 2 + GcmStreams.IV_SIZE;
+			if(cryptKey == null)
+				throw new IOException("Chunk "+id+" is encrypted, but no key was given.");
+			if(data.length < header)
+				throw new IOException("Chunk "+id+" is truncated; data is corrupted.");
+			Cipher cipher = GcmStreams.getCipher();
+			try {
+				cipher.init(Cipher.DECRYPT_MODE, GcmStreams.getKey(cryptKey),
+						new GCMParameterSpec(GcmStreams.TAG_BITS, data, 2, GcmStreams.IV_SIZE));
+				cipher.updateAAD(aad(FORMAT_GCM, data[1], id));
+				in = new ByteArrayInputStream(cipher.doFinal(data, header, data.length - header));
+			} catch (AEADBadTagException e) {
+				throw new IOException("Chunk "+id+" failed its integrity check; wrong key or corrupted data.");
+			} catch (GeneralSecurityException e) {
+				throw new IOException("Failed to decrypt chunk "+id, e);
+			}
+		}
+		in = codec.decompress(in);
+		try {
+			return IOUtils.toByteArray(in);
+		} finally {
+			in.close(); // Frees the decompressor
+		}
+	}
+
+	/**
+	 * Data authenticated along with a {@link #FORMAT_GCM} chunk
+	 */
+	static byte[] aad(byte format, byte codecId, String id) {
+		byte[] idBytes = id.getBytes();
+		byte[] aad = new byte[2 + idBytes.length];
+		aad[0] = format;
+		aad[1] = codecId;
+		System.arraycopy(idBytes, 0, aad, 2, idBytes.length);
+		return aad;
+	}
+
+	/**
+	 * Write a chunk id to a chunked payload file
+	 *
+	 * @return Number of bytes written
+	 */
+	static int writeId(DataOutputStream out, String id) throws IOException {
+		int before = out.size();
+		out.writeUTF(id);
+		return out.size() - before;
+	}
+
+	static String chunkId(String cryptKey, byte[] data, int len) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new Error(e);
+		}
+		if(cryptKey != null)
+			digest.update(cryptKey.getBytes());
+		digest.update(data, 0, len);
+		return CHUNK_ID_PREFIX + new String(Hex.encodeHex(digest.digest()));
+	}
+
+	/**
+	 * Write the module name and AST to a chunked payload file.
+	 *
+	 * @return The chunks written, in order
+	 */
+	public static List<Chunk> write(String moduleName, String cryptKey, PayloadCodec codec,
+			File astFile, File payloadFile) throws IOException {
+		return write(moduleName, cryptKey, codec, astFile, payloadFile, null);
+	}
+
+	/**
+	 * Write the module name and AST to a chunked payload file.
+	 *
+	 * @param astDigest If not null, the AST is fed to this digest as it is read,
+	 *        saving a separate pass over the file to hash it
+	 * @return The chunks written, in order
+	 */
+	public static List<Chunk> write(String moduleName, String cryptKey, PayloadCodec codec,
+			File astFile, File payloadFile, MessageDigest astDigest) throws IOException {
+		return write(moduleName, cryptKey, codec, astFile, payloadFile, astDigest, null);
+	}
+
+	/**
+	 * Write the module name and AST to a chunked payload file.
+	 *
+	 * @param astDigest If not null, the AST is fed to this digest as it is read,
+	 *        saving a separate pass over the file to hash it
+	 * @param astCopy If not null, the AST is also copied to this file as it is
+	 *        read, saving a separate pass over the file to copy it
+	 * @return The chunks written, in order
+	 */
+	public static List<Chunk> write(String moduleName, String cryptKey, PayloadCodec codec,
+			File astFile, File payloadFile, MessageDigest astDigest, File astCopy) throws IOException {
+		byte[] moduleNameBytes = moduleName.getBytes();
+		if(moduleNameBytes.length > 127) {
+			throw new IOException("Module name is too long (> 127 bytes)");
+		}
+		File tempFile = File.createTempFile("stream", ".tmp", payloadFile.getParentFile());
+		ChunkingOutputStream out = new ChunkingOutputStream(cryptKey, codec, new BufferedOutputStream(new FileOutputStream(tempFile)));
+		InputStream in = new FileInputStream(astFile);
+		if(astDigest != null)
+			in = new DigestInputStream(in, astDigest);
+		OutputStream copy = null;
+		try {
+			out.write((byte)moduleNameBytes.length);
+			out.write(moduleNameBytes);
+			if(astCopy == null) {
+				IOUtils.copy(in, out);
+			} else {
+				copy = new FileOutputStream(astCopy);
+				byte[] buf = new byte[64*1024];
+				int n;
+				while((n = in.read(buf)) != -1) {
+					out.write(buf, 0, n);
+					copy.write(buf, 0, n);
+				}
+			}
+		} finally {
+			in.close();
+			out.close();
+			if(copy != null)
+				copy.close();
+		}
+		if(payloadFile.exists() && !payloadFile.delete()) {
+			throw new IOException("Failed to delete old payload file "+payloadFile);
+		}
+		if(!tempFile.renameTo(payloadFile)) {
+			throw new IOException("Failed to rename temp file "+tempFile+" to payload file "+payloadFile);
+		}
+		return out.chunks;
+	}
+
+	/**
+	 * Read the encrypted bytes of one chunk from the payload file it was written to
+	 */
+	public static byte[] readChunk(File payloadFile, Chunk chunk) throws IOException {
+		RandomAccessFile f = new RandomAccessFile(payloadFile, "r");
+		try {
+			byte[] data = new byte[chunk.length];
+			f.seek(chunk.offset);
+			f.readFully(data);
+			return data;
+		} finally {
+			f.close();
+		}
+	}
+
+	/**
+	 * Assemble a chunked payload file by downloading each of the given chunks in order.
+	 * The chunks aren't checked here; the caller should check the payload
+	 * against the build ID before using it.
+	 */
+	public static void download(ApiClient client, String server, List<String> chunkIds, File payloadFile) throws IOException, ApiException {
+		File tempFile = File.createTempFile("stream", ".tmp", payloadFile.getParentFile());
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			try {
+				out.write(DistCompile.CHUNKED_V2_BYTE);
+				for(String chunkId : chunkIds) {
+					byte[] data = client.getChunk(server, chunkId);
+					writeId(out, chunkId);
+					out.writeInt(data.length);
+					out.write(data);
+				}
+			} finally {
+				out.close();
+			}
+			if(payloadFile.exists() && !payloadFile.delete()) {
+				throw new IOException("Failed to delete old payload file "+payloadFile);
+			}
+			if(!tempFile.renameTo(payloadFile)) {
+				throw new IOException("Failed to rename temp file "+tempFile+" to payload file "+payloadFile);
+			}
+		} finally {
+			tempFile.delete(); // Unless it was renamed
+		}
+	}
+}
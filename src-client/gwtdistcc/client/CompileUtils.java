@@ -1,5 +1,6 @@
 package gwtdistcc.client;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.EOFException;
 import java.io.File;
@@ -10,12 +11,14 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.lang.management.ManagementFactory;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.zip.GZIPInputStream;
@@ -35,6 +38,8 @@ import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.gwt.dev.About;
+
 public class CompileUtils {
 	/**
 	 * A system property that can be used to override the command used to invoke
@@ -48,6 +53,14 @@ public class CompileUtils {
 	 */
 	public static final String JVM_ARGS_PROPERTY = "gwt.jjs.javaArgs";
 
+	/**
+	 * Identifies the compiler we build with, so the server only reuses a
+	 * permutation result for builds made with the same one.
+	 */
+	public static String getToolchain() {
+		return "GWT "+About.GWT_VERSION_NUM;
+	}
+
 	static final Logger logger = LoggerFactory.getLogger(CompileUtils.class);
 
 	public static final class RunResult {
@@ -69,6 +82,8 @@ public class CompileUtils {
 			return outOfMemoryError;
 		}
 		public int waitFor() throws InterruptedException {
+			if(process == null)
+				return exitValue(); // Already completed, e.g. by a pooled worker
 			return process.waitFor();
 		}
 		public boolean isClassNotFound() {
@@ -78,7 +93,8 @@ public class CompileUtils {
 		 * Terminate the process, if it is still running
 		 */
 		public void terminateProcess() {
-			process.destroy();
+			if(process != null)
+				process.destroy();
 		}
 		
 	}
@@ -91,6 +107,26 @@ public class CompileUtils {
 	 */
 	public static RunResult launchTool(Class<?> clazz, String ... argsArray)
 			throws IOException {
+		return launchTool(clazz, -1, argsArray);
+	}
+
+	/**
+	 * Launches an external tool like {@link #launchTool(Class, String...)},
+	 * with the given maximum heap instead of the -Xmx in our JVM args.
+	 * 
+	 * @param heapMB Maximum heap in megabytes, or -1 to keep the JVM args' own
+	 */
+	public static RunResult launchTool(Class<?> clazz, long heapMB, String ... argsArray)
+			throws IOException {
+		return launchTool(clazz, heapMB, Collections.<String>emptyList(), argsArray);
+	}
+
+	/**
+	 * Launches an external tool like {@link #launchTool(Class, long, String...)},
+	 * adding the given JVM args to ours.
+	 */
+	public static RunResult launchTool(Class<?> clazz, long heapMB, List<String> extraJvmArgs, String ... argsArray)
+			throws IOException {
 
 		String javaCommand = System.getProperty(JAVA_COMMAND_PROPERTY, System
 				.getProperty("java.home")
@@ -100,23 +136,13 @@ public class CompileUtils {
 		// Construct the arguments
 		List<String> args = new ArrayList<String>();
 		args.add(javaCommand);
-
-		// This will include -Xmx, -D, etc...
-		String userJvmArgs = System.getProperty(JVM_ARGS_PROPERTY);
-		if (userJvmArgs == null) {
-			args.addAll(ManagementFactory.getRuntimeMXBean()
-					.getInputArguments());
-		} else {
-			args.addAll(Arrays.asList(userJvmArgs.split(" ")));
+		for(String arg : getToolJvmArgs()) {
+			if(heapMB <= 0 || !arg.startsWith("-Xmx"))
+				args.add(arg);
 		}
-
-	    // Filter undesirable arguments
-	    for (Iterator<String> iter = args.iterator(); iter.hasNext();) {
-	      String arg = iter.next();
-	      if (arg.startsWith("-agentlib")) {
-	        iter.remove();
-	      }
-	    }
+		if(heapMB > 0)
+			args.add("-Xmx"+heapMB+"m");
+		args.addAll(extraJvmArgs);
 		
 		// Cook up the classpath, main class, and extra args
 		args.addAll(Arrays.asList("-classpath", ManagementFactory
@@ -203,6 +229,124 @@ public class CompileUtils {
 			System.exit(rc);
 	}
 
+	/**
+	 * @return The JVM args {@link #launchTool(Class, String...)} passes to the tool
+	 */
+	static List<String> getToolJvmArgs() {
+		List<String> args = new ArrayList<String>();
+		// This will include -Xmx, -D, etc...
+		String userJvmArgs = System.getProperty(JVM_ARGS_PROPERTY);
+		if (userJvmArgs == null) {
+			args.addAll(ManagementFactory.getRuntimeMXBean()
+					.getInputArguments());
+		} else {
+			args.addAll(Arrays.asList(userJvmArgs.split(" ")));
+		}
+
+	    // Filter undesirable arguments
+	    for (Iterator<String> iter = args.iterator(); iter.hasNext();) {
+	      String arg = iter.next();
+	      if (arg.startsWith("-agentlib")) {
+	        iter.remove();
+	      }
+	    }
+	    return args;
+	}
+
+	/**
+	 * Parse a JVM memory size such as 512m or 2g
+	 * 
+	 * @return The size in bytes, or -1 if it isn't one
+	 */
+	static long parseMemorySize(String size) {
+		if(size.isEmpty())
+			return -1;
+		long multiplier = 1;
+		switch(Character.toLowerCase(size.charAt(size.length()-1))) {
+		case 'k': multiplier = 1024L; break;
+		case 'm': multiplier = 1024L*1024L; break;
+		case 'g': multiplier = 1024L*1024L*1024L; break;
+		case 't': multiplier = 1024L*1024L*1024L*1024L; break;
+		}
+		try {
+			return Long.parseLong(multiplier == 1 ? size : size.substring(0, size.length()-1)) * multiplier;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return The maximum heap of a tool started by {@link #launchTool(Class, String...)};
+	 *         taken from its -Xmx, or our own if it doesn't have one
+	 */
+	static long getToolHeapSize() {
+		long heap = -1;
+		for(String arg : getToolJvmArgs()) {
+			if(arg.startsWith("-Xmx"))
+				heap = parseMemorySize(arg.substring(4)); // The last one wins
+		}
+		return heap > 0 ? heap : Runtime.getRuntime().maxMemory();
+	}
+
+	/**
+	 * @return The physical memory not in use right now, or -1 if the JVM doesn't tell us
+	 */
+	static long getFreePhysicalMemory() {
+		java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if(os instanceof com.sun.management.OperatingSystemMXBean)
+			return ((com.sun.management.OperatingSystemMXBean) os).getFreePhysicalMemorySize();
+		return -1;
+	}
+
+	/**
+	 * @return The machine's physical memory, or -1 if the JVM doesn't tell us
+	 */
+	static long getTotalPhysicalMemory() {
+		java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if(os instanceof com.sun.management.OperatingSystemMXBean)
+			return ((com.sun.management.OperatingSystemMXBean) os).getTotalPhysicalMemorySize();
+		return -1;
+	}
+
+	/**
+	 * @return The physical memory new processes can use without swapping, or
+	 *         -1 if we can't tell.  On Linux this is MemAvailable, which counts
+	 *         the page cache the kernel can reclaim; the JVM's free memory
+	 *         doesn't, so on a busy build machine it is far too low.
+	 */
+	static long getAvailablePhysicalMemory() {
+		File meminfo = new File("/proc/meminfo");
+		if(meminfo.canRead()) {
+			try {
+				BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(meminfo)));
+				try {
+					String line;
+					while((line = in.readLine()) != null) {
+						if(line.startsWith("MemAvailable:"))
+							return parseMemorySize(line.substring("MemAvailable:".length()).trim().replace(" kB", "k"));
+					}
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				logger.debug("Unable to read "+meminfo, e);
+			}
+		}
+		return getFreePhysicalMemory();
+	}
+
+	/**
+	 * @return How many tools can run at once without their heaps overflowing
+	 *         the available physical memory; between 1 and max.
+	 */
+	public static int getToolsThatFitInMemory(int max) {
+		long free = getAvailablePhysicalMemory();
+		long heap = getToolHeapSize();
+		if(free < 0 || heap <= 0 || heap == Long.MAX_VALUE)
+			return max;
+		return (int) Math.max(1, Math.min(max, free / heap));
+	}
+
 	public static Cipher getCipher() {
 		try {
 			return Cipher.getInstance("AES/CBC/PKCS5Padding");
@@ -274,10 +418,14 @@ public class CompileUtils {
 			digest.update(prelude);
 		byte[] buffer = new byte[8192];
 		FileInputStream input = new FileInputStream(f);
-	    int n = 0;
-	    while (-1 != (n = input.read(buffer))) {
-	    	digest.update(buffer, 0, n);
-	    }
+		try {
+		    int n = 0;
+		    while (-1 != (n = input.read(buffer))) {
+		    	digest.update(buffer, 0, n);
+		    }
+		} finally {
+			input.close();
+		}
 	    return new String(Hex.encodeHex(digest.digest()));
 	}
 
@@ -285,7 +433,14 @@ public class CompileUtils {
 			File cipherTextFile) throws FileNotFoundException, IOException {
 		InputStream in;
 		File tempCipherTextFile = File.createTempFile("cipher", ".tmp", cipherTextFile.getParentFile());
-		OutputStream out = new GZIPOutputStream(maybeEncryptStream(cryptKey, new FileOutputStream(tempCipherTextFile)));
+		OutputStream fo = new BufferedOutputStream(new FileOutputStream(tempCipherTextFile));
+		OutputStream out;
+		if(cryptKey != null) {
+			fo.write(RESULT_V2_MAGIC);
+			out = new GZIPOutputStream(new GcmStreams.GcmOutputStream(cryptKey, fo));
+		} else {
+			out = new GZIPOutputStream(maybeEncryptStream(cryptKey, fo));
+		}
 		in = new FileInputStream(plainTextFile);
 		try {
 			IOUtils.copy(in, out);
@@ -300,6 +455,13 @@ public class CompileUtils {
 
 	static Cipher cipher;
 
+	/**
+	 * Marks a result file written with {@link GcmStreams}.  Older result files
+	 * start straight away with a random IV, so there's a one in 2^32 chance one
+	 * of those looks like this; they are only read back during the upgrade.
+	 */
+	static final byte[] RESULT_V2_MAGIC = {'G', 'D', 'C', DistCompile.V2_BYTE};
+
 	public static void writeStreamToFile(InputStream stream, File file)
 			throws FileNotFoundException, IOException {
 		File tempFile = File.createTempFile("stream", ".tmp", file.getParentFile());
@@ -316,7 +478,19 @@ public class CompileUtils {
 
 	public static void decryptStreamToFile(String cryptKey, InputStream stream,
 			File file) throws IOException, Error, FileNotFoundException {
-		InputStream is = new GZIPInputStream(maybeDecryptStream(cryptKey, stream));
+		PushbackInputStream pin = new PushbackInputStream(stream, RESULT_V2_MAGIC.length);
+		byte[] magic = new byte[RESULT_V2_MAGIC.length];
+		int n = 0;
+		for(int count; n < magic.length && (count = pin.read(magic, n, magic.length - n)) != -1; ) {
+			n += count;
+		}
+		InputStream is;
+		if(n == magic.length && Arrays.equals(magic, RESULT_V2_MAGIC) && cryptKey != null && !cryptKey.isEmpty()) {
+			is = new GZIPInputStream(new GcmStreams.GcmInputStream(cryptKey, pin));
+		} else {
+			pin.unread(magic, 0, n);
+			is = new GZIPInputStream(maybeDecryptStream(cryptKey, pin));
+		}
 		try {
 			writeStreamToFile(is, file);
 		} finally {
@@ -324,14 +498,17 @@ public class CompileUtils {
 		}
 	}
 
-	static void encryptPayload(String moduleName, String cryptKey,
+	static void encryptPayload(String moduleName, String cryptKey, PayloadCodec codec,
 			File astFile, File payloadFile) throws FileNotFoundException,
 			IOException, NoSuchAlgorithmException, NoSuchPaddingException,
 			InvalidKeyException {
 		File tempFile = File.createTempFile("stream", ".tmp", payloadFile.getParentFile());
 		FileOutputStream fo = new FileOutputStream(tempFile);
 		try {
-			fo.write(DistCompile.V1_BYTE);
+			// V1 predates compression, so unencrypted payloads aren't compressed either
+			fo.write(cryptKey != null ? DistCompile.V2_BYTE : DistCompile.V1_BYTE);
+			if(cryptKey != null)
+				fo.write(codec.getId());
 			byte[] moduleNameBytes = moduleName.getBytes();
 			if(moduleNameBytes.length > 127) {
 				System.err.println("Oops, your module name is too long (> 127 bytes).  This system currently doesn't support that.");
@@ -339,7 +516,11 @@ public class CompileUtils {
 			}
 			FileInputStream in = new FileInputStream(astFile);
 			try {
-				OutputStream out = maybeEncryptStream(cryptKey, fo);
+				OutputStream out;
+				if(cryptKey != null)
+					out = codec.compress(new GcmStreams.GcmOutputStream(cryptKey, new BufferedOutputStream(fo)));
+				else
+					out = maybeEncryptStream(cryptKey, fo);
 				try {
 					out.write((byte)moduleNameBytes.length);
 					out.write(moduleNameBytes);
@@ -0,0 +1,158 @@
+package gwtdistcc.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.Permission;
+
+import com.google.gwt.dev.CompilePerms;
+
+/**
+ * Long-lived compiler process started by {@link CompileWorkerPool}.
+ *
+ * Connects back to the build slave on a loopback socket and runs CompilePerms
+ * jobs in this JVM one after another, so the GWT compiler classes stay loaded
+ * and warmed up between permutations.
+ *
+ * Protocol (all values written using DataOutputStream):
+ *
+ * 1. Worker sends its token (UTF) once after connecting, then whether it
+ *    could install the security manager that traps System.exit (boolean);
+ *    if it couldn't, it exits and the slave starts a new JVM for each job instead
+ * 2. Slave sends a job: argument count (int) followed by each argument (UTF)
+ * 3. Worker replies with the exit status (int) and an out of memory flag (boolean)
+ *
+ * The worker exits when the slave closes the connection or after running out of memory.
+ */
+public class CompileWorker {
+
+	static final class ExitTrappedException extends SecurityException {
+		private static final long serialVersionUID = 1L;
+		final int status;
+
+		ExitTrappedException(int status) {
+			super("System.exit("+status+") trapped");
+			this.status = status;
+		}
+	}
+
+	/**
+	 * CompilePerms calls System.exit() when it is done; while a job is running
+	 * we turn that into an exception instead.
+	 */
+	static volatile boolean trapExit;
+
+	public static void main(String[] args) throws IOException {
+		int port = -1;
+		String token = null;
+		for(int i=0; i < args.length; i++) {
+			if(args[i].equals("-port")) {
+				port = Integer.parseInt(args[++i]);
+			} else if(args[i].equals("-token")) {
+				token = args[++i];
+			}
+		}
+		if(port <= 0 || token == null) {
+			System.err.println("Usage: CompileWorker -port <port> -token <token>");
+			System.exit(1);
+			return;
+		}
+
+		Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), port);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		out.writeUTF(token);
+
+		boolean trapping = installExitTrap();
+		out.writeBoolean(trapping);
+		out.flush();
+		if(!trapping) {
+			socket.close();
+			System.exit(1);
+			return;
+		}
+
+		for(;;) {
+			int argc;
+			try {
+				argc = in.readInt();
+			} catch (EOFException e) {
+				break; // Slave closed the connection, we're done
+			}
+			String[] jobArgs = new String[argc];
+			for(int i=0; i < argc; i++) {
+				jobArgs[i] = in.readUTF();
+			}
+
+			int status;
+			boolean outOfMemory = false;
+			trapExit = true;
+			try {
+				CompilePerms.main(jobArgs);
+				status = 0;
+			} catch (ExitTrappedException e) {
+				status = e.status;
+			} catch (OutOfMemoryError e) {
+				outOfMemory = true;
+				status = 1;
+			} catch (Throwable t) {
+				t.printStackTrace();
+				status = 1;
+			} finally {
+				trapExit = false;
+			}
+			// Make sure the log output for this job is out before we report back
+			System.out.flush();
+			System.err.flush();
+
+			out.writeInt(status);
+			out.writeBoolean(outOfMemory);
+			out.flush();
+			if(outOfMemory)
+				break; // Heap may be in a bad state; let the pool start a fresh one
+		}
+		socket.close();
+		System.exit(0);
+	}
+
+	/**
+	 * Install the security manager that turns System.exit() into an
+	 * exception while {@link #trapExit} is set.  Java 18 and later only let
+	 * us if the JVM was started with -Djava.security.manager=allow (see
+	 * {@link CompileWorkerPool#getWorkerJvmArgs()}), and a later Java may not
+	 * at all.
+	 *
+	 * @return false if the JVM wouldn't let us
+	 */
+	static boolean installExitTrap() {
+		try {
+			System.setSecurityManager(new SecurityManager() {
+				@Override
+				public void checkPermission(Permission perm) {
+					// Allow everything
+				}
+				@Override
+				public void checkPermission(Permission perm, Object context) {
+					// Allow everything
+				}
+				@Override
+				public void checkExit(int status) {
+					if(trapExit)
+						throw new ExitTrappedException(status);
+				}
+			});
+			return true;
+		} catch (UnsupportedOperationException e) {
+			System.err.println("Unable to trap System.exit() in the compile worker: "+e);
+			return false;
+		} catch (SecurityException e) {
+			System.err.println("Unable to trap System.exit() in the compile worker: "+e);
+			return false;
+		}
+	}
+}
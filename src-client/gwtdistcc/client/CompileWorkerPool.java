@@ -0,0 +1,240 @@
+package gwtdistcc.client;
+
+import gwtdistcc.client.CompileUtils.RunResult;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of warm {@link CompileWorker} JVMs used to run CompilePerms jobs without
+ * starting a new JVM for every permutation.
+ *
+ * Workers are started lazily with the heap the job asks for, kept around
+ * while idle (up to the pool size, dropping the one idle longest to make
+ * room), and recycled after a number of jobs or when they run out of memory.
+ * A job only goes to an idle worker with the same heap, so modules that need
+ * a bigger heap than the default keep warm workers of their own.
+ */
+public class CompileWorkerPool {
+	static final Logger logger = LoggerFactory.getLogger(CompileWorkerPool.class);
+
+	/**
+	 * How long to wait for a newly launched worker to connect back to us
+	 */
+	private static final int WORKER_CONNECT_TIMEOUT = 60000;
+
+	/**
+	 * How often to check for interruption while waiting for a job to finish
+	 */
+	private static final int JOB_POLL_INTERVAL = 1000;
+
+	/**
+	 * Thrown when workers can't run compiles in this JVM at all, so the
+	 * caller should stop using the pool
+	 */
+	public static final class UnavailableException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		UnavailableException(String message) {
+			super(message);
+		}
+	}
+
+	static final class Worker {
+		final RunResult process;
+		final long heapMB;
+		final Socket socket;
+		final DataInputStream in;
+		final DataOutputStream out;
+		int jobs;
+
+		Worker(RunResult process, long heapMB, Socket socket) throws IOException {
+			this.process = process;
+			this.heapMB = heapMB;
+			this.socket = socket;
+			this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		}
+
+		void shutdown() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Ignore, we're killing it anyway
+			}
+			process.terminateProcess();
+		}
+	}
+
+	final int size;
+	final int maxJobsPerWorker;
+	final ServerSocket serverSocket;
+	final LinkedList<Worker> idleWorkers = new LinkedList<Worker>();
+
+	/**
+	 * @param size Maximum number of idle workers to keep around; this should match the number of local workers
+	 * @param maxJobsPerWorker Number of jobs a worker runs before it is replaced by a fresh one
+	 */
+	public CompileWorkerPool(int size, int maxJobsPerWorker) throws IOException {
+		this.size = size;
+		this.maxJobsPerWorker = maxJobsPerWorker;
+		this.serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+	}
+
+	/**
+	 * Run CompilePerms with the given arguments in a pooled worker with the
+	 * given maximum heap and wait for it to finish.
+	 *
+	 * @param heapMB Maximum heap in megabytes, or -1 for the one in our JVM args
+	 * @return The completed result of the job
+	 * @throws UnavailableException If workers can't run compiles in this JVM
+	 * @throws IOException If the worker could not be started or died while running the job
+	 * @throws InterruptedException If the calling thread was interrupted; the job's worker is killed
+	 */
+	public RunResult compile(long heapMB, String ... args) throws IOException, InterruptedException {
+		Worker w = takeWorker(heapMB);
+		boolean reusable = false;
+		try {
+			w.process.outOfMemoryError = false;
+			w.process.classNotFound = false;
+			w.out.writeInt(args.length);
+			for(String arg : args) {
+				w.out.writeUTF(arg);
+			}
+			w.out.flush();
+
+			// Wait for the first byte of the reply while watching for interruption
+			w.socket.setSoTimeout(JOB_POLL_INTERVAL);
+			int first;
+			for(;;) {
+				if(Thread.interrupted())
+					throw new InterruptedException();
+				try {
+					first = w.in.read();
+					break;
+				} catch (SocketTimeoutException e) {
+					// Still compiling
+				}
+			}
+			if(first == -1)
+				throw new IOException("Compile worker exited unexpectedly");
+			w.socket.setSoTimeout(0);
+			int status = (first << 24) | (w.in.readUnsignedByte() << 16) | (w.in.readUnsignedByte() << 8) | w.in.readUnsignedByte();
+			boolean outOfMemory = w.in.readBoolean();
+			w.jobs++;
+
+			RunResult result = new RunResult();
+			result.exitValue = status;
+			result.outOfMemoryError = outOfMemory || w.process.outOfMemoryError;
+			result.classNotFound = w.process.classNotFound;
+			reusable = !result.outOfMemoryError && w.jobs < maxJobsPerWorker;
+			return result;
+		} finally {
+			if(reusable)
+				releaseWorker(w);
+			else
+				w.shutdown();
+		}
+	}
+
+	/**
+	 * Shut down all idle workers
+	 */
+	public void shutdown() {
+		synchronized(idleWorkers) {
+			for(Worker w : idleWorkers) {
+				w.shutdown();
+			}
+			idleWorkers.clear();
+		}
+	}
+
+	private Worker takeWorker(long heapMB) throws IOException {
+		synchronized(idleWorkers) {
+			for(Iterator<Worker> it = idleWorkers.iterator(); it.hasNext(); ) {
+				Worker w = it.next();
+				if(w.heapMB == heapMB) {
+					it.remove();
+					return w;
+				}
+			}
+		}
+		return startWorker(heapMB);
+	}
+
+	private void releaseWorker(Worker w) {
+		Worker dropped = null;
+		synchronized(idleWorkers) {
+			if(idleWorkers.size() >= size)
+				dropped = idleWorkers.removeFirst();
+			idleWorkers.addLast(w);
+		}
+		if(dropped != null)
+			dropped.shutdown();
+	}
+
+	/**
+	 * JVM args for the workers on top of ours.  From Java 18 on, a JVM only
+	 * lets {@link CompileWorker} install its security manager if it was
+	 * started with -Djava.security.manager=allow; Java 12 to 17 allow it
+	 * anyway but know the flag, and before that "allow" would be taken for
+	 * the name of a security manager class.
+	 */
+	static List<String> getWorkerJvmArgs() {
+		String version = System.getProperty("java.specification.version", "");
+		if(version.startsWith("1."))
+			return Collections.emptyList();
+		try {
+			if(Integer.parseInt(version) < 12)
+				return Collections.emptyList();
+		} catch (NumberFormatException e) {
+			return Collections.emptyList();
+		}
+		return Collections.singletonList("-Djava.security.manager=allow");
+	}
+
+	private Worker startWorker(long heapMB) throws IOException {
+		// Only one worker may be connecting at a time so we know which socket belongs to which process
+		synchronized(serverSocket) {
+			String token = UUID.randomUUID().toString();
+			RunResult process = CompileUtils.launchTool(CompileWorker.class, heapMB, getWorkerJvmArgs(),
+					"-port", String.valueOf(serverSocket.getLocalPort()), "-token", token);
+			serverSocket.setSoTimeout(WORKER_CONNECT_TIMEOUT);
+			try {
+				for(;;) {
+					Socket socket = serverSocket.accept();
+					socket.setSoTimeout(WORKER_CONNECT_TIMEOUT);
+					Worker w = new Worker(process, heapMB, socket);
+					if(token.equals(w.in.readUTF())) {
+						if(!w.in.readBoolean()) {
+							socket.close();
+							throw new UnavailableException("Compile worker can't trap System.exit() in this JVM");
+						}
+						logger.info("Started compile worker with "+(heapMB > 0 ? heapMB+"MB" : "the default")+" heap on port "+socket.getPort());
+						return w;
+					}
+					logger.warn("Rejecting compile worker connection with the wrong token from port "+socket.getPort());
+					socket.close();
+				}
+			} catch (IOException e) {
+				process.terminateProcess();
+				throw e;
+			}
+		}
+	}
+}
@@ -1,25 +1,36 @@
 package gwtdistcc.client;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigDecimal;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.crypto.NoSuchPaddingException;
 
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpException;
 import org.apache.commons.httpclient.HttpStatus;
-import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.HeadMethod;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
@@ -33,10 +44,39 @@ import com.google.gwt.dev.Precompile;
 /**
  * Run Precompile, then send it out to compile, the wait for the build to complete, then Link.
  * 
+ * With -precompileThreads each module is precompiled in its own process, that
+ * many at a time, and uploaded as soon as it is done, so the slaves work on
+ * the first modules while we precompile the rest.
  */
 public class DistCompile {
 	
 	public static final byte V1_BYTE = 33;
+	
+	/**
+	 * Payload made of separately encrypted chunks, see {@link ChunkedPayload}
+	 */
+	public static final byte CHUNKED_BYTE = 34;
+	
+	/**
+	 * Payload encrypted in independently authenticated AES-GCM frames, see {@link GcmStreams}.
+	 * The version byte is followed by the {@link PayloadCodec} id, then the frames.
+	 */
+	public static final byte V2_BYTE = 35;
+	
+	/**
+	 * Chunked payload listing each chunk's id, see {@link ChunkedPayload}
+	 */
+	public static final byte CHUNKED_V2_BYTE = 36;
+	
+	/**
+	 * Upper limit on the size of one chunk upload request
+	 */
+	static final int CHUNK_UPLOAD_BATCH_SIZE = 16*1024*1024;
+
+	/**
+	 * How long we wait for a build after the last module was uploaded
+	 */
+	static final long BUILD_TIMEOUT = 1200000;
 
 
 	static final Logger logger = LoggerFactory.getLogger(DistCompile.class);
@@ -51,7 +91,11 @@ public class DistCompile {
 			"-server",
 			"-queue",
 			"-key",
-			"-label"));
+			"-label",
+			"-downloadThreads",
+			"-precompileThreads",
+			"-linkThreads",
+			"-compress"));
 	static final HashSet<String> COMPILER_ARGS = new HashSet<String>(Arrays.asList(
 			"-workDir", 
 			"-logLevel", 
@@ -79,6 +123,10 @@ public class DistCompile {
 			String buildLabel = "Build"; 
 			TreeSet<String> queues = new TreeSet<String>();
 			String cryptKey = null;
+			int downloadThreads = 4;
+			int precompileThreads = 0;
+			int linkThreads = 0;
+			PayloadCodec codec = PayloadCodec.DEFAULT;
 			ArrayList<String> compileArgs = new ArrayList<String>();
 			ArrayList<String> linkerArgs = new ArrayList<String>();
 			for(int i=0; i < args.length; i++) {
@@ -91,6 +139,18 @@ public class DistCompile {
 						for(String q : args[i+1].split(",")) {
 							queues.add(q.trim());
 						}
+					} else if(args[i].equals("-downloadThreads")) {
+						downloadThreads = Integer.parseInt(args[i+1]);
+					} else if(args[i].equals("-precompileThreads")) {
+						precompileThreads = Integer.parseInt(args[i+1]);
+					} else if(args[i].equals("-linkThreads")) {
+						linkThreads = Integer.parseInt(args[i+1]);
+					} else if(args[i].equals("-compress")) {
+						codec = PayloadCodec.forName(args[i+1]);
+						if(codec == null) {
+							System.err.println("Unknown -compress level "+args[i+1]+"; use none, fast or max.");
+							System.exit(1);
+						}
 					} else if(args[i].equals("-label")) {
 						buildLabel = args[i+1];
 					} else if(args[i].equals("-key")) {
@@ -113,9 +173,7 @@ public class DistCompile {
 						i++; // Skip the argument, too
 					
 				} else {
-					String moduleName = args[i];
-					modules.add(moduleName);
-					compileArgs.add(moduleName);
+					modules.add(args[i]);
 				}
 			}
 			if(modules.isEmpty()) {
@@ -129,105 +187,333 @@ public class DistCompile {
 			long overallStartTime=System.currentTimeMillis();
 			
 			logger.info("Compiling "+StringUtils.join(modules, " and ")+"; workDir is "+workDir+" server is "+server);
-			long precompileStartTime = System.currentTimeMillis();
-			CompileUtils.launchToolAndWaitAndExitOnFailure(Precompile.class, compileArgs.toArray(new String[compileArgs.size()]));
-			long precompileFinishTime = System.currentTimeMillis();
-			
-			
-			long uploadStartTime = System.currentTimeMillis();
 			TreeMap<String,TreeSet<String>> waitingForBuilds = new TreeMap<String, TreeSet<String>>();
 			TreeMap<String,String> moduleNameForBuild = new TreeMap<String, String>();
 			ApiClient apiClient = new ApiClient();
-			for(String moduleName : modules) {
-				String buildId = uploadBuild(server, moduleName, workDir,
-						queues, buildLabel, cryptKey, waitingForBuilds,
-						apiClient);
-				moduleNameForBuild.put(buildId, moduleName);
+			LinkedBlockingQueue<BuildStatusUpdate> statusUpdates = new LinkedBlockingQueue<BuildStatusUpdate>();
+			long precompileStartTime = System.currentTimeMillis();
+			long precompileFinishTime = 0;
+			long uploadStartTime = 0;
+			long uploadEndTime = 0;
+			int modulesPrecompiling = 0;
+			if(precompileThreads > 0) {
+				logger.info("Precompiling up to "+precompileThreads+" modules at a time, uploading each as soon as it is done");
+				ThreadPoolExecutor precompileExecutor = new ThreadPoolExecutor(precompileThreads, precompileThreads,
+						0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+				for(String moduleName : modules) {
+					precompileExecutor.execute(new PipelinedModule(server, moduleName, workDir, compileArgs,
+							queues, buildLabel, cryptKey, codec, apiClient, statusUpdates));
+				}
+				precompileExecutor.shutdown();
+				modulesPrecompiling = modules.size();
+			} else {
+				ArrayList<String> precompileArgs = new ArrayList<String>(compileArgs);
+				precompileArgs.addAll(modules);
+				CompileUtils.launchToolAndWaitAndExitOnFailure(Precompile.class, precompileArgs.toArray(new String[precompileArgs.size()]));
+				precompileFinishTime = System.currentTimeMillis();
+				
+				uploadStartTime = System.currentTimeMillis();
+				for(String moduleName : modules) {
+					String buildId = uploadBuild(server, moduleName, workDir,
+							queues, buildLabel, cryptKey, codec, waitingForBuilds,
+							apiClient);
+					moduleNameForBuild.put(buildId, moduleName);
+				}
+				uploadEndTime = System.currentTimeMillis();
 			}
-			long uploadEndTime = System.currentTimeMillis();
 			
-			long linkingTime=0;
+			if(linkThreads <= 0) {
+				// Each Link gets a heap as big as ours; don't start more than fit in memory
+				linkThreads = CompileUtils.getToolsThatFitInMemory(Math.min(modules.size(), Runtime.getRuntime().availableProcessors()));
+			}
+			logger.info("Linking up to "+linkThreads+" modules at a time");
+			ThreadPoolExecutor linkExecutor = new ThreadPoolExecutor(linkThreads, linkThreads,
+					0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+			TreeMap<String,Future<Long>> links = new TreeMap<String, Future<Long>>();
+			boolean failed = false;
+			ThreadPoolExecutor downloadExecutor = new ThreadPoolExecutor(downloadThreads, downloadThreads,
+					0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+			TreeMap<String,ArrayList<Future<File>>> downloadsForBuild = new TreeMap<String, ArrayList<Future<File>>>();
 			TreeSet<String> knownStatus = new TreeSet<String>();
 			// Now wait for the build to finish
 			long buildStartTime = System.currentTimeMillis();
-			long timeout = buildStartTime + 1200000;
-			while(!waitingForBuilds.isEmpty() && System.currentTimeMillis() < timeout) {
-				Thread.sleep(5000);
-				for(Map.Entry<String,TreeSet<String>> buildEntry : new ArrayList<Map.Entry<String,TreeSet<String>>>(waitingForBuilds.entrySet())) {
-					String buildId = buildEntry.getKey();
-					String moduleName = moduleNameForBuild.get(buildId);
-					TreeSet<String> waitingForPermutations = buildEntry.getValue();
-					HeadMethod req = apiClient.getBuildStatus(server, buildId);
-					
-					logPermutationStatusIfChanged(req, knownStatus, moduleName, waitingForPermutations);
-					
-					if(req.getStatusCode() != HttpStatus.SC_OK) {
-						if(req.getStatusCode() == HttpStatus.SC_NOT_FOUND) {
-							logger.error("Build not found on the server, perhaps we got dumped for taking too long? retrying...");
-							uploadBuild(server, moduleName, workDir, queues, buildLabel, cryptKey, waitingForBuilds, apiClient);
-							continue;
-						} else if(req.getStatusCode() == HttpStatus.SC_INTERNAL_SERVER_ERROR) {
-							logger.error("Server returns internal server error, not good.  Will keep trying anyway, just in case its a temporary issue.");
-							continue;
+			long timeout = buildStartTime + BUILD_TIMEOUT;
+			TreeMap<String,BuildStatusWatcher> watchers = new TreeMap<String, BuildStatusWatcher>();
+			for(String buildId : waitingForBuilds.keySet()) {
+				BuildStatusWatcher watcher = new BuildStatusWatcher(server, buildId, apiClient, statusUpdates);
+				watchers.put(buildId, watcher);
+				watcher.start();
+			}
+			// The timeout only counts once everything is uploaded; precompiling a module may take longer than that
+			while(modulesPrecompiling > 0 || (!waitingForBuilds.isEmpty() && System.currentTimeMillis() < timeout)) {
+				BuildStatusUpdate update = modulesPrecompiling > 0
+						? statusUpdates.take()
+						: statusUpdates.poll(timeout - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+				if(update == null)
+					break;
+				String buildId = update.buildId;
+				if(update.exitCode != 0) {
+					logger.error("Failed to precompile and upload "+update.moduleName);
+					System.exit(update.exitCode);
+					return;
+				}
+				if(update.status == null) {
+					// A pipelined module was uploaded; start waiting for it
+					modulesPrecompiling--;
+					uploadEndTime = System.currentTimeMillis();
+					moduleNameForBuild.put(buildId, update.moduleName);
+					waitingForBuilds.put(buildId, update.permutations);
+					BuildStatusWatcher watcher = new BuildStatusWatcher(server, buildId, apiClient, statusUpdates);
+					watchers.put(buildId, watcher);
+					watcher.start();
+					timeout = Math.max(timeout, uploadEndTime + BUILD_TIMEOUT);
+					continue;
+				}
+				TreeSet<String> waitingForPermutations = waitingForBuilds.get(buildId);
+				if(waitingForPermutations == null)
+					continue; // Already done with this build
+				String moduleName = moduleNameForBuild.get(buildId);
+				HeadMethod req = update.status;
+				
+				logPermutationStatusIfChanged(req, knownStatus, moduleName, waitingForPermutations);
+				
+				if(req.getStatusCode() != HttpStatus.SC_OK) {
+					if(req.getStatusCode() == HttpStatus.SC_NOT_FOUND) {
+						logger.error("Build not found on the server, perhaps we got dumped for taking too long? retrying...");
+						uploadBuild(server, moduleName, workDir, queues, buildLabel, cryptKey, codec, waitingForBuilds, apiClient);
+						continue;
+					} else if(req.getStatusCode() == HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+						logger.error("Server returns internal server error, not good.  Will keep trying anyway, just in case its a temporary issue.");
+						continue;
+					} else {
+						logger.error("Error checking build status: "+req.getStatusLine());
+						System.exit(1);
+						return;
+					}
+				}
+				String failedPermsString = req.getResponseHeader("X-Permutations-Failed").getValue();
+				String[] failedPermsStrArray = failedPermsString.split(",");
+				for(String perm : failedPermsStrArray) {
+					if(waitingForPermutations.remove(perm)) {
+						String error = req.getResponseHeader("X-Permutation-"+perm+"-Error").getValue();
+						logger.error("Build failed for for permutation "+perm+" for module "+moduleName+": "+error);
+					}						
+				}
+				String completedPermsString = req.getResponseHeader("X-Permutations-Finished").getValue();
+				String[] completedPermsStrArray = completedPermsString.split(",");
+				for(String perm : completedPermsStrArray) {
+					if(waitingForPermutations.remove(perm)) {
+						File permFile = getPermutationResultFile(workDir, moduleName, perm);
+						if(permFile.exists()) {
+							logger.info("Compile result for permutation "+perm+" for module "+moduleName+" found on disk, not (re-)downloading.");
 						} else {
-							logger.error("Error checking build status: "+req.getStatusLine());
-							System.exit(1);
-							return;
+							if(!downloadsForBuild.containsKey(buildId))
+								downloadsForBuild.put(buildId, new ArrayList<Future<File>>());
+							downloadsForBuild.get(buildId).add(downloadExecutor.submit(new ResultDownload(server, cryptKey, buildId, moduleName, perm, permFile, apiClient, downloadExecutor)));
 						}
-					}
-					String failedPermsString = req.getResponseHeader("X-Permutations-Failed").getValue();
-					String[] failedPermsStrArray = failedPermsString.split(",");
-					for(String perm : failedPermsStrArray) {
-						if(waitingForPermutations.remove(perm)) {
-							String error = req.getResponseHeader("X-Permutation-"+perm+"-Error").getValue();
-							logger.error("Build failed for for permutation "+perm+" for module "+moduleName+": "+error);
-						}						
-					}
-					String completedPermsString = req.getResponseHeader("X-Permutations-Finished").getValue();
-					String[] completedPermsStrArray = completedPermsString.split(",");
-					for(String perm : completedPermsStrArray) {
-						if(waitingForPermutations.remove(perm)) {
-							File permFile = getPermutationResultFile(workDir, moduleName, perm);
-							if(permFile.exists()) {
-								logger.info("Compile result for permutation "+perm+" for module "+moduleName+" found on disk, not (re-)downloading.");
+						if(waitingForPermutations.isEmpty()) {
+							waitingForBuilds.remove(buildId);
+							watchers.get(buildId).finish();
+							if(failedPermsStrArray.length > 0 && !failedPermsStrArray[0].isEmpty()) {
+								logger.error("One or more permutations of "+moduleName+" failed to compile.  Not linking.");
+								failed = true;
 							} else {
-								downloadBuildResult(server, cryptKey, buildId, perm, permFile, apiClient);
-							}
-							if(waitingForPermutations.isEmpty()) {
-								waitingForBuilds.remove(buildId);
-								if(failedPermsStrArray.length > 0 && !failedPermsStrArray[0].isEmpty()) {
-									logger.error("One or more permutations of "+moduleName+" failed to compile.  Not linking.");
-								} else {
-									logger.info("Got all permutations back for "+moduleName+"; linking....");
-									
-									long linkStartTime = System.currentTimeMillis();
-									linkModule(linkerArgs, moduleName);
-									linkingTime += System.currentTimeMillis() - linkStartTime;
-									
-									if(waitingForBuilds.isEmpty()) {
-										logger.info("Build complete."
-												+ "\ntotal time: "+elapsed(overallStartTime, System.currentTimeMillis())
-												+ "\nprecompile: "+elapsed(precompileStartTime, precompileFinishTime)
-												+ "\nuploading:  "+elapsed(uploadStartTime, uploadEndTime)
-												+ "\nbuilding:   "+elapsed(buildStartTime, System.currentTimeMillis()));
-									}
-								}
+								// Link in the background so we keep watching the other builds meanwhile
+								links.put(moduleName, linkExecutor.submit(new ModuleLink(linkerArgs, moduleName, downloadsForBuild.remove(buildId))));
 							}
 						}
 					}
-					if(!waitingForPermutations.isEmpty() && "true".equals(req.getResponseHeader("X-Complete").getValue())) {
-						logger.error("Server returns build done, but we didn't get all the permutations we were expecting!");
-						System.exit(1);
-						return;
-					}
+				}
+				if(!waitingForPermutations.isEmpty() && "true".equals(req.getResponseHeader("X-Complete").getValue())) {
+					logger.error("Server returns build done, but we didn't get all the permutations we were expecting!");
+					System.exit(1);
+					return;
 				}
 			}
+			long buildEndTime = System.currentTimeMillis();
+			StringBuilder linkTimes = new StringBuilder();
+			for(Map.Entry<String, Future<Long>> link : links.entrySet()) {
+				linkTimes.append("\nlinking "+link.getKey()+": "+elapsed(0, link.getValue().get()));
+			}
+			if(!failed && waitingForBuilds.isEmpty() && modulesPrecompiling == 0) {
+				logger.info("Build complete."
+						+ "\ntotal time: "+elapsed(overallStartTime, System.currentTimeMillis())
+						+ (precompileThreads > 0
+								? "\nprecompile and upload (pipelined): "+elapsed(precompileStartTime, uploadEndTime)
+								: "\nprecompile: "+elapsed(precompileStartTime, precompileFinishTime)
+								+ "\nuploading:  "+elapsed(uploadStartTime, uploadEndTime))
+						+ "\nbuilding:   "+elapsed(buildStartTime, buildEndTime)
+						+ linkTimes);
+			}
+			linkExecutor.shutdown();
+			downloadExecutor.shutdown();
 		} catch (Exception e) {
 			e.printStackTrace();
 			System.exit(1);
 		}
 	}
 
+	/**
+	 * A build status response received by a {@link BuildStatusWatcher}, or a
+	 * build just uploaded (or failed to be) by a {@link PipelinedModule}
+	 */
+	static final class BuildStatusUpdate {
+		final String buildId;
+		final HeadMethod status;
+		final String moduleName;
+		final TreeSet<String> permutations;
+		final int exitCode;
+
+		BuildStatusUpdate(String buildId, HeadMethod status) {
+			this.buildId = buildId;
+			this.status = status;
+			this.moduleName = null;
+			this.permutations = null;
+			this.exitCode = 0;
+		}
+
+		/**
+		 * A newly uploaded build of the module, which has the given permutations
+		 */
+		BuildStatusUpdate(String buildId, String moduleName, TreeSet<String> permutations) {
+			this.buildId = buildId;
+			this.status = null;
+			this.moduleName = moduleName;
+			this.permutations = permutations;
+			this.exitCode = 0;
+		}
+
+		/**
+		 * The module could not be precompiled or uploaded; we should exit
+		 * with the given (non-zero) code
+		 */
+		BuildStatusUpdate(String moduleName, int exitCode) {
+			this.buildId = null;
+			this.status = null;
+			this.moduleName = moduleName;
+			this.permutations = null;
+			this.exitCode = exitCode;
+		}
+	}
+
+	/**
+	 * Precompiles one module in its own process and uploads it, then tells the
+	 * main thread about the new build.  Any failure is passed on to the main
+	 * thread, which ends the compile as a failed Precompile does when all
+	 * modules are precompiled together.
+	 */
+	static final class PipelinedModule implements Runnable {
+		final String server;
+		final String moduleName;
+		final File workDir;
+		final List<String> compileArgs;
+		final TreeSet<String> queues;
+		final String buildLabel;
+		final String cryptKey;
+		final PayloadCodec codec;
+		final ApiClient apiClient;
+		final BlockingQueue<BuildStatusUpdate> updates;
+
+		PipelinedModule(String server, String moduleName, File workDir,
+				List<String> compileArgs, TreeSet<String> queues, String buildLabel,
+				String cryptKey, PayloadCodec codec, ApiClient apiClient,
+				BlockingQueue<BuildStatusUpdate> updates) {
+			this.server = server;
+			this.moduleName = moduleName;
+			this.workDir = workDir;
+			this.compileArgs = compileArgs;
+			this.queues = queues;
+			this.buildLabel = buildLabel;
+			this.cryptKey = cryptKey;
+			this.codec = codec;
+			this.apiClient = apiClient;
+			this.updates = updates;
+		}
+
+		@Override
+		public void run() {
+			try {
+				long startTime = System.currentTimeMillis();
+				String[] precompileArgs = compileArgs.toArray(new String[compileArgs.size()+1]);
+				precompileArgs[precompileArgs.length-1] = moduleName;
+				int rc = CompileUtils.launchToolAndWait(Precompile.class, precompileArgs);
+				if(rc != 0) {
+					updates.put(new BuildStatusUpdate(moduleName, rc));
+					return;
+				}
+				long precompileFinishTime = System.currentTimeMillis();
+				
+				TreeMap<String,TreeSet<String>> uploaded = new TreeMap<String, TreeSet<String>>();
+				String buildId = uploadBuild(server, moduleName, workDir, queues, buildLabel, cryptKey, codec, uploaded, apiClient);
+				logger.info("Precompiled "+moduleName+" in "+elapsed(startTime, precompileFinishTime)
+						+" and uploaded it in "+elapsed(precompileFinishTime, System.currentTimeMillis()));
+				updates.put(new BuildStatusUpdate(buildId, moduleName, uploaded.get(buildId)));
+			} catch (Throwable t) {
+				t.printStackTrace();
+				updates.add(new BuildStatusUpdate(moduleName, 1));
+			}
+		}
+	}
+
+	/**
+	 * Waits on the server for status changes of one build and passes each
+	 * response on to the main thread as soon as it arrives.
+	 */
+	static final class BuildStatusWatcher extends Thread {
+		/**
+		 * Number of seconds we ask the server to hold a status request open
+		 */
+		static final int STATUS_WAIT = 20;
+
+		final String server;
+		final String buildId;
+		final ApiClient apiClient;
+		final BlockingQueue<BuildStatusUpdate> updates;
+		volatile boolean finished;
+
+		BuildStatusWatcher(String server, String buildId, ApiClient apiClient,
+				BlockingQueue<BuildStatusUpdate> updates) {
+			super("status-"+buildId);
+			this.server = server;
+			this.buildId = buildId;
+			this.apiClient = apiClient;
+			this.updates = updates;
+			setDaemon(true);
+		}
+
+		public void finish() {
+			finished = true;
+			interrupt();
+		}
+
+		@Override
+		public void run() {
+			long version = 0;
+			while(!finished) {
+				try {
+					HeadMethod req = apiClient.getBuildStatus(server, buildId, version, STATUS_WAIT);
+					updates.put(new BuildStatusUpdate(buildId, req));
+					Header versionHeader = req.getResponseHeader("X-Status-Version");
+					if(req.getStatusCode() != HttpStatus.SC_OK || versionHeader == null) {
+						// Something went wrong, or the server can't wait for changes; don't hammer it
+						Thread.sleep(5000);
+					} else {
+						version = Long.parseLong(versionHeader.getValue());
+					}
+				} catch (InterruptedException e) {
+					return;
+				} catch (IOException e) {
+					logger.warn("Error checking build status: "+e);
+					try {
+						Thread.sleep(5000);
+					} catch (InterruptedException ie) {
+						return;
+					}
+				}
+			}
+		}
+	}
+
 	private static String elapsed(long startTime, long endTime) {
 		String elapsed = BigDecimal.valueOf(endTime-startTime).movePointLeft(3).toPlainString()+"s";
 		return elapsed;
@@ -249,18 +535,95 @@ public class DistCompile {
 		CompileUtils.launchToolAndWaitAndExitOnFailure(Link.class, moduleLinkArgs);
 	}
 
+	/**
+	 * Waits for the downloads of a module's permutations, then links it.
+	 * 
+	 * @return Milliseconds spent linking
+	 */
+	static final class ModuleLink implements Callable<Long> {
+		final ArrayList<String> linkerArgs;
+		final String moduleName;
+		final List<Future<File>> downloads;
+
+		/**
+		 * @param downloads Downloads of the permutations we didn't have yet, or null if there are none
+		 */
+		ModuleLink(ArrayList<String> linkerArgs, String moduleName, List<Future<File>> downloads) {
+			this.linkerArgs = linkerArgs;
+			this.moduleName = moduleName;
+			this.downloads = downloads;
+		}
+
+		@Override
+		public Long call() throws Exception {
+			if(downloads != null) {
+				logger.info("All permutations of "+moduleName+" compiled; waiting for downloads to finish....");
+				for(Future<File> download : downloads) {
+					download.get();
+				}
+			}
+			logger.info("Got all permutations back for "+moduleName+"; linking....");
+			long linkStartTime = System.currentTimeMillis();
+			linkModule(linkerArgs, moduleName);
+			long linkEndTime = System.currentTimeMillis();
+			logger.info("Linked "+moduleName+" in "+elapsed(linkStartTime, linkEndTime));
+			return linkEndTime - linkStartTime;
+		}
+	}
+
+	/**
+	 * Downloads and decrypts one permutation result, logging progress as it goes.
+	 */
+	static final class ResultDownload implements Callable<File> {
+		final String server;
+		final String cryptKey;
+		final String buildId;
+		final String moduleName;
+		final String perm;
+		final File permFile;
+		final ApiClient apiClient;
+		final ThreadPoolExecutor executor;
+
+		ResultDownload(String server, String cryptKey, String buildId,
+				String moduleName, String perm, File permFile, ApiClient apiClient,
+				ThreadPoolExecutor executor) {
+			this.server = server;
+			this.cryptKey = cryptKey;
+			this.buildId = buildId;
+			this.moduleName = moduleName;
+			this.perm = perm;
+			this.permFile = permFile;
+			this.apiClient = apiClient;
+			this.executor = executor;
+		}
+
+		@Override
+		public File call() throws Exception {
+			long startTime = System.currentTimeMillis();
+			downloadBuildResult(server, cryptKey, buildId, perm, permFile, apiClient);
+			logger.info("Downloaded permutation "+perm+" of "+moduleName+" ("+permFile.length()+" bytes) in "+elapsed(startTime, System.currentTimeMillis())
+					+"; "+(executor.getCompletedTaskCount()+1)+" of "+executor.getTaskCount()+" downloads done");
+			return permFile;
+		}
+	}
+
 	private static void downloadBuildResult(String server, String cryptKey,
 			String buildId, String perm, File permFile, ApiClient apiClient)
-			throws HttpException, IOException, Error, FileNotFoundException {
+			throws HttpException, IOException, Error, FileNotFoundException, ApiException {
 		logger.info("Downloading permutation "+perm);
-		GetMethod dlreq = new GetMethod(server+"/build-result?id="+buildId+"&perm="+perm);
-		apiClient.executeMethod(dlreq);
-		if(dlreq.getStatusCode() != HttpStatus.SC_OK) {
-			logger.error("Error trying to download permutation "+perm+": "+dlreq.getStatusLine());
-			System.exit(1);
-			return;
+		// Download it encrypted first, so a broken download can be resumed and checked
+		File cipherTextFile = new File(permFile.getPath()+".encrypted");
+		try {
+			apiClient.download(server+"/build-result?id="+buildId+"&perm="+perm, cipherTextFile);
+			InputStream in = new FileInputStream(cipherTextFile);
+			try {
+				CompileUtils.decryptStreamToFile(cryptKey, in, permFile);
+			} finally {
+				in.close();
+			}
+		} finally {
+			cipherTextFile.delete();
 		}
-		CompileUtils.decryptStreamToFile(cryptKey, dlreq.getResponseBodyAsStream(), permFile);
 	}
 
 	private static void logPermutationStatusIfChanged(HeadMethod req,
@@ -271,7 +634,9 @@ public class DistCompile {
 			sb.append("Permutation ").append(perm);
 			sb.append(" of ").append(moduleName);
 			Header workerHeader = req.getResponseHeader("X-Permutation-"+perm+"-Worker");
-			if(workerHeader != null) {
+			if(req.getResponseHeader("X-Permutation-"+perm+"-Cache-Hit") != null) {
+				sb.append(" taken from the server's result cache.");
+			} else if(workerHeader != null) {
 				Header finishTimeHeader = req.getResponseHeader("X-Permutation-"+perm+"-Finished");
 				Header errorTimeHeader = req.getResponseHeader("X-Permutation-"+perm+"-Error-Time");
 				Header startTimeHeader = req.getResponseHeader("X-Permutation-"+perm+"-Started");
@@ -296,11 +661,51 @@ public class DistCompile {
 				logger.info(sb.toString());
 			}
 		}
+		Header predictedFinishHeader = req.getResponseHeader("X-Predicted-Finish");
+		if(predictedFinishHeader != null && !waitingForPermutations.isEmpty()) {
+			String prediction = moduleName+" is expected to finish compiling at "+predictedFinishHeader.getValue();
+			if(knownStatus.add(prediction))
+				logger.info(prediction);
+		}
+	}
+
+	/**
+	 * Upload the chunks of the payload the server doesn't already have.
+	 */
+	private static void uploadChunks(String server, File payloadFile,
+			List<ChunkedPayload.Chunk> chunks, ApiClient apiClient)
+			throws HttpException, IOException, ApiException {
+		ArrayList<String> chunkIds = new ArrayList<String>();
+		long totalBytes = 0;
+		for(ChunkedPayload.Chunk chunk : chunks) {
+			chunkIds.add(chunk.getId());
+			totalBytes += chunk.getLength();
+		}
+		Set<String> missing = apiClient.findMissingChunks(server, chunkIds);
+		ArrayList<ChunkedPayload.Chunk> batch = new ArrayList<ChunkedPayload.Chunk>();
+		HashSet<String> uploaded = new HashSet<String>();
+		long batchBytes = 0;
+		long uploadBytes = 0;
+		for(ChunkedPayload.Chunk chunk : chunks) {
+			if(!missing.contains(chunk.getId()) || !uploaded.add(chunk.getId()))
+				continue;
+			if(!batch.isEmpty() && batchBytes + chunk.getLength() > CHUNK_UPLOAD_BATCH_SIZE) {
+				apiClient.uploadChunks(server, payloadFile, batch);
+				batch.clear();
+				batchBytes = 0;
+			}
+			batch.add(chunk);
+			batchBytes += chunk.getLength();
+			uploadBytes += chunk.getLength();
+		}
+		if(!batch.isEmpty())
+			apiClient.uploadChunks(server, payloadFile, batch);
+		logger.info("Uploaded "+uploaded.size()+" of "+chunks.size()+" payload chunks ("+uploadBytes+" of "+totalBytes+" bytes); the server had the rest.");
 	}
 
 	private static String uploadBuild(String server, String moduleName,
 			File workDir, TreeSet<String> queues, String buildLabel,
-			String cryptKey, TreeMap<String, TreeSet<String>> waitingForBuilds,
+			String cryptKey, PayloadCodec codec, TreeMap<String, TreeSet<String>> waitingForBuilds,
 			ApiClient apiClient) throws IOException, FileNotFoundException,
 			NoSuchAlgorithmException, NoSuchPaddingException,
 			InvalidKeyException, HttpException {
@@ -309,19 +714,56 @@ public class DistCompile {
 		File permsCountFile = new File(moduleCompileDir, "permCount.txt");
 		int permCount = Integer.parseInt(IOUtils.toString(new FileReader(permsCountFile)).trim());
 		File astFile = new File(moduleCompileDir, Precompile.PRECOMPILE_FILENAME);
-		String buildId = CompileUtils.digestFile(cryptKey.getBytes(), astFile);
+		
+		// Hash and copy the AST for the build folder while writing the payload, so we only read it once.
+		// We don't know the build folder until we have the hash, so stage them in the work dir.
+		MessageDigest astDigest = MessageDigest.getInstance("SHA1");
+		astDigest.update(cryptKey.getBytes());
+		File stagedPayloadFile = File.createTempFile("payload", ".tmp", workDir);
+		File stagedAstFile = File.createTempFile("ast", ".tmp", workDir);
+		List<ChunkedPayload.Chunk> chunks = ChunkedPayload.write(moduleName, cryptKey, codec, astFile, stagedPayloadFile, astDigest, stagedAstFile);
+		String buildId = new String(Hex.encodeHex(astDigest.digest()));
 		
 		File buildDir = new File(workDir, buildId);
 		if(!buildDir.mkdirs() && !buildDir.exists()) {
 			throw new Error("Failed to create folder "+buildDir);
 		}
 		File payloadFile = new File(buildDir, "payload");
-		CompileUtils.encryptPayload(moduleName, cryptKey, astFile, payloadFile);
+		if(payloadFile.exists() && !payloadFile.delete()) {
+			throw new IOException("Failed to delete old payload file "+payloadFile);
+		}
+		if(!stagedPayloadFile.renameTo(payloadFile)) {
+			throw new IOException("Failed to rename staged payload "+stagedPayloadFile+" to "+payloadFile);
+		}
+		// Put the precompiled module where a build slave sharing our work dir will look for it.
+		// It is copied, not linked: the next precompile rewrites moduleDir in place.
 		File buildModuleDir = new File(buildDir, moduleName);
-		FileUtils.copyDirectoryToDirectory(moduleDir, buildModuleDir);
+		copyModuleDir(moduleDir, buildModuleDir, astFile);
+		File buildAstFile = new File(new File(buildModuleDir, "compiler"), Precompile.PRECOMPILE_FILENAME);
+		if(buildAstFile.exists() && !buildAstFile.delete()) {
+			throw new IOException("Failed to delete old AST "+buildAstFile);
+		}
+		if(!stagedAstFile.renameTo(buildAstFile)) {
+			throw new IOException("Failed to rename staged AST "+stagedAstFile+" to "+buildAstFile);
+		}
 		
 		try {
-			apiClient.addBuild(server, buildLabel, buildId, queues.toArray(new String[queues.size()]), permCount, payloadFile);
+			try {
+				uploadChunks(server, payloadFile, chunks, apiClient);
+				ArrayList<String> chunkIds = new ArrayList<String>();
+				for(ChunkedPayload.Chunk chunk : chunks) {
+					chunkIds.add(chunk.getId());
+				}
+				apiClient.addChunkedBuild(server, buildLabel, moduleName, buildId, queues.toArray(new String[queues.size()]), permCount, chunkIds);
+			} catch(ApiException ae) {
+				// Servers that don't know chunks, or these chunk ids, get the whole payload
+				if(ae.getStatusCode() != HttpStatus.SC_NOT_FOUND && ae.getStatusCode() != HttpStatus.SC_METHOD_NOT_ALLOWED
+						&& ae.getStatusCode() != HttpStatus.SC_BAD_REQUEST)
+					throw ae;
+				logger.info("Server doesn't support chunked uploads, uploading the whole payload.");
+				CompileUtils.encryptPayload(moduleName, cryptKey, codec, astFile, payloadFile);
+				apiClient.addBuild(server, buildLabel, moduleName, buildId, queues.toArray(new String[queues.size()]), permCount, payloadFile);
+			}
 		} catch(ApiException ae) {
 			if(ae.getStatusCode() == HttpStatus.SC_CONFLICT) {
 				logger.info("Build appears to have already been uploaded, previous build results might be re-used.");
@@ -343,4 +785,26 @@ public class DistCompile {
 		waitingForBuilds.put(buildId, waitingForPermutations);
 		return buildId;
 	}
+
+	/**
+	 * Copy the files of a precompiled module to destDir, all but the AST,
+	 * which {@link #uploadBuild} copies while it reads it for the payload
+	 */
+	private static void copyModuleDir(File srcDir, File destDir, File astFile) throws IOException {
+		if(!destDir.isDirectory() && !destDir.mkdirs()) {
+			throw new IOException("Failed to create folder "+destDir);
+		}
+		File[] files = srcDir.listFiles();
+		if(files == null) {
+			throw new IOException("Failed to list files in "+srcDir);
+		}
+		for(File src : files) {
+			File dest = new File(destDir, src.getName());
+			if(src.isDirectory()) {
+				copyModuleDir(src, dest, astFile);
+			} else if(!src.equals(astFile)) {
+				FileUtils.copyFile(src, dest);
+			}
+		}
+	}
 }
@@ -0,0 +1,313 @@
+package gwtdistcc.client;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * V2 stream encryption: the data is cut into frames which are encrypted and
+ * authenticated separately with AES-GCM, so they can be processed on all
+ * cores and each one is checked as it streams in.
+ *
+ * Layout:
+ *
+ * 1. Header: plain text frame size (int)
+ * 2. For each frame: index (int), flags (byte), length (int), IV (12 bytes), cipher text with tag
+ *
+ * The frame index and flags are authenticated along with the data, so frames
+ * can't be reordered, and the last frame is flagged so truncation is detected.
+ */
+public class GcmStreams {
+	static final int FRAME_SIZE = 1024*1024;
+	static final int TAG_BITS = 128;
+	static final int IV_SIZE = 12;
+	static final byte LAST_FRAME = 1;
+
+	static final SecureRandom random = new SecureRandom();
+	private static ExecutorService executor;
+
+	/**
+	 * Thread pool shared by all streams for encrypting and decrypting frames
+	 */
+	static synchronized ExecutorService getExecutor() {
+		if(executor == null) {
+			executor = Executors.newFixedThreadPool(getParallelism(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "crypto");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return executor;
+	}
+
+	static int getParallelism() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	static SecretKeySpec getKey(String cryptKey) {
+		return new SecretKeySpec(DigestUtils.md5(cryptKey), "AES");
+	}
+
+	static Cipher getCipher() {
+		try {
+			return Cipher.getInstance("AES/GCM/NoPadding");
+		} catch (GeneralSecurityException e) {
+			throw new Error(e); // Should be there
+		}
+	}
+
+	static byte[] aad(int index, byte flags) {
+		return new byte[] {(byte)(index >>> 24), (byte)(index >>> 16), (byte)(index >>> 8), (byte)index, flags};
+	}
+
+	static final class Frame {
+		final int index;
+		final byte flags;
+		final byte[] iv;
+		final byte[] data;
+
+		Frame(int index, byte flags, byte[] iv, byte[] data) {
+			this.index = index;
+			this.flags = flags;
+			this.iv = iv;
+			this.data = data;
+		}
+	}
+
+	static <T> T await(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while waiting for encryption", e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Encrypts everything written to it into V2 frames, using all cores.
+	 */
+	public static final class GcmOutputStream extends OutputStream {
+		final DataOutputStream out;
+		final SecretKeySpec key;
+		final LinkedList<Future<Frame>> pending = new LinkedList<Future<Frame>>();
+		byte[] buf = new byte[FRAME_SIZE];
+		int len;
+		/**
+		 * A full frame we can't submit yet because we don't know whether it's the last one
+		 */
+		byte[] held;
+		int index;
+
+		public GcmOutputStream(String cryptKey, OutputStream out) throws IOException {
+			this.out = new DataOutputStream(out);
+			this.key = getKey(cryptKey);
+			this.out.writeInt(FRAME_SIZE);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			buf[len++] = (byte)b;
+			if(len == FRAME_SIZE)
+				bufferFull();
+		}
+
+		@Override
+		public void write(byte[] b, int off, int n) throws IOException {
+			while(n > 0) {
+				int count = Math.min(n, FRAME_SIZE - len);
+				System.arraycopy(b, off, buf, len, count);
+				len += count;
+				off += count;
+				n -= count;
+				if(len == FRAME_SIZE)
+					bufferFull();
+			}
+		}
+
+		private void bufferFull() throws IOException {
+			if(held != null)
+				submit(held, (byte)0);
+			held = buf;
+			buf = new byte[FRAME_SIZE];
+			len = 0;
+		}
+
+		private void submit(final byte[] plain, final byte flags) throws IOException {
+			final int frameIndex = index++;
+			pending.add(getExecutor().submit(new Callable<Frame>() {
+				@Override
+				public Frame call() throws Exception {
+					byte[] iv = new byte[IV_SIZE];
+					random.nextBytes(iv);
+					Cipher cipher = getCipher();
+					cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+					cipher.updateAAD(aad(frameIndex, flags));
+					return new Frame(frameIndex, flags, iv, cipher.doFinal(plain));
+				}
+			}));
+			// Don't get too far ahead of the output
+			while(pending.size() > 2*getParallelism()) {
+				writeFrame(await(pending.removeFirst()));
+			}
+		}
+
+		private void writeFrame(Frame frame) throws IOException {
+			out.writeInt(frame.index);
+			out.writeByte(frame.flags);
+			out.writeInt(frame.data.length);
+			out.write(frame.iv);
+			out.write(frame.data);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if(len > 0) {
+				if(held != null)
+					submit(held, (byte)0);
+				held = Arrays.copyOf(buf, len);
+			} else if(held == null) {
+				held = new byte[0];
+			}
+			submit(held, LAST_FRAME);
+			while(!pending.isEmpty()) {
+				writeFrame(await(pending.removeFirst()));
+			}
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads and decrypts V2 frames, decrypting frames ahead of the reader on all cores.
+	 */
+	public static final class GcmInputStream extends InputStream {
+		final DataInputStream in;
+		final SecretKeySpec key;
+		final int frameSize;
+		final LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+		int nextIndex;
+		boolean sawLast;
+		byte[] current;
+		int pos;
+
+		public GcmInputStream(String cryptKey, InputStream in) throws IOException {
+			this.in = new DataInputStream(in);
+			this.key = getKey(cryptKey);
+			this.frameSize = this.in.readInt();
+			if(frameSize <= 0) {
+				throw new IOException("Bad frame size "+frameSize+"; data is corrupted.");
+			}
+		}
+
+		private void readAhead() throws IOException {
+			while(!sawLast && pending.size() < 2*getParallelism()) {
+				final int index;
+				final byte flags;
+				final byte[] iv = new byte[IV_SIZE];
+				final byte[] data;
+				try {
+					index = in.readInt();
+					if(index != nextIndex) {
+						throw new IOException("Expected encrypted chunk "+nextIndex+" but got "+index+"; data is corrupted.");
+					}
+					flags = in.readByte();
+					int length = in.readInt();
+					if(length < 0 || length > frameSize + TAG_BITS/8) {
+						throw new IOException("Encrypted chunk "+index+" has bad length "+length+"; data is corrupted.");
+					}
+					in.readFully(iv);
+					data = new byte[length];
+					in.readFully(data);
+				} catch (EOFException e) {
+					throw new IOException("Encrypted data is truncated after "+nextIndex+" chunks.");
+				}
+				nextIndex++;
+				if((flags & LAST_FRAME) != 0) {
+					sawLast = true;
+					if(in.read() != -1) {
+						throw new IOException("Unexpected data after the last encrypted chunk.");
+					}
+				}
+				pending.add(getExecutor().submit(new Callable<byte[]>() {
+					@Override
+					public byte[] call() throws Exception {
+						Cipher cipher = getCipher();
+						cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+						cipher.updateAAD(aad(index, flags));
+						try {
+							return cipher.doFinal(data);
+						} catch (AEADBadTagException e) {
+							throw new IOException("Encrypted chunk "+index+" failed its integrity check; wrong key or corrupted data.");
+						}
+					}
+				}));
+			}
+		}
+
+		/**
+		 * @return false at the end of the stream
+		 */
+		private boolean nextFrame() throws IOException {
+			while(current == null || pos >= current.length) {
+				readAhead();
+				if(pending.isEmpty())
+					return false;
+				current = await(pending.removeFirst());
+				pos = 0;
+			}
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if(!nextFrame())
+				return -1;
+			return current[pos++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int n) throws IOException {
+			if(n == 0)
+				return 0;
+			if(!nextFrame())
+				return -1;
+			int count = Math.min(n, current.length - pos);
+			System.arraycopy(current, pos, b, off, count);
+			pos += count;
+			return count;
+		}
+
+		@Override
+		public void close() throws IOException {
+			for(Future<byte[]> f : pending) {
+				f.cancel(false);
+			}
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package gwtdistcc.client;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Picks the maximum heap of each CompilePerms run, and learns from the runs
+ * that run out of memory.
+ *
+ * A module's first run gets the bigger of the default heap (the -Xmx we pass
+ * on to our compiles) and an estimate from the size of its precompiled AST.
+ * A run that runs out of memory is tried again with twice the heap, as long
+ * as that fits in the memory available right now and, together with the
+ * other retries running, within the ceiling; only then is the permutation
+ * handed back.  The heap that worked is remembered for the module in
+ * heap-sizes.properties in the work dir, so later builds of it start there,
+ * across restarts.
+ */
+public class HeapSizer {
+	static final Logger logger = LoggerFactory.getLogger(HeapSizer.class);
+
+	static final String FILE_NAME = "heap-sizes.properties";
+
+	/**
+	 * Heap a compile needs for each byte of precompiled AST.  This is a guess,
+	 * not a measurement; modules it is too low for run out of memory once and
+	 * the heap that worked is learned from then on.
+	 */
+	static final long AST_HEAP_FACTOR = 12;
+
+	final File file;
+	final Properties learned = new Properties();
+	final long defaultMB;
+	final long ceilingMB;
+	/**
+	 * Heap of the retries running now, which may not be in use yet
+	 */
+	long reservedMB;
+
+	/**
+	 * @param ceilingMB Largest heap to give a compile, or -1 for 3/4 of physical memory
+	 */
+	public HeapSizer(File workDir, long ceilingMB) {
+		this.file = new File(workDir, FILE_NAME);
+		this.defaultMB = CompileUtils.getToolHeapSize() / (1024*1024);
+		if(ceilingMB <= 0) {
+			long memory = CompileUtils.getTotalPhysicalMemory();
+			ceilingMB = memory > 0 ? memory / (1024*1024) * 3 / 4 : defaultMB;
+		}
+		this.ceilingMB = Math.max(ceilingMB, defaultMB);
+		if(file.exists()) {
+			try {
+				InputStream in = new FileInputStream(file);
+				try {
+					learned.load(in);
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				logger.warn("Unable to read learned heap sizes from "+file, e);
+			}
+		}
+	}
+
+	/**
+	 * Heap compiles get unless we ask for more
+	 */
+	public long getDefaultMB() {
+		return defaultMB;
+	}
+
+	/**
+	 * Largest heap we give a compile
+	 */
+	public long getCeilingMB() {
+		return ceilingMB;
+	}
+
+	/**
+	 * @return Heap in megabytes for the module's first attempt
+	 */
+	public synchronized long getInitialMB(String moduleName, long astBytes) {
+		long heap = Math.max(defaultMB, astBytes * AST_HEAP_FACTOR / (1024*1024));
+		String learnedMB = learned.getProperty(moduleName);
+		if(learnedMB != null) {
+			try {
+				heap = Math.max(heap, Long.parseLong(learnedMB));
+			} catch (NumberFormatException e) {
+				// Ignore it
+			}
+		}
+		return Math.min(heap, ceilingMB);
+	}
+
+	/**
+	 * Reserve the heap to try again with after running out of memory with the
+	 * given heap.  The caller must pass it to {@link #releaseRetry(long)} once
+	 * the retry is done.
+	 *
+	 * @return Heap in megabytes to try again with, or -1 if we can't give it more
+	 */
+	public synchronized long reserveRetry(long heapMB) {
+		long bigger = Math.min(heapMB * 2, ceilingMB);
+		if(bigger <= heapMB)
+			return -1;
+		// Other retries may not be using their heaps yet, so the memory
+		// available doesn't show them; limit the heaps of all retries together
+		if(reservedMB + bigger > ceilingMB) {
+			logger.info(reservedMB+"MB heap is reserved by other retries; not enough left of "+ceilingMB+"MB to try again with "+bigger+"MB heap");
+			return -1;
+		}
+		long available = CompileUtils.getAvailablePhysicalMemory();
+		if(available >= 0 && available / (1024*1024) < bigger) {
+			logger.info("Only "+(available / (1024*1024))+"MB memory available; not enough to try again with "+bigger+"MB heap");
+			return -1;
+		}
+		reservedMB += bigger;
+		return bigger;
+	}
+
+	/**
+	 * Give back the heap reserved for a retry by {@link #reserveRetry(long)}
+	 */
+	public synchronized void releaseRetry(long heapMB) {
+		reservedMB = Math.max(0, reservedMB - heapMB);
+	}
+
+	/**
+	 * Remember that the module needed the given heap after running out of
+	 * memory with less, if it is more than we knew it needs
+	 */
+	public synchronized void succeeded(String moduleName, long heapMB) {
+		if(heapMB <= getInitialMB(moduleName, 0))
+			return;
+		learned.setProperty(moduleName, String.valueOf(heapMB));
+		try {
+			File tempFile = File.createTempFile("heap-sizes", ".tmp", file.getParentFile());
+			OutputStream out = new FileOutputStream(tempFile);
+			try {
+				learned.store(out, "Heap in MB each module needed to compile");
+			} finally {
+				out.close();
+			}
+			if((file.exists() && !file.delete()) || !tempFile.renameTo(file)) {
+				tempFile.delete();
+				throw new IOException("Failed to rename "+tempFile+" to "+file);
+			}
+		} catch (IOException e) {
+			logger.warn("Unable to save learned heap sizes to "+file, e);
+		}
+	}
+}
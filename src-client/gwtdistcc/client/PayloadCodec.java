@@ -0,0 +1,142 @@
+package gwtdistcc.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compression applied to the build payload before it is encrypted.
+ *
+ * The codec's id is written to the payload so build slaves can decode it
+ * whatever the client picked; ids must never be reused for a different format.
+ */
+public abstract class PayloadCodec {
+	private static final int BUFFER_SIZE = 64*1024;
+
+	/**
+	 * Stored as is, as before compression was supported
+	 */
+	public static final PayloadCodec NONE = new PayloadCodec(0, "none") {
+		@Override
+		public OutputStream compress(OutputStream out) {
+			return out;
+		}
+
+		@Override
+		public InputStream decompress(InputStream in) {
+			return in;
+		}
+	};
+
+	/**
+	 * Fast deflate, cheap enough to keep up with the upload
+	 */
+	public static final PayloadCodec FAST = new DeflateCodec(1, "fast", Deflater.BEST_SPEED);
+
+	/**
+	 * Slow deflate for the smallest payload, for slow links to the server
+	 */
+	public static final PayloadCodec MAX = new DeflateCodec(2, "max", Deflater.BEST_COMPRESSION);
+
+	private static final PayloadCodec[] CODECS = {NONE, FAST, MAX};
+
+	public static final PayloadCodec DEFAULT = FAST;
+
+	final byte id;
+	final String name;
+
+	PayloadCodec(int id, String name) {
+		this.id = (byte)id;
+		this.name = name;
+	}
+
+	public byte getId() {
+		return id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Wrap the given stream so data written to the result is compressed into it;
+	 * closing the result closes the given stream.
+	 */
+	public abstract OutputStream compress(OutputStream out) throws IOException;
+
+	/**
+	 * Wrap the given stream so reading the result decompresses it;
+	 * closing the result closes the given stream.
+	 */
+	public abstract InputStream decompress(InputStream in) throws IOException;
+
+	/**
+	 * @throws IOException If the id is unknown, usually because the payload was written by a newer client
+	 */
+	public static PayloadCodec forId(int id) throws IOException {
+		for(PayloadCodec codec : CODECS) {
+			if(codec.id == id)
+				return codec;
+		}
+		throw new IOException("Payload uses unknown compression codec "+id+"; this build slave may need upgrading.");
+	}
+
+	/**
+	 * @return The codec with the given name, or null if there isn't one
+	 */
+	public static PayloadCodec forName(String name) {
+		for(PayloadCodec codec : CODECS) {
+			if(codec.name.equalsIgnoreCase(name))
+				return codec;
+		}
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+	static final class DeflateCodec extends PayloadCodec {
+		final int level;
+
+		DeflateCodec(int id, String name, int level) {
+			super(id, name);
+			this.level = level;
+		}
+
+		@Override
+		public OutputStream compress(OutputStream out) {
+			final Deflater deflater = new Deflater(level);
+			return new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						deflater.end(); // Not done for us when we pass our own deflater
+					}
+				}
+			};
+		}
+
+		@Override
+		public InputStream decompress(InputStream in) {
+			final Inflater inflater = new Inflater();
+			return new InflaterInputStream(in, inflater, BUFFER_SIZE) {
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						inflater.end(); // Not done for us when we pass our own inflater
+					}
+				}
+			};
+		}
+	}
+}
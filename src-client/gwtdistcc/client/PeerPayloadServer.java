@@ -0,0 +1,149 @@
+package gwtdistcc.client;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the payloads in our build cache to other build slaves, so a build
+ * with many permutations isn't downloaded from the server once per slave.
+ *
+ * GET /payload/&lt;build id&gt; returns the encrypted payload file as we got it.
+ * The server hands out the URLs of slaves that have a build along with the
+ * work; the slave getting it checks it against the build ID before using it
+ * (see {@link BuildSlave#payloadMatches(java.io.File, String, String)}), so
+ * a peer can't slip it a different AST.
+ *
+ * The server listens on all interfaces and asks for no authentication:
+ * anyone who can reach the port can download any payload in our cache.  The
+ * payloads are served exactly as the server gave them to us, so they are only
+ * protected if the queue has a key to encrypt them with.  Don't enable it for
+ * queues without a key unless the port is only reachable by the build slaves.
+ */
+public class PeerPayloadServer implements HttpHandler {
+	static final Logger logger = LoggerFactory.getLogger(PeerPayloadServer.class);
+
+	public static final String PATH = "/payload/";
+
+	static final Pattern VALID_BUILD_ID = Pattern.compile("[A-Za-z0-9_-]{8,80}");
+
+	/**
+	 * Number of payloads sent at once, so serving peers doesn't eat all our bandwidth
+	 */
+	static final int THREADS = 4;
+
+	final BuildCache buildCache;
+	final HttpServer server;
+	final String url;
+
+	/**
+	 * @param host Name or address other slaves reach us at
+	 * @param port Port to listen on, or 0 for any free port
+	 */
+	public PeerPayloadServer(BuildCache buildCache, String host, int port) throws IOException {
+		this.buildCache = buildCache;
+		this.server = HttpServer.create(new InetSocketAddress(port), 16);
+		this.server.createContext(PATH, this);
+		this.server.setExecutor(Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "peer-payloads");
+				t.setDaemon(true);
+				return t;
+			}
+		}));
+		this.url = "http://"+host+":"+server.getAddress().getPort();
+	}
+
+	public void start() {
+		server.start();
+		logger.info("Serving payloads to other build slaves at "+url);
+	}
+
+	/**
+	 * @return An address of ours other slaves can probably reach: the local
+	 *         host's address unless that is a loopback address (as on many
+	 *         Linux machines), else the first IPv4 address of a network
+	 *         interface that is up and isn't loopback
+	 */
+	public static String findHostAddress() throws IOException {
+		InetAddress local = InetAddress.getLocalHost();
+		if(!local.isLoopbackAddress())
+			return local.getHostAddress();
+		InetAddress fallback = null;
+		for(NetworkInterface ni : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+			if(!ni.isUp() || ni.isLoopback())
+				continue;
+			for(InetAddress address : Collections.list(ni.getInetAddresses())) {
+				if(address.isLoopbackAddress() || address.isLinkLocalAddress())
+					continue;
+				if(address instanceof Inet4Address)
+					return address.getHostAddress();
+				if(fallback == null)
+					fallback = address;
+			}
+		}
+		if(fallback != null)
+			return "["+fallback.getHostAddress()+"]";
+		logger.warn("No network address found other than "+local.getHostAddress()+"; other slaves won't be able to reach us unless -peerHost is given");
+		return local.getHostAddress();
+	}
+
+	/**
+	 * @return The URL other slaves get payloads from, which we tell the server
+	 */
+	public String getUrl() {
+		return url;
+	}
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+		try {
+			String method = exchange.getRequestMethod();
+			if(!method.equals("GET") && !method.equals("HEAD")) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			String buildId = exchange.getRequestURI().getPath().substring(PATH.length());
+			FileInputStream in = VALID_BUILD_ID.matcher(buildId).matches() ? buildCache.openPayload(buildId) : null;
+			if(in == null) {
+				exchange.sendResponseHeaders(404, -1);
+				return;
+			}
+			try {
+				long length = in.getChannel().size();
+				exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+				if(method.equals("HEAD")) {
+					exchange.getResponseHeaders().set("Content-Length", String.valueOf(length));
+					exchange.sendResponseHeaders(200, -1);
+					return;
+				}
+				exchange.sendResponseHeaders(200, length);
+				OutputStream out = exchange.getResponseBody();
+				IOUtils.copy(in, out);
+				out.close();
+				logger.debug("Sent payload of build "+buildId+" to "+exchange.getRemoteAddress());
+			} finally {
+				in.close();
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+}
@@ -4,10 +4,13 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import java.util.Date;
 import java.util.Map;
 import java.util.Set;
+import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
 import javax.jdo.JDOObjectNotFoundException;
@@ -18,13 +21,12 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import com.google.appengine.api.blobstore.BlobKey;
-import com.google.appengine.api.blobstore.BlobstoreService;
-import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
 
 public class AddBuildServlet extends HttpServlet {
 	private static final long serialVersionUID = 1L;
+	private static final Logger log = Logger.getLogger(AddBuildServlet.class.getName());
 	
-	private BlobstoreService blobstoreService = BlobstoreServiceFactory.getBlobstoreService();
+	private BlobStore blobStore = BlobStore.get();
 	
 	@Override
 	protected void doHead(HttpServletRequest req, HttpServletResponse resp)
@@ -34,7 +36,7 @@ public class AddBuildServlet extends HttpServlet {
 	@Override
 	protected void doGet(HttpServletRequest req, HttpServletResponse resp)
 			throws ServletException, IOException {
-		String uploadUrl = blobstoreService.createUploadUrl("/add-build");
+		String uploadUrl = blobStore.createUploadUrl("/add-build");
 		resp.setHeader("Cache-Control", "no-cache, must-revalidate");
 		resp.setDateHeader("Expires", System.currentTimeMillis());
 		resp.setHeader("X-Upload-URL", uploadUrl);
@@ -50,16 +52,26 @@ public class AddBuildServlet extends HttpServlet {
 	}
 	
 	static final Pattern VALID_BUILD_ID = Pattern.compile("[A-Za-z0-9_-]{8,80}");
+	static final int MAX_TOOLCHAIN_LENGTH = 200;
+	static final int MAX_MODULE_LENGTH = 200;
 	@Override
 	protected void doPost(HttpServletRequest req, HttpServletResponse resp)
 			throws ServletException, IOException {
-		Map<String, BlobKey> blobs = blobstoreService.getUploadedBlobs(req);
-        
-		if(blobs.isEmpty()) {
-			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Missing AST data");
-			return;
+		// The payload is either uploaded with the request, or made of chunks uploaded earlier
+		BlobKey blob = null;
+		List<String> chunks = null;
+		String chunksStr = req.getParameter("chunks");
+		if(chunksStr != null && !chunksStr.isEmpty()) {
+			chunks = Arrays.asList(chunksStr.split(","));
+		} else {
+			Map<String, BlobKey> blobs = blobStore.getUploadedBlobs(req);
+	        
+			if(blobs.isEmpty()) {
+				resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Missing AST data");
+				return;
+			}
+			blob = blobs.values().iterator().next();
 		}
-		BlobKey blob = blobs.values().iterator().next();
 		Set<String> queues = ServletUtil.getQueues(req);
 		if(queues.isEmpty()) {
 			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Missing list of queues");
@@ -91,6 +103,14 @@ public class AddBuildServlet extends HttpServlet {
 			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Build ID must contain only letters, numbers, underscores, and hyphens.");
 			return;
 		}
+		// Older clients don't say which compiler they use, and don't get cached results
+		String toolchain = req.getParameter("toolchain");
+		if(toolchain != null && (toolchain.isEmpty() || toolchain.length() > MAX_TOOLCHAIN_LENGTH))
+			toolchain = null;
+		// Older clients don't say which module it is, and get their permutations in order
+		String module = req.getParameter("module");
+		if(module != null && (module.isEmpty() || module.length() > MAX_MODULE_LENGTH))
+			module = null;
 		
 		resp.setContentType("text/plain");
 		PersistenceManager pm = DB.getPersistenceManager();
@@ -101,8 +121,22 @@ public class AddBuildServlet extends HttpServlet {
 			} catch (JDOObjectNotFoundException notFound) {
 				existing=null;
 			}
-        	if(existing == null) {
-        		pm.makePersistent(new Build(id, label, queues, permutations, blob));
+        	if(existing == null && chunks != null) {
+        		for(String chunkId : chunks) {
+        			if(PayloadChunk.find(pm, chunkId) == null) {
+        				resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Payload chunk "+chunkId+" has not been uploaded");
+        				return;
+        			}
+        		}
+        		Build b = new Build(id, label, queues, permutations, chunks);
+        		b.setModule(module);
+        		addBuild(pm, b, toolchain);
+        		resp.sendRedirect("/build-status?id="+id);
+        	} else if(existing == null) {
+        		Build b = new Build(id, label, queues, permutations, blob);
+        		b.setDataSha1(ServletUtil.getSha1(req));
+        		b.setModule(module);
+        		addBuild(pm, b, toolchain);
         		resp.sendRedirect("/build-status?id="+id);
         	} else {
         		resp.sendError(HttpServletResponse.SC_CONFLICT, "Build with that ID already exists!");
@@ -111,4 +145,36 @@ public class AddBuildServlet extends HttpServlet {
         	pm.close();
         }
 	}
+
+	/**
+	 * Save a new build, with any permutations we have cached results for
+	 * already finished, and let the workers know about the rest.  The rest
+	 * are scheduled by how long they took in earlier builds of the module.
+	 */
+	private void addBuild(PersistenceManager pm, Build b, String toolchain) {
+		b.setToolchain(toolchain);
+		int cacheHits = 0;
+		if(toolchain != null) {
+			Date now = new Date();
+			for(CachedResult cached : CachedResult.findAll(pm, b.getId(), toolchain)) {
+				Permutation p = b.getPermutation(cached.getPermutation());
+				if(p == null || p.getFinished() != null)
+					continue;
+				p.setFinished(now);
+				p.setResultData(cached.getResult());
+				p.setResultSha1(cached.getSha1());
+				p.setResultCached(true);
+				p.setCacheHit(true);
+				cached.setLastUsed(now);
+				cacheHits++;
+			}
+			if(cacheHits > 0) {
+				log.info("Build "+b.getId()+" has cached results for "+cacheHits+" of "+b.getPermutations().size()+" permutations");
+				b.completeIfFinished();
+			}
+		}
+		b = pm.makePersistent(b);
+		PendingPermutation.addBuild(pm, b, PermutationTiming.estimate(pm, b.getModule(), b.getPermutations().size()));
+		WorkNotifier.workAvailable(b.getQueueIds(), b.getPermutations().size() - cacheHits);
+	}
 }
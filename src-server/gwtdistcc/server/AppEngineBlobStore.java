@@ -0,0 +1,46 @@
+package gwtdistcc.server;
+
+import java.io.IOException;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.appengine.api.blobstore.BlobInfo;
+import com.google.appengine.api.blobstore.BlobInfoFactory;
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.blobstore.BlobstoreService;
+import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
+
+/**
+ * Keeps blobs in the App Engine Blobstore
+ */
+public class AppEngineBlobStore extends BlobStore {
+	private BlobstoreService blobstoreService = BlobstoreServiceFactory.getBlobstoreService();
+
+	@Override
+	public String createUploadUrl(String successPath) {
+		return blobstoreService.createUploadUrl(successPath);
+	}
+
+	@Override
+	public Map<String, BlobKey> getUploadedBlobs(HttpServletRequest req) {
+		return blobstoreService.getUploadedBlobs(req);
+	}
+
+	@Override
+	public void serve(BlobKey blobKey, HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		blobstoreService.serve(blobKey, resp);
+	}
+
+	@Override
+	public long getSize(BlobKey blobKey) {
+		BlobInfo info = new BlobInfoFactory().loadBlobInfo(blobKey);
+		return info == null ? -1 : info.getSize();
+	}
+
+	@Override
+	public void delete(BlobKey... blobKeys) {
+		blobstoreService.delete(blobKeys);
+	}
+}
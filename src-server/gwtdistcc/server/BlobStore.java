@@ -0,0 +1,77 @@
+package gwtdistcc.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.appengine.api.blobstore.BlobKey;
+
+/**
+ * Where uploaded payloads, chunks and results are kept.
+ *
+ * On App Engine this is the Blobstore.  When the server is hosted on our
+ * own machines in the SDK's development server (see the run-devappserver
+ * target in build.xml) the blobs are plain files in the directory given by
+ * the {@link #BLOB_DIR_PROPERTY} system property.  Everything else still
+ * comes from the SDK there, including the datastore, memcache and the
+ * BlobKeys the blobs are named by.
+ *
+ * Uploads work the same way for both: the client asks for an upload URL,
+ * posts the files to it and the request is then passed on to the given path,
+ * which picks up the stored blobs with {@link #getUploadedBlobs(HttpServletRequest)}.
+ */
+public abstract class BlobStore {
+	/**
+	 * System property naming the directory to keep blobs in; if not set, the App Engine Blobstore is used
+	 */
+	public static final String BLOB_DIR_PROPERTY = "gwtdistcc.blobDir";
+
+	private static BlobStore instance;
+
+	public static synchronized BlobStore get() {
+		if(instance == null) {
+			String blobDir = System.getProperty(BLOB_DIR_PROPERTY);
+			if(blobDir == null || blobDir.isEmpty())
+				instance = new AppEngineBlobStore();
+			else
+				instance = new FileBlobStore(new File(blobDir));
+		}
+		return instance;
+	}
+
+	/**
+	 * @return true if we are hosted on our own machines in the SDK's
+	 *         development server rather than on App Engine
+	 */
+	public static boolean isSelfHosted() {
+		return get() instanceof FileBlobStore;
+	}
+
+	/**
+	 * @param successPath Path the upload request is passed on to once the files are stored
+	 * @return URL to post files to
+	 */
+	public abstract String createUploadUrl(String successPath);
+
+	/**
+	 * @return The blobs stored by the upload this request was passed on from, by form field name
+	 * @throws IllegalStateException If the request didn't come through an upload URL
+	 */
+	public abstract Map<String, BlobKey> getUploadedBlobs(HttpServletRequest req);
+
+	/**
+	 * Send the blob as the response, or the part of it asked for by the
+	 * request's Range header if the store supports ranges
+	 */
+	public abstract void serve(BlobKey blobKey, HttpServletRequest req, HttpServletResponse resp) throws IOException;
+
+	/**
+	 * @return The size of the blob in bytes, or -1 if there is no such blob
+	 */
+	public abstract long getSize(BlobKey blobKey);
+
+	public abstract void delete(BlobKey... blobKeys);
+}
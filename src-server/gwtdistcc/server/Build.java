@@ -1,7 +1,9 @@
 package gwtdistcc.server;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
+import java.util.List;
 import java.util.TreeSet;
 import java.util.logging.Logger;
 
@@ -12,7 +14,7 @@ import javax.jdo.annotations.Persistent;
 import javax.jdo.annotations.PrimaryKey;
 
 import com.google.appengine.api.blobstore.BlobKey;
-import com.google.appengine.api.blobstore.BlobstoreService;
+import com.google.appengine.api.datastore.Text;
 
 @PersistenceCapable
 public class Build {
@@ -38,6 +40,9 @@ public class Build {
 	@Persistent
 	BlobKey data;
 	
+	@Persistent
+	Text payloadChunks;
+	
 	@Persistent
 	Date uploaded;
 	
@@ -49,6 +54,18 @@ public class Build {
 	
 	@Persistent
 	Date lastStatusCheck;
+	
+	@Persistent
+	Long statusVersion;
+	
+	@Persistent
+	String toolchain;
+	
+	@Persistent
+	String dataSha1;
+	
+	@Persistent
+	String module;
 
 	public Build(String id, String label, Collection<String> queueIds, int numPermutations, BlobKey blob) {
 		super();
@@ -63,6 +80,19 @@ public class Build {
 		this.data = blob;
 	}
 
+	/**
+	 * Create a build whose payload is made of the given chunks, in order
+	 */
+	public Build(String id, String label, Collection<String> queueIds, int numPermutations, List<String> payloadChunks) {
+		this(id, label, queueIds, numPermutations, (BlobKey)null);
+		StringBuffer sb = new StringBuffer();
+		for(String chunkId : payloadChunks) {
+			if(sb.length() > 0) sb.append(',');
+			sb.append(chunkId);
+		}
+		this.payloadChunks = new Text(sb.toString());
+	}
+
 	public Build() {
 	}
 	
@@ -131,6 +161,31 @@ public class Build {
 		(downloaded != null ? " downloaded "+downloaded : "");
 	}
 
+	/**
+	 * Compiler the client built the payload with, or null if it didn't say.
+	 * Results are only taken from or added to the {@link CachedResult} cache
+	 * for builds that have one.
+	 */
+	public String getToolchain() {
+		return toolchain;
+	}
+
+	public void setToolchain(String toolchain) {
+		this.toolchain = toolchain;
+	}
+
+	/**
+	 * Name of the GWT module being built, or null if the client didn't say.
+	 * Compile times are kept per module in {@link PermutationTiming}.
+	 */
+	public String getModule() {
+		return module;
+	}
+
+	public void setModule(String module) {
+		this.module = module;
+	}
+
 	public TreeSet<String> getQueueIds() {
 		return queueIds;
 	}
@@ -151,6 +206,29 @@ public class Build {
 		return permutations;
 	}
 
+	/**
+	 * @return The permutation with the given number, or null if there isn't one
+	 */
+	public Permutation getPermutation(int n) {
+		for(Permutation p : permutations) {
+			if(p.getPermutation() == n)
+				return p;
+		}
+		return null;
+	}
+
+	/**
+	 * Mark the build completed if every permutation has its result
+	 */
+	public void completeIfFinished() {
+		for(Permutation p : permutations) {
+			if(p.getFinished() == null)
+				return;
+		}
+		if(completed == null)
+			completed = new Date();
+	}
+
 	public void setPermutations(TreeSet<Permutation> permutations) {
 		this.permutations = permutations;
 	}
@@ -163,6 +241,28 @@ public class Build {
 		return data;
 	}
 
+	/**
+	 * SHA1 of the payload blob as the client uploaded it, or null if it didn't
+	 * tell us; sent with the payload so workers can check their download.
+	 */
+	public String getDataSha1() {
+		return dataSha1;
+	}
+
+	public void setDataSha1(String dataSha1) {
+		this.dataSha1 = dataSha1;
+	}
+
+	/**
+	 * Ids of the {@link PayloadChunk}s the payload is made of, or null if the
+	 * payload was uploaded as a single blob (see {@link #getData()})
+	 */
+	public List<String> getPayloadChunks() {
+		if(payloadChunks == null)
+			return null;
+		return Arrays.asList(payloadChunks.getValue().split(","));
+	}
+
 	/**
 	 * Return the last time the build's status was checked.  If a build remains
 	 * idle for a while we'll delete it from the system, this means that all the
@@ -176,29 +276,57 @@ public class Build {
 		this.lastStatusCheck = lastStatusCheck;
 	}
 	
-	public boolean deleteIfStale(PersistenceManager pm, BlobstoreService blobstoreService) {
-		long lastTimeSomeoneCared;
-		if(downloaded != null) lastTimeSomeoneCared = downloaded.getTime();
-		else if(lastStatusCheck != null) lastTimeSomeoneCared = Math.max(lastStatusCheck.getTime(), created.getTime());
-		else lastTimeSomeoneCared = created.getTime();
-		
-		boolean buildExpired = (System.currentTimeMillis() - lastTimeSomeoneCared) > BUILD_EXPIRY_TIME;
+	/**
+	 * Counter that goes up each time a permutation of this build changes state,
+	 * so clients can wait for the next change.
+	 */
+	public long getStatusVersion() {
+		return statusVersion == null ? 0 : statusVersion;
+	}
+
+	/**
+	 * Bump the status version; call {@link BuildStatusNotifier#statusChanged()}
+	 * once the change is saved.
+	 */
+	public void statusChanged() {
+		statusVersion = getStatusVersion() + 1;
+	}
+	
+	/**
+	 * Last time the client showed interest in the build
+	 */
+	private long getLastTimeSomeoneCared() {
+		if(downloaded != null) return downloaded.getTime();
+		else if(lastStatusCheck != null) return Math.max(lastStatusCheck.getTime(), created.getTime());
+		else return created.getTime();
+	}
+
+	/**
+	 * Time limit on a build, it must be touched or viewed at least once every
+	 * so often or we'll can it
+	 */
+	public boolean isStale() {
+		return (System.currentTimeMillis() - getLastTimeSomeoneCared()) > BUILD_EXPIRY_TIME;
+	}
+	
+	public boolean deleteIfStale(PersistenceManager pm, BlobStore blobStore) {
+		boolean buildExpired = isStale();
 		if(buildExpired) {
-			log.info("Deleting stale build; not checked on since "+new Date(lastTimeSomeoneCared));
-			// Time limit on a build, it must be touched or viewed at least once a minute or we'll can it
-			delete(pm, blobstoreService);
+			log.info("Deleting stale build; not checked on since "+new Date(getLastTimeSomeoneCared()));
+			delete(pm, blobStore);
 		}
 		return buildExpired;
 	}
 
-	public void delete(PersistenceManager pm, BlobstoreService blobstoreService) {
+	public void delete(PersistenceManager pm, BlobStore blobStore) {
 		if(getData() != null)
-			blobstoreService.delete(getData());
+			blobStore.delete(getData());
 		for(Permutation p : getPermutations()) {
-			if(p.getResultData() != null) {
-				blobstoreService.delete(p.getResultData());
+			if(p.getResultData() != null && !p.isResultCached()) {
+				blobStore.delete(p.getResultData());
 			}
 		}
+		PendingPermutation.removeBuild(pm, id);
 		pm.deletePersistent(this);
 	}
 }
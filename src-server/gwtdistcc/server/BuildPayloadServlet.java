@@ -0,0 +1,66 @@
+package gwtdistcc.server;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.PersistenceManager;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Download a build's payload, the same way /check-for-work sends it.
+ * 
+ * Workers come here when /check-for-work pointed them at other workers that
+ * have the payload (X-Payload-Format: peers) and none of them could give it
+ * to them.
+ */
+public class BuildPayloadServlet extends HttpServlet {
+	private static final long serialVersionUID = 1L;
+	private BlobStore blobStore = BlobStore.get();
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+			throws ServletException, IOException {
+		String buildId = req.getParameter("id");
+		if(buildId == null || buildId.isEmpty()) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Must pass the build ID");
+			return;
+		}
+		PersistenceManager pm = DB.getPersistenceManager();
+		try {
+			Build b;
+			try {
+				b = pm.getObjectById(Build.class, buildId);
+			} catch (JDOObjectNotFoundException e) {
+				resp.sendError(HttpServletResponse.SC_NOT_FOUND, "No build with that ID found.");
+				return;
+			}
+			sendPayload(b, req, resp, blobStore);
+		} finally {
+			pm.close();
+		}
+	}
+
+	/**
+	 * Send the build's payload blob, with its SHA1 in X-Content-SHA1 if we
+	 * know it, or for a chunked payload the list of chunks for the worker to
+	 * fetch from /chunks with X-Payload-Format set to chunked.
+	 */
+	static void sendPayload(Build b, HttpServletRequest req, HttpServletResponse resp, BlobStore blobStore) throws IOException {
+		if(b.getData() == null) {
+			resp.setHeader("X-Payload-Format", "chunked");
+			resp.setContentType("text/plain");
+			PrintWriter w = resp.getWriter();
+			for(String chunkId : b.getPayloadChunks()) {
+				w.println(chunkId);
+			}
+		} else {
+			if(b.getDataSha1() != null)
+				resp.setHeader("X-Content-SHA1", b.getDataSha1());
+			blobStore.serve(b.getData(), req, resp);
+		}
+	}
+}
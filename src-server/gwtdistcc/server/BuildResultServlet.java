@@ -1,6 +1,8 @@
 package gwtdistcc.server;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Map;
@@ -13,12 +15,16 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import com.google.appengine.api.blobstore.BlobKey;
-import com.google.appengine.api.blobstore.BlobstoreService;
-import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
 
 public class BuildResultServlet extends HttpServlet {
 	private static final long serialVersionUID = 1L;
-	private BlobstoreService blobstoreService = BlobstoreServiceFactory.getBlobstoreService();
+	private BlobStore blobStore = BlobStore.get();
+
+	/**
+	 * Pings only update the build's status this often; the lease in the
+	 * {@link PendingPermutation} is what keeps the permutation ours.
+	 */
+	private static final long PING_RECORD_INTERVAL = PendingPermutation.LEASE_TIME / 2;
 
 	@Override
 	protected void doPost(HttpServletRequest req, HttpServletResponse resp)
@@ -46,63 +52,208 @@ public class BuildResultServlet extends HttpServlet {
 			return;
 		}
 		
+		Map<String, BlobKey> blobs;
+		try {
+			blobs = blobStore.getUploadedBlobs(req);
+		} catch (IllegalStateException e) {
+			// Probably didn't get any blobs ..
+			blobs = Collections.emptyMap();
+		}
+		BlobKey blob = blobs.isEmpty() ? null : blobs.values().iterator().next();
+		String error = req.getParameter("error");
+		// If the error is probably a configuration/capacity issue, try and pass it onto another worker if there are any others
+		boolean handBack = error != null && ("".equals(error) || "interrupted".equals(error) || "out of memory".equals(error) || "class not found".equals(error));
+		String toolchain = req.getParameter("toolchain");
+		String sha1 = ServletUtil.getSha1(req);
+		long heapMB = WorkerCapabilities.read(req).getHeapMB();
+		
+		boolean indexed;
+		boolean cacheable;
+		String currentWorkerId;
+		Date lastAlive;
+		boolean alreadyFinished;
+		Date started;
+		String module;
+		Collection<String> queueIds;
+		boolean speculative;
 		PersistenceManager pm = DB.getPersistenceManager();
 		try {
 			Build b;
 			try {
 				b = pm.getObjectById(Build.class, buildId);
 			} catch (JDOObjectNotFoundException e1) {
+				rejectResult(blob);
 				resp.sendError(HttpServletResponse.SC_NOT_FOUND, "No build with that ID found.");
 				return;
 			}
-			for(Permutation p : b.getPermutations()) {
-				if(p.getPermutation() == permutation) {
-					if(p.getWorkerId() != null && !p.getWorkerId().equals(workerId)) {
-						resp.sendError(HttpServletResponse.SC_NOT_FOUND, "You are not the current worker ("+p.getWorkerId()+") for that permutation.");
-						return;
-					}
-					p.setBuildAlive(new Date());
-					String error = req.getParameter("error");
-					if(error != null) {
-						if("".equals(error) || "interrupted".equals(error) || "out of memory".equals(error) || "class not found".equals(error)) {
-							// If the error is probably a configuration/capacity issue, try and pass it onto another worker if there are any others
-							p.setWorkerId(null);
-							p.setWorkerLabel(null);
-						} else {
-							p.setBuildError(error);
-							p.setBuildErrorTime(new Date());
-						}
-						return;
-					}
-					
-					Map<String, BlobKey> blobs;
-					try {
-						blobs = blobstoreService.getUploadedBlobs(req);
-					} catch (IllegalStateException e) {
-						// Probably didn't get any blobs ..
-						blobs = Collections.emptyMap();
-					}
-					if(blobs.isEmpty()) {
-						// No uploaded data, this is just a ping
+			Permutation p = b.getPermutation(permutation);
+			if(p == null) {
+				rejectResult(blob);
+				resp.sendError(HttpServletResponse.SC_NOT_FOUND, "No matching permutation found on that build.");
+				return;
+			}
+			currentWorkerId = p.getWorkerId();
+			lastAlive = p.getBuildAlive();
+			alreadyFinished = p.getFinished() != null || p.getResultData() != null;
+			started = p.getStarted();
+			module = b.getModule();
+			queueIds = new ArrayList<String>(b.getQueueIds());
+			// Only cache results compiled with the compiler the client used
+			cacheable = blob != null && toolchain != null && toolchain.equals(b.getToolchain());
+			PendingPermutation pending = PendingPermutation.find(pm, buildId, permutation);
+			indexed = pending != null;
+			speculative = indexed && workerId.equals(pending.getSpeculativeWorkerId());
+			if(speculative && pending.getSpeculationStarted() != null)
+				started = pending.getSpeculationStarted();
+		} finally {
+			pm.close();
+		}
+		
+		// Check and update who holds the permutation atomically
+		boolean allowed;
+		if(!indexed) {
+			// Build predates the pending work index
+			allowed = currentWorkerId == null || currentWorkerId.equals(workerId);
+			if(allowed && blob != null && alreadyFinished) {
+				rejectResult(blob);
+				resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "This permutation is already marked as complete.");
+				return;
+			}
+		} else if(blob != null) {
+			allowed = PendingPermutation.complete(buildId, permutation, workerId);
+			if(!allowed) {
+				rejectResult(blob);
+				resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "This permutation is already marked as complete or was given to another worker.");
+				return;
+			}
+		} else if(speculative && error != null) {
+			// A duplicate of a straggler failed; the original worker carries on
+			PendingPermutation.release(buildId, permutation, workerId);
+			return;
+		} else if(handBack) {
+			allowed = PendingPermutation.release(buildId, permutation, workerId);
+		} else {
+			allowed = PendingPermutation.renew(buildId, permutation, workerId);
+		}
+		if(!allowed) {
+			rejectResult(blob);
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND, "You are not the current worker ("+currentWorkerId+") for that permutation.");
+			return;
+		}
+		if(blob == null && error == null && "true".equals(req.getParameter("newUploadURL"))) {
+			// Retrying a failed upload; upload URLs only go to the worker holding the permutation
+			resp.setHeader("Cache-Control", "no-cache, must-revalidate");
+			resp.setHeader("X-Upload-URL", blobStore.createUploadUrl("/build-result"));
+		}
+		if(indexed && blob == null && error == null && lastAlive != null
+				&& System.currentTimeMillis() - lastAlive.getTime() < PING_RECORD_INTERVAL) {
+			// Just a ping, and the build shows we were alive recently enough; save a write to the busy build entity
+			return;
+		}
+		
+		boolean statusChanged;
+		try {
+			statusChanged = recordResult(buildId, permutation, workerId, blob, sha1, error, handBack, cacheable);
+		} catch (JDOObjectNotFoundException e) {
+			rejectResult(blob);
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND, "No build with that ID found.");
+			return;
+		}
+		if(cacheable)
+			cacheResult(buildId, permutation, toolchain, blob, sha1);
+		if(blob != null && module != null && started != null)
+			PermutationTiming.record(module, permutation, System.currentTimeMillis() - started.getTime(), heapMB);
+		if("out of memory".equals(error) && module != null && heapMB > 0)
+			PermutationTiming.recordOutOfMemory(module, permutation, heapMB);
+		// Wake a waiting worker once the change is written
+		if(handBack)
+			WorkNotifier.workAvailable(queueIds, 1);
+		if(statusChanged)
+			BuildStatusNotifier.statusChanged();
+		if(blob != null)
+			resp.sendRedirect("/build-status?id="+buildId);
+	}
+	
+	/**
+	 * Update the permutation in the build's status after a ping, error or result
+	 * 
+	 * @return true if the build's status changed
+	 */
+	private boolean recordResult(final String buildId, final int permutation, final String workerId,
+			final BlobKey blob, final String sha1, final String error, final boolean handBack, final boolean cacheable) {
+		return DB.transact(new DB.Transactional<Boolean>() {
+			@Override
+			public Boolean run(PersistenceManager pm) {
+				Build b = pm.getObjectById(Build.class, buildId);
+				Permutation p = b.getPermutation(permutation);
+				p.setBuildAlive(new Date());
+				if(error != null) {
+					b.statusChanged();
+					if(handBack) {
+						p.setWorkerId(null);
+						p.setWorkerLabel(null);
 					} else {
-						if(p.getFinished() != null || p.getResultData() != null) {
-							resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "This permutation is already marked as complete.");
-							return;
-						}
-						BlobKey blob = blobs.values().iterator().next();
-						p.setFinished(new Date());
-						p.setResultData(blob);
-						resp.sendRedirect("/build-status?id="+buildId);
+						p.setBuildError(error);
+						p.setBuildErrorTime(new Date());
 					}
-					return;
+					return true;
+				}
+				if(blob != null) {
+					p.setWorkerId(workerId);
+					p.setFinished(new Date());
+					p.setResultData(blob);
+					p.setResultSha1(sha1);
+					p.setResultCached(cacheable);
+					b.completeIfFinished();
+					b.statusChanged();
+					return true;
 				}
+				return false; // No uploaded data, this is just a ping
 			}
-			resp.sendError(HttpServletResponse.SC_NOT_FOUND, "No matching permutation found on that build.");
-		} finally {
-			pm.close();
+		});
+	}
+
+	/**
+	 * Hand a new result over to the {@link CachedResult} cache.  The
+	 * permutation is already marked as not owning the blob, so a build deleted
+	 * meanwhile doesn't delete it; if the cache already had the result, the
+	 * permutation gets the blob back.
+	 */
+	private void cacheResult(final String buildId, final int permutation, String toolchain, final BlobKey blob, String sha1) {
+		if(CachedResult.offer(buildId, toolchain, permutation, blob, blobStore.getSize(blob), sha1))
+			return;
+		try {
+			DB.transact(new DB.Transactional<Void>() {
+				@Override
+				public Void run(PersistenceManager pm) {
+					Build b = pm.getObjectById(Build.class, buildId);
+					b.getPermutation(permutation).setResultCached(false);
+					return null;
+				}
+			});
+		} catch (JDOObjectNotFoundException e) {
+			blobStore.delete(blob);
 		}
 	}
+
+	/**
+	 * Throw away a result we aren't going to use
+	 */
+	private void rejectResult(BlobKey blob) {
+		if(blob != null)
+			blobStore.delete(blob);
+	}
 	
+	@Override
+	protected void doHead(HttpServletRequest req, HttpServletResponse resp)
+			throws ServletException, IOException {
+		doGet(req, resp);
+	}
+
+	/**
+	 * Download a permutation's result, with its SHA1 in X-Content-SHA1 if we
+	 * know it.
+	 */
 	@Override
 	protected void doGet(HttpServletRequest req, HttpServletResponse resp)
 			throws ServletException, IOException {
@@ -124,6 +275,7 @@ public class BuildResultServlet extends HttpServlet {
 			return;
 		}
 		
+		// Builds are only changed in transactions here, see recordDownload
 		PersistenceManager pm = DB.getPersistenceManager();
 		try {
 			Build b = pm.getObjectById(Build.class, buildId);
@@ -137,9 +289,12 @@ public class BuildResultServlet extends HttpServlet {
 						resp.sendError(HttpServletResponse.SC_NOT_FOUND, "No build result was uploaded for this permutation");
 						return;
 					}
-					p.setDownloaded(new Date());
-					b.setDownloaded(new Date());
-					blobstoreService.serve(p.getResultData(), resp);
+					if(p.isResultCached() && b.getToolchain() != null)
+						CachedResult.touch(pm, buildId, b.getToolchain(), permutation);
+					if(p.getResultSha1() != null)
+						resp.setHeader("X-Content-SHA1", p.getResultSha1());
+					blobStore.serve(p.getResultData(), req, resp);
+					recordDownload(buildId, permutation);
 					return;
 				}
 			}
@@ -148,4 +303,26 @@ public class BuildResultServlet extends HttpServlet {
 			pm.close();
 		}
 	}
+
+	/**
+	 * Note that the client downloaded the permutation's result, in a
+	 * transaction so downloads running in parallel and results recorded
+	 * meanwhile aren't overwritten
+	 */
+	private void recordDownload(final String buildId, final int permutation) {
+		DB.transact(new DB.Transactional<Void>() {
+			@Override
+			public Void run(PersistenceManager pm) {
+				try {
+					Build b = pm.getObjectById(Build.class, buildId);
+					Date now = new Date();
+					b.getPermutation(permutation).setDownloaded(now);
+					b.setDownloaded(now);
+				} catch (JDOObjectNotFoundException e) {
+					// Deleted since we served it
+				}
+				return null;
+			}
+		});
+	}
 }
@@ -0,0 +1,30 @@
+package gwtdistcc.server;
+
+/**
+ * Wakes up clients waiting in {@link BuildStatusServlet} when a permutation
+ * changes state.
+ *
+ * Waiters re-check their build after each wake up, and every so often anyway
+ * since changes made through other server instances aren't seen here.
+ */
+public class BuildStatusNotifier {
+	private static final Object monitor = new Object();
+
+	/**
+	 * Wait for the next status change, or until the timeout expires.
+	 */
+	public static void await(long timeout) throws InterruptedException {
+		synchronized(monitor) {
+			monitor.wait(timeout);
+		}
+	}
+
+	/**
+	 * Call after saving a permutation state change to wake up all the waiting clients.
+	 */
+	public static void statusChanged() {
+		synchronized(monitor) {
+			monitor.notifyAll();
+		}
+	}
+}
@@ -14,6 +14,33 @@ import javax.servlet.http.HttpServletResponse;
 public class BuildStatusServlet extends HttpServlet {
 	private static final long serialVersionUID = 1L;
 
+	/**
+	 * Default upper limit on how long a client may ask us to wait for a status
+	 * change; App Engine kills requests after 30 seconds.
+	 */
+	private static final long DEFAULT_MAX_WAIT = 25000;
+
+	/**
+	 * How often a waiting request re-checks the datastore, in case the build
+	 * was changed through another server instance.
+	 */
+	private static final long RECHECK_INTERVAL = 2000;
+
+	/**
+	 * How old the build's last status check may get before we record a new
+	 * one; well within the time after which a build nobody checks on is deleted
+	 */
+	private static final long STATUS_CHECK_RECORD_INTERVAL = 60000;
+
+	private long maxWait = DEFAULT_MAX_WAIT;
+
+	@Override
+	public void init() throws ServletException {
+		String maxWaitStr = getInitParameter("maxWait");
+		if(maxWaitStr != null)
+			maxWait = Long.parseLong(maxWaitStr) * 1000;
+	}
+
 	@Override
 	protected void doGet(HttpServletRequest req, HttpServletResponse resp)
 			throws ServletException, IOException {
@@ -22,18 +49,66 @@ public class BuildStatusServlet extends HttpServlet {
 			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Missing build ID");
 			return;
 		}
+		// If the client passes the last status version it saw, we can wait for it to change
+		long version = -1;
+		long wait = 0;
+		try {
+			String versionStr = req.getParameter("version");
+			if(versionStr != null && !versionStr.isEmpty())
+				version = Long.parseLong(versionStr);
+			String waitStr = req.getParameter("wait");
+			if(waitStr != null && !waitStr.isEmpty())
+				wait = Math.max(0, Math.min(Long.parseLong(waitStr) * 1000, maxWait));
+		} catch (NumberFormatException e) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "version and wait must be numbers");
+			return;
+		}
+		long deadline = System.currentTimeMillis() + wait;
+		// Only read through this persistence manager: results are recorded in
+		// transactions, and changing our copy would write it all back on close
 		PersistenceManager pm = DB.getPersistenceManager();
 		try {
 			Build build = pm.getObjectById(Build.class, id);
-			build.setLastStatusCheck(new Date());
+			while(build.getStatusVersion() == version) {
+				long remaining = deadline - System.currentTimeMillis();
+				if(remaining <= 0)
+					break;
+				try {
+					BuildStatusNotifier.await(Math.min(remaining, RECHECK_INTERVAL));
+				} catch (InterruptedException e) {
+					break;
+				}
+				// Use a fresh persistence manager so we don't see a cached copy of the build
+				pm.close();
+				pm = DB.getPersistenceManager();
+				build = pm.getObjectById(Build.class, id);
+			}
+			Date lastStatusCheck = build.getLastStatusCheck();
+			resp.setHeader("X-Status-Version", String.valueOf(build.getStatusVersion()));
 			
 			StringBuffer permsStarted=new StringBuffer();
 			StringBuffer permsComplete=new StringBuffer();
 			StringBuffer permsFailed=new StringBuffer();
+			StringBuffer permsCacheHits=new StringBuffer();
 			int startedCount=0;
 			int completeCount=0;
 			int failedCount=0;
+			int cacheHitCount=0;
+			long now = System.currentTimeMillis();
+			long[] expected = PermutationTiming.estimate(pm, build.getModule(), build.getPermutations().size());
+			int runningCount=0;
+			long runningMax=0;
+			long remainingWork=0;
 			for(Permutation p : build.getPermutations()) {
+				if(expected != null && p.getFinished() == null && p.getBuildError() == null && p.getPermutation() < expected.length) {
+					long remaining = expected[p.getPermutation()];
+					if(p.getWorkerId() != null && p.getStarted() != null) {
+						remaining = Math.max(0, p.getStarted().getTime() + remaining - now);
+						runningMax = Math.max(runningMax, remaining);
+						runningCount++;
+					}
+					remainingWork += remaining;
+				}
 				if(p.getBuildError() != null) {
 					if(permsFailed.length()>0) permsFailed.append(",");
 					permsFailed.append(p.getPermutation());
@@ -46,6 +121,12 @@ public class BuildStatusServlet extends HttpServlet {
 					permsComplete.append(p.getPermutation());
 					completeCount++;
 					resp.addDateHeader("X-Permutation-"+p.getPermutation()+"-Finished", p.getFinished().getTime());
+					if(p.isCacheHit()) {
+						if(permsCacheHits.length()>0) permsCacheHits.append(",");
+						permsCacheHits.append(p.getPermutation());
+						cacheHitCount++;
+						resp.addHeader("X-Permutation-"+p.getPermutation()+"-Cache-Hit", "true");
+					}
 				} else if(p.getStarted() != null) {
 					if(permsStarted.length()>0) permsStarted.append(",");
 					permsStarted.append(p.getPermutation());
@@ -64,10 +145,18 @@ public class BuildStatusServlet extends HttpServlet {
 			resp.setHeader("X-Permutations-Started-Count", String.valueOf(startedCount));
 			resp.setHeader("X-Permutations-Finished-Count", String.valueOf(completeCount));
 			resp.setHeader("X-Permutations-Failed-Count", String.valueOf(failedCount));
+			resp.setHeader("X-Permutations-Cache-Hit-Count", String.valueOf(cacheHitCount));
 			resp.setHeader("X-Permutations-Started", permsStarted.toString());
 			resp.setHeader("X-Permutations-Finished", permsComplete.toString());
 			resp.setHeader("X-Permutations-Failed", permsFailed.toString());
+			resp.setHeader("X-Permutations-Cache-Hits", permsCacheHits.toString());
 			resp.setHeader("X-Complete", String.valueOf((completeCount+failedCount)==build.getPermutations().size()));
+			if(expected != null) {
+				// Assume the build keeps as many workers as it has now, and at least one
+				long predicted = now + Math.max(runningMax, remainingWork / Math.max(1, runningCount));
+				resp.setDateHeader("X-Predicted-Finish", predicted);
+				resp.setHeader("X-Remaining-Work", String.valueOf(remainingWork / 1000));
+			}
 			
 			if(!req.getMethod().equals("HEAD")) {
 				resp.setContentType("text/plain");
@@ -85,6 +174,8 @@ public class BuildStatusServlet extends HttpServlet {
 				}
 				w.close();
 			}
+			if(lastStatusCheck == null || System.currentTimeMillis() - lastStatusCheck.getTime() > STATUS_CHECK_RECORD_INTERVAL)
+				recordStatusCheck(id);
 		} catch(JDOObjectNotFoundException notFound) {
 			resp.sendError(HttpServletResponse.SC_NOT_FOUND, "No build found with ID "+id);
 		} finally {
@@ -93,6 +184,24 @@ public class BuildStatusServlet extends HttpServlet {
 
 	}
 	
+	/**
+	 * Note that the client still cares about the build, in a transaction of
+	 * its own so we can't undo changes made since we read the build
+	 */
+	private static void recordStatusCheck(final String id) {
+		DB.transact(new DB.Transactional<Void>() {
+			@Override
+			public Void run(PersistenceManager pm) {
+				try {
+					pm.getObjectById(Build.class, id).setLastStatusCheck(new Date());
+				} catch (JDOObjectNotFoundException e) {
+					// Deleted since we looked
+				}
+				return null;
+			}
+		});
+	}
+	
 	@Override
 	protected void doHead(HttpServletRequest req, HttpServletResponse resp)
 			throws ServletException, IOException {
@@ -0,0 +1,238 @@
+package gwtdistcc.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Persistent;
+import javax.jdo.annotations.PrimaryKey;
+
+import com.google.appengine.api.blobstore.BlobKey;
+
+/**
+ * A permutation result kept after its build is deleted, so a later build of
+ * the same payload with the same compiler can use it instead of compiling the
+ * permutation again.
+ *
+ * Results are found by the payload's content hash (the build ID, which the
+ * client computes from the AST), the permutation number and the toolchain the
+ * slave compiled it with.  The result blob belongs to the cache once it is in
+ * here; builds using it have {@link Permutation#isResultCached()} set and
+ * leave it alone when they are deleted.
+ */
+@PersistenceCapable
+public class CachedResult {
+	private static final Logger log = Logger.getLogger(CachedResult.class.getName());
+
+	/**
+	 * System property giving the number of days an unused result is kept
+	 */
+	public static final String RETENTION_DAYS_PROPERTY = "gwtdistcc.resultCacheDays";
+
+	/**
+	 * System property giving the total size of the cached results, in megabytes
+	 */
+	public static final String SIZE_MB_PROPERTY = "gwtdistcc.resultCacheMB";
+
+	static final int DEFAULT_RETENTION_DAYS = 14;
+	static final int DEFAULT_SIZE_MB = 1024;
+
+	/**
+	 * Results used this recently are never evicted to make room, as a build
+	 * being downloaded may still be using them.
+	 */
+	static final long MIN_UNUSED_TIME = 3600000L;
+
+	/**
+	 * Downloads only record that a result was used this often
+	 */
+	static final long TOUCH_INTERVAL = 10*60000L;
+
+	@PrimaryKey
+	@Persistent
+	String id;
+
+	@Persistent
+	String contentHash;
+
+	@Persistent
+	String toolchain;
+
+	@Persistent
+	int permutation;
+
+	@Persistent
+	BlobKey result;
+
+	@Persistent
+	long size;
+
+	@Persistent
+	String sha1;
+
+	@Persistent
+	Date created;
+
+	@Persistent
+	Date lastUsed;
+
+	public CachedResult(String contentHash, String toolchain, int permutation, BlobKey result, long size, String sha1) {
+		this.id = makeId(contentHash, toolchain, permutation);
+		this.contentHash = contentHash;
+		this.toolchain = toolchain;
+		this.permutation = permutation;
+		this.result = result;
+		this.size = size;
+		this.sha1 = sha1;
+		this.created = new Date();
+		this.lastUsed = this.created;
+	}
+
+	public CachedResult() {
+	}
+
+	static String makeId(String contentHash, String toolchain, int permutation) {
+		return contentHash+"/"+toolchain+"/"+permutation;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * Hash of the payload the result was compiled from; the ID of the build it came from
+	 */
+	public String getContentHash() {
+		return contentHash;
+	}
+
+	/**
+	 * Compiler the result was compiled with, as reported by the slave
+	 */
+	public String getToolchain() {
+		return toolchain;
+	}
+
+	public int getPermutation() {
+		return permutation;
+	}
+
+	/**
+	 * Encrypted result in the blob store
+	 */
+	public BlobKey getResult() {
+		return result;
+	}
+
+	/**
+	 * Size of the result in bytes
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * SHA1 of the result as the worker uploaded it, or null if it didn't tell us
+	 */
+	public String getSha1() {
+		return sha1;
+	}
+
+	public Date getCreated() {
+		return created;
+	}
+
+	/**
+	 * Last time a build used this result
+	 */
+	public Date getLastUsed() {
+		return lastUsed;
+	}
+
+	public void setLastUsed(Date lastUsed) {
+		this.lastUsed = lastUsed;
+	}
+
+	/**
+	 * @return The cached results of every permutation we have for the payload and toolchain
+	 */
+	@SuppressWarnings("unchecked")
+	public static Collection<CachedResult> findAll(PersistenceManager pm, String contentHash, String toolchain) {
+		Query q = pm.newQuery(CachedResult.class);
+		q.setFilter("contentHash == hash && toolchain == tc");
+		q.declareParameters("String hash, String tc");
+		return (Collection<CachedResult>) q.execute(contentHash, toolchain);
+	}
+
+	/**
+	 * Add a result to the cache, unless there already is one for the permutation
+	 *
+	 * @return true if the result was added, and so now belongs to the cache
+	 */
+	public static boolean offer(final String contentHash, final String toolchain, final int permutation, final BlobKey result, final long size, final String sha1) {
+		return DB.transact(new DB.Transactional<Boolean>() {
+			@Override
+			public Boolean run(PersistenceManager pm) {
+				try {
+					pm.getObjectById(CachedResult.class, makeId(contentHash, toolchain, permutation));
+					return false;
+				} catch (JDOObjectNotFoundException e) {
+					pm.makePersistent(new CachedResult(contentHash, toolchain, permutation, result, size, sha1));
+					return true;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Record that a build downloaded the result, if we haven't lately
+	 */
+	public static void touch(PersistenceManager pm, String contentHash, String toolchain, int permutation) {
+		try {
+			CachedResult cached = pm.getObjectById(CachedResult.class, makeId(contentHash, toolchain, permutation));
+			if(System.currentTimeMillis() - cached.getLastUsed().getTime() > TOUCH_INTERVAL)
+				cached.setLastUsed(new Date());
+		} catch (JDOObjectNotFoundException e) {
+			// Evicted; the build keeps it until it is deleted itself
+		}
+	}
+
+	/**
+	 * Delete results that haven't been used within the retention period, then
+	 * the least recently used ones until the rest fit in the size budget.
+	 */
+	@SuppressWarnings("unchecked")
+	public static void evict(PersistenceManager pm, BlobStore blobStore) {
+		long now = System.currentTimeMillis();
+		long retention = Integer.getInteger(RETENTION_DAYS_PROPERTY, DEFAULT_RETENTION_DAYS) * 24*3600000L;
+		long budget = Integer.getInteger(SIZE_MB_PROPERTY, DEFAULT_SIZE_MB) * 1024L*1024L;
+
+		Query q = pm.newQuery(CachedResult.class);
+		q.setOrdering("lastUsed ASC");
+		List<CachedResult> results = new ArrayList<CachedResult>((Collection<CachedResult>) q.execute());
+		long total = 0;
+		for(CachedResult cached : results) {
+			total += cached.getSize();
+		}
+		for(CachedResult cached : results) {
+			long unused = now - cached.getLastUsed().getTime();
+			if(unused > retention) {
+				log.info("Deleting cached result "+cached.getId()+"; last used "+cached.getLastUsed());
+			} else if(total > budget && unused >= MIN_UNUSED_TIME) {
+				log.info("Deleting cached result "+cached.getId()+" to stay within "+(budget/1024/1024)+"MB; last used "+cached.getLastUsed());
+			} else {
+				break; // The rest were used more recently
+			}
+			total -= cached.getSize();
+			if(cached.getResult() != null)
+				blobStore.delete(cached.getResult());
+			pm.deletePersistent(cached);
+		}
+	}
+}
@@ -1,23 +1,111 @@
 package gwtdistcc.server;
 
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.logging.Logger;
 
 import javax.jdo.JDOObjectNotFoundException;
 import javax.jdo.PersistenceManager;
+import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import com.google.appengine.api.blobstore.BlobstoreService;
-import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
-
 public class CheckForWorkServlet extends HttpServlet {
 	private static final long serialVersionUID = 1L;
-	private BlobstoreService blobstoreService = BlobstoreServiceFactory.getBlobstoreService();
+	private static final Logger log = Logger.getLogger(CheckForWorkServlet.class.getName());
+	private BlobStore blobStore = BlobStore.get();
+
+	/**
+	 * Default upper limit on how long a worker may ask us to hold the request
+	 * open; App Engine kills requests after 30 seconds.
+	 */
+	private static final long DEFAULT_MAX_WAIT = 25000;
+
+	/**
+	 * How often a waiting request re-checks the datastore, in case work was
+	 * added through another server instance.
+	 */
+	private static final long RECHECK_INTERVAL = 2000;
+
+	/**
+	 * Upper limit on the number of permutations a worker may claim at once
+	 * using the max parameter.
+	 */
+	private static final int MAX_CLAIM = 32;
+
+	/**
+	 * Limit on how many times we look in a queue again after finding only
+	 * leftover index entries, or losing the race for what we found.
+	 */
+	private static final int MAX_ATTEMPTS_PER_QUEUE = 5;
+
+	/**
+	 * Number of other workers we suggest getting a payload from
+	 */
+	private static final int MAX_PEER_HINTS = 3;
+
+	/**
+	 * Number of extra permutations we look at beyond what the worker asked
+	 * for, in case some of them need more memory than it has
+	 */
+	private static final int EXTRA_CANDIDATES = 8;
+
+	/**
+	 * Permutations that need more memory than a worker has are given to it
+	 * anyway once their build is this old, in case no bigger worker comes along
+	 */
+	private static final long HEAVY_WORK_RESERVATION = 10*60*1000;
+
+	/**
+	 * Number of leased permutations per queue we look at for stragglers when
+	 * a worker finds nothing else to do, the longest running first
+	 */
+	private static final int STRAGGLER_CANDIDATES = 20;
+
+	/**
+	 * A permutation is a straggler once it has been running this many times
+	 * its expected time
+	 */
+	private static final int STRAGGLER_FACTOR = 2;
+
+	/**
+	 * Permutations running for less than this are never duplicated, as a
+	 * worker would spend most of it getting the payload
+	 */
+	private static final long MIN_STRAGGLER_TIME = 2*60*1000;
+
+	/**
+	 * Only builds with no more than this fraction of their permutations (or a
+	 * single one) left get duplicates
+	 */
+	private static final int STRAGGLER_BUILD_DIVISOR = 4;
+
+	private long maxWait = DEFAULT_MAX_WAIT;
+
+	@Override
+	public void init() throws ServletException {
+		String maxWaitStr = getInitParameter("maxWait");
+		if(maxWaitStr != null)
+			maxWait = Long.parseLong(maxWaitStr) * 1000;
+	}
 	
+	/**
+	 * Same as GET; workers with a lot to say about their cache send it in the body
+	 */
+	@Override
+	protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+			throws IOException {
+		doGet(req, resp);
+	}
+
 	public void doGet(HttpServletRequest req, HttpServletResponse resp)
 			throws IOException {
 		Set<String> queues = ServletUtil.getQueues(req);
@@ -31,71 +119,325 @@ public class CheckForWorkServlet extends HttpServlet {
 			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "If workerId is provided, workerLabel must also be provided.");
 			return;
 		}
+		if(req.getMethod().equals("HEAD"))
+			workerId = null; // Only peek: claim nothing and record nothing about the worker
+		long wait;
+		int max;
+		WorkerCaches.Advertisement cache;
+		WorkerCapabilities capabilities = WorkerCapabilities.read(req);
+		try {
+			wait = getWaitTime(req);
+			max = getMaxClaim(req);
+			if(capabilities.getSlots() > 0)
+				max = Math.min(max, capabilities.getSlots());
+			cache = WorkerCaches.read(workerId, req);
+		} catch (NumberFormatException e) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "wait, max or a cache version is not a number");
+			return;
+		}
+		resp.setHeader("Cache-Control", "no-cache, must-revalidate");
+		if(cache.getVersion() != -1)
+			resp.setHeader("X-Cache-Version", String.valueOf(cache.getVersion()));
 		PersistenceManager pm = DB.getPersistenceManager();
 		try {
-			resp.setHeader("Cache-Control", "no-cache, must-revalidate");
-			verifyClientCache(req, resp, pm);
+			verifyClientCache(cache.getBuildsToVerify(), resp, pm);
+		} finally {
+			pm.close();
+		}
+
+		long deadline = System.currentTimeMillis() + wait;
+		for(;;) {
+			if(claimWork(req, resp, queues, workerId, workerLabel, max, cache, capabilities))
+				return;
+			long remaining = deadline - System.currentTimeMillis();
+			if(remaining <= 0)
+				break;
+			try {
+				WorkNotifier.await(queues, Math.min(remaining, RECHECK_INTERVAL));
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		resp.sendError(HttpServletResponse.SC_NOT_FOUND, "No builds at this time");
+	}
 
-			boolean foundBuild = false;
+	/**
+	 * Number of milliseconds the client asked us to wait for work using the
+	 * wait parameter (in seconds), limited to the configured maximum.
+	 */
+	private long getWaitTime(HttpServletRequest req) {
+		String waitStr = req.getParameter("wait");
+		if(waitStr == null || waitStr.isEmpty() || req.getMethod().equals("HEAD"))
+			return 0;
+		long wait = Long.parseLong(waitStr) * 1000;
+		return Math.max(0, Math.min(wait, maxWait));
+	}
+
+	/**
+	 * Number of permutations the client asked to claim at once using the max
+	 * parameter, limited to {@link #MAX_CLAIM}.
+	 */
+	private int getMaxClaim(HttpServletRequest req) {
+		String maxStr = req.getParameter("max");
+		if(maxStr == null || maxStr.isEmpty())
+			return 1;
+		return Math.max(1, Math.min(Integer.parseInt(maxStr), MAX_CLAIM));
+	}
+
+	/**
+	 * Look for an available permutation in the given queues using the
+	 * {@link PendingPermutation} index and, if found, assign it to the worker
+	 * and write it to the response.
+	 * 
+	 * Up to max permutations of the same build are assigned together; their numbers
+	 * are listed in X-Permutation and their result upload URLs in X-Upload-Result-To,
+	 * both comma-separated and in the same order.
+	 * 
+	 * Permutations that ran out of memory on a worker with as much heap as
+	 * this one has are skipped (see {@link PermutationTiming#getNeededHeapMB()}),
+	 * unless their build has waited {@link #HEAVY_WORK_RESERVATION} for a
+	 * bigger worker already.
+	 * 
+	 * If there is nothing to claim, the worker may get a duplicate of a
+	 * straggler instead (see {@link #claimStraggler}).
+	 * 
+	 * @return true if a permutation was found and written to the response
+	 */
+	private boolean claimWork(HttpServletRequest req, HttpServletResponse resp,
+			Set<String> queues, String workerId, String workerLabel, int max,
+			WorkerCaches.Advertisement cache, WorkerCapabilities capabilities) throws IOException {
+		boolean claimed = false;
+		PersistenceManager pm = DB.getPersistenceManager();
+		try {
 			for (String queueId : queues) {
-				for (Build b : Build.list(pm, queueId)) {
-					if(b.deleteIfStale(pm, blobstoreService))
-						continue;
-					if(b.getCompleted() != null) {
-						// Build complete, don't return it
+				// Builds with nothing this worker can run
+				Set<String> tooHeavy = new HashSet<String>();
+				for (int attempt = 0; attempt < MAX_ATTEMPTS_PER_QUEUE; attempt++) {
+					List<PendingPermutation> pending = PendingPermutation.findClaimable(pm, queueId, max + EXTRA_CANDIDATES);
+					String buildId = null;
+					for (PendingPermutation candidate : pending) {
+						if(!tooHeavy.contains(candidate.getBuildId())) {
+							buildId = candidate.getBuildId();
+							break;
+						}
+					}
+					if(buildId == null)
+						break;
+					Build b;
+					try {
+						b = pm.getObjectById(Build.class, buildId);
+					} catch (JDOObjectNotFoundException e) {
+						b = null;
+					}
+					if(b == null || b.getCompleted() != null) {
+						// Left behind by a build that is gone or done
+						PendingPermutation.removeBuild(pm, buildId);
 						continue;
 					}
-					for (Permutation p : b.getPermutations()) {
-						if (p.isAvailable()) {
-							if(workerId != null && !req.getMethod().equals("HEAD")) {
-								p.setWorkerId(workerId);
-								p.setWorkerLabel(workerLabel);
-								p.setBuildAlive(new Date());
-								p.setStarted(new Date());
-								p.setDownloaded(new Date());
-								resp.setHeader("X-Queue-ID", queueId);
-								resp.setHeader("X-Build-ID", b.getId());
-								resp.setHeader("ETag", b.getId());
-								resp.setHeader("X-Build-Label", b.getLabel());
-								resp.setDateHeader("X-Build-Created", b.getCreated().getTime());
-								resp.setHeader("X-Permutation", String.valueOf(p.getPermutation()));
-								String uploadToUrl = blobstoreService.createUploadUrl("/build-result");
-								resp.setHeader("X-Upload-Result-To", uploadToUrl);
-
-								if(getCachedBuilds(req).contains(b.getId())) {
-									// Notify the client that they already have this in their cache
-									resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
-								} else {
-									blobstoreService.serve(b.getData(), resp);
-								}
-							} else {
-								resp.setContentType("text/plain");
-								resp.getWriter().println(b.toString());
-							}
-							return;
+					if(workerId == null) {
+						resp.setContentType("text/plain");
+						resp.getWriter().println(b.toString());
+						return true;
+					}
+					
+					Map<Integer, Long> neededHeaps = System.currentTimeMillis() - b.getCreated().getTime() < HEAVY_WORK_RESERVATION
+							? PermutationTiming.findNeededHeaps(pm, b.getModule())
+							: Collections.<Integer, Long>emptyMap();
+					
+					// Claim each permutation atomically; another worker may beat us to some of them
+					ArrayList<Integer> claimedPerms = new ArrayList<Integer>();
+					boolean skipped = false;
+					for (PendingPermutation claim : pending) {
+						if(!claim.getBuildId().equals(buildId))
+							continue; // Only hand out one build at a time
+						if(claimedPerms.size() >= max)
+							break;
+						Long neededHeap = neededHeaps.get(claim.getPermutation());
+						if(neededHeap != null && !capabilities.canRun(neededHeap)) {
+							skipped = true;
+							continue;
 						}
+						if(PendingPermutation.claim(buildId, claim.getPermutation(), workerId))
+							claimedPerms.add(claim.getPermutation());
+					}
+					if(claimedPerms.isEmpty()) {
+						if(skipped) {
+							log.info("Not giving "+workerLabel+" ("+capabilities+") permutations of build "+buildId+" that ran out of memory with that much heap");
+							tooHeavy.add(buildId);
+						}
+						continue;
 					}
+					recordClaim(buildId, claimedPerms, workerId, workerLabel);
+					claimed = true;
+					sendWork(req, resp, queueId, b, claimedPerms, workerId, cache);
+					return true;
 				}
 			}
-			if (!foundBuild) {
-				resp.sendError(HttpServletResponse.SC_NOT_FOUND, "No builds at this time");
-				return;
-			}
+			if(workerId != null)
+				return claimStraggler(req, resp, pm, queues, workerId, workerLabel, cache, capabilities);
+			return false;
 		} finally {
 			pm.close();
+			if(claimed)
+				BuildStatusNotifier.statusChanged();
+		}
+	}
+
+	/**
+	 * Look for a permutation that is holding up a build that is otherwise
+	 * nearly done, and give the worker a duplicate of it; whichever worker
+	 * finishes first provides the result (see {@link PendingPermutation#speculate}).
+	 * 
+	 * A permutation is a straggler if its build has at most a
+	 * {@link #STRAGGLER_BUILD_DIVISOR}th of its permutations (or just the one)
+	 * left, and it has been running {@link #STRAGGLER_FACTOR} times as long
+	 * as it is expected to take, and at least {@link #MIN_STRAGGLER_TIME}.
+	 * 
+	 * @return true if a duplicate was given to the worker and written to the response
+	 */
+	private boolean claimStraggler(HttpServletRequest req, HttpServletResponse resp, PersistenceManager pm,
+			Set<String> queues, String workerId, String workerLabel,
+			WorkerCaches.Advertisement cache, WorkerCapabilities capabilities) throws IOException {
+		long now = System.currentTimeMillis();
+		for (String queueId : queues) {
+			Map<String, Build> builds = new HashMap<String, Build>();
+			for (PendingPermutation candidate : PendingPermutation.findLeased(pm, queueId, STRAGGLER_CANDIDATES)) {
+				if(candidate.isSpeculating() || workerId.equals(candidate.getWorkerId()))
+					continue;
+				String buildId = candidate.getBuildId();
+				Build b = builds.get(buildId);
+				if(b == null && !builds.containsKey(buildId)) {
+					try {
+						b = pm.getObjectById(Build.class, buildId);
+						if(b.getCompleted() != null)
+							b = null;
+					} catch (JDOObjectNotFoundException e) {
+						b = null;
+					}
+					builds.put(buildId, b);
+				}
+				if(b == null || !isStraggler(b, b.getPermutation(candidate.getPermutation()), candidate.getExpectedTime(), now))
+					continue;
+				Long neededHeap = PermutationTiming.findNeededHeaps(pm, b.getModule()).get(candidate.getPermutation());
+				if(neededHeap != null && !capabilities.canRun(neededHeap))
+					continue;
+				if(!PendingPermutation.speculate(buildId, candidate.getPermutation(), workerId))
+					continue;
+				log.info("Giving "+workerLabel+" a duplicate of straggler "+b.getPermutation(candidate.getPermutation()));
+				sendWork(req, resp, queueId, b, Collections.singletonList(candidate.getPermutation()), workerId, cache);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param expectedTime Expected time of the permutation from earlier builds, or null to
+	 *                     expect it to take as long as those of the build that are done
+	 * @return true if the permutation has been running long enough past its
+	 *         expected time, in a build that is nearly done, to run it again elsewhere
+	 */
+	static boolean isStraggler(Build b, Permutation p, Long expectedTime, long now) {
+		if(p == null || p.getStarted() == null || p.getFinished() != null)
+			return false;
+		int unfinished = 0;
+		int compiled = 0;
+		long compileTime = 0;
+		for(Permutation other : b.getPermutations()) {
+			if(other.getFinished() == null) {
+				unfinished++;
+			} else if(other.getStarted() != null && !other.isCacheHit()) {
+				compiled++;
+				compileTime += other.getFinished().getTime() - other.getStarted().getTime();
+			}
+		}
+		if(unfinished > Math.max(1, b.getPermutations().size() / STRAGGLER_BUILD_DIVISOR))
+			return false;
+		long expected = expectedTime != null ? expectedTime : compiled > 0 ? compileTime / compiled : 0;
+		if(expected <= 0)
+			return false;
+		long running = now - p.getStarted().getTime();
+		return running >= MIN_STRAGGLER_TIME && running >= expected * STRAGGLER_FACTOR;
+	}
+
+	/**
+	 * Write the permutations given to the worker, and the build's payload if
+	 * it needs it, to the response
+	 */
+	private void sendWork(HttpServletRequest req, HttpServletResponse resp, String queueId,
+			Build b, List<Integer> claimedPerms, String workerId,
+			WorkerCaches.Advertisement cache) throws IOException {
+		StringBuffer perms = new StringBuffer();
+		StringBuffer uploadToUrls = new StringBuffer();
+		for (int perm : claimedPerms) {
+			if(perms.length() > 0) {
+				perms.append(',');
+				uploadToUrls.append(',');
+			}
+			perms.append(perm);
+			uploadToUrls.append(blobStore.createUploadUrl("/build-result"));
 		}
+		resp.setHeader("X-Queue-ID", queueId);
+		resp.setHeader("X-Build-ID", b.getId());
+		resp.setHeader("ETag", b.getId());
+		resp.setHeader("X-Build-Label", b.getLabel());
+		resp.setDateHeader("X-Build-Created", b.getCreated().getTime());
+		resp.setHeader("X-Permutation", perms.toString());
+		resp.setHeader("X-Upload-Result-To", uploadToUrls.toString());
+
+		List<String> peers = cache.contains(b.getId()) || WorkerCaches.getPeerUrl(req) == null
+				? Collections.<String>emptyList()
+				: WorkerCaches.findPeers(b.getId(), workerId, MAX_PEER_HINTS);
+		if(cache.contains(b.getId())) {
+			// Notify the client that they already have this in their cache
+			resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+		} else if(!peers.isEmpty()) {
+			// Other workers have the payload; the worker gets it from them, or from /build-payload if they can't give it
+			StringBuffer peerUrls = new StringBuffer();
+			for(String peer : peers) {
+				if(peerUrls.length() > 0) peerUrls.append(',');
+				peerUrls.append(peer);
+			}
+			resp.setHeader("X-Payload-Format", "peers");
+			resp.setHeader("X-Payload-Peers", peerUrls.toString());
+		} else {
+			BuildPayloadServlet.sendPayload(b, req, resp, blobStore);
+		}
+	}
+
+	/**
+	 * Show the claimed permutations as started by the worker in the build's status
+	 */
+	private void recordClaim(final String buildId, final List<Integer> perms,
+			final String workerId, final String workerLabel) {
+		DB.transact(new DB.Transactional<Void>() {
+			@Override
+			public Void run(PersistenceManager pm) {
+				Build b = pm.getObjectById(Build.class, buildId);
+				for(int perm : perms) {
+					Permutation p = b.getPermutation(perm);
+					p.setWorkerId(workerId);
+					p.setWorkerLabel(workerLabel);
+					p.setBuildAlive(new Date());
+					p.setStarted(new Date());
+					p.setDownloaded(new Date());
+				}
+				b.statusChanged();
+				return null;
+			}
+		});
 	}
 
 	/**
-	 * Read the cache parameter and return back a list of builds that
-	 * no longer exist so the client can delete them from its cache.
+	 * Check the given builds from the client's cache and return back a list of
+	 * builds that no longer exist so the client can delete them from its cache.
 	 * 
 	 * The list is put in the HTTP header X-Delete-Cached-Builds
 	 */
-	private void verifyClientCache(HttpServletRequest req,
+	private void verifyClientCache(Set<String> cachedBuildIds,
 			HttpServletResponse resp, PersistenceManager pm) throws IOException {
 		StringBuffer sb = new StringBuffer();
-		for(String cachedBuildId : getCachedBuilds(req)) {
+		for(String cachedBuildId : cachedBuildIds) {
 			// Check the status of the build
 			Build b;
 			try {
@@ -112,10 +454,4 @@ public class CheckForWorkServlet extends HttpServlet {
 			resp.setHeader("X-Delete-Cached-Builds", sb.substring(2));
 	}
 
-	private Set<String> getCachedBuilds(HttpServletRequest req) {
-		req.getHeader("If-None-Match");
-		
-		return ServletUtil.getStrings(req, "cache");
-	}
-
 }
@@ -0,0 +1,122 @@
+package gwtdistcc.server;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jdo.PersistenceManager;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.appengine.api.blobstore.BlobKey;
+
+/**
+ * Chunk store for chunked build payloads.
+ * 
+ * <ul>
+ * <li>GET with an id downloads that chunk</li>
+ * <li>GET/HEAD without an id returns the URL to upload new chunks to in X-Upload-URL</li>
+ * <li>POST with ids (comma-separated) returns the ids of the chunks we don't have, one per line</li>
+ * <li>POST to the upload URL stores the uploaded files as chunks, using each file's form field name as its id</li>
+ * </ul>
+ */
+public class ChunksServlet extends HttpServlet {
+	private static final long serialVersionUID = 1L;
+	private BlobStore blobStore = BlobStore.get();
+
+	@Override
+	protected void doHead(HttpServletRequest req, HttpServletResponse resp)
+			throws ServletException, IOException {
+		doGet(req, resp);
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+			throws ServletException, IOException {
+		String id = req.getParameter("id");
+		if(id == null || id.isEmpty()) {
+			resp.setHeader("Cache-Control", "no-cache, must-revalidate");
+			resp.setHeader("X-Upload-URL", blobStore.createUploadUrl("/chunks"));
+			return;
+		}
+		PersistenceManager pm = DB.getPersistenceManager();
+		try {
+			PayloadChunk chunk = PayloadChunk.find(pm, id);
+			if(chunk == null) {
+				resp.sendError(HttpServletResponse.SC_NOT_FOUND, "No chunk with that ID found.");
+				return;
+			}
+			blobStore.serve(chunk.getData(), req, resp);
+		} finally {
+			pm.close();
+		}
+	}
+
+	@Override
+	protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+			throws ServletException, IOException {
+		Set<String> ids = ServletUtil.getStrings(req, "ids");
+		if(!ids.isEmpty()) {
+			findMissingChunks(ids, resp);
+			return;
+		}
+		
+		Map<String, BlobKey> blobs;
+		try {
+			blobs = blobStore.getUploadedBlobs(req);
+		} catch (IllegalStateException e) {
+			// Not an upload
+			blobs = Collections.emptyMap();
+		}
+		if(blobs.isEmpty()) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Must pass chunk ids or upload some chunks");
+			return;
+		}
+		PersistenceManager pm = DB.getPersistenceManager();
+		try {
+			for(Map.Entry<String, BlobKey> blob : blobs.entrySet()) {
+				String id = blob.getKey();
+				if(!PayloadChunk.VALID_CHUNK_ID.matcher(id).matches() || PayloadChunk.find(pm, id) != null) {
+					// Bad or duplicate chunk, we don't need it
+					blobStore.delete(blob.getValue());
+					continue;
+				}
+				pm.makePersistent(new PayloadChunk(id, blob.getValue()));
+			}
+		} finally {
+			pm.close();
+		}
+		resp.sendRedirect("/chunks");
+	}
+
+	/**
+	 * Write the ids of the chunks we don't have, and mark the others as used so
+	 * they don't expire before the build using them is added.
+	 */
+	private void findMissingChunks(Set<String> ids, HttpServletResponse resp) throws IOException {
+		resp.setContentType("text/plain");
+		PrintWriter w = resp.getWriter();
+		PersistenceManager pm = DB.getPersistenceManager();
+		try {
+			Date now = new Date();
+			for(String id : ids) {
+				if(!PayloadChunk.VALID_CHUNK_ID.matcher(id).matches()) {
+					resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid chunk ID "+id);
+					return;
+				}
+				PayloadChunk chunk = PayloadChunk.find(pm, id);
+				if(chunk == null)
+					w.println(id);
+				else
+					chunk.setLastUsed(now);
+			}
+		} finally {
+			pm.close();
+		}
+	}
+}
@@ -1,11 +1,34 @@
 package gwtdistcc.server;
 
+import java.util.ConcurrentModificationException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.jdo.JDOCanRetryException;
 import javax.jdo.JDOHelper;
 import javax.jdo.PersistenceManager;
 import javax.jdo.PersistenceManagerFactory;
+import javax.jdo.Transaction;
 
 public class DB {
 	static final PersistenceManagerFactory pmf = JDOHelper.getPersistenceManagerFactory("transactions-optional");
+	private static final Logger log = Logger.getLogger(DB.class.getName());
+
+	/**
+	 * Number of times a transaction is attempted before giving up
+	 */
+	private static final int MAX_ATTEMPTS = 5;
+
+	private static final AtomicLong transactionRetries = new AtomicLong();
+
+	/**
+	 * Work done in a transaction by {@link DB#transact(Transactional)}.  It may be
+	 * run more than once, so it must read everything it needs from the given
+	 * persistence manager and have no other side effects.
+	 */
+	public static abstract class Transactional<T> {
+		public abstract T run(PersistenceManager pm);
+	}
 
 	public static PersistenceManager getPersistenceManager() {
 		return pmf.getPersistenceManager();
@@ -14,5 +37,42 @@ public class DB {
 	public static String getServerTimeZoneID() {
 		return pmf.getServerTimeZoneID();
 	}
-	
+
+	/**
+	 * Run the work in a transaction with its own persistence manager, retrying
+	 * it if someone else changed the same entity group before we could commit.
+	 * 
+	 * All entities touched must be in one entity group.
+	 */
+	public static <T> T transact(Transactional<T> work) {
+		for(int attempt=1; ; attempt++) {
+			PersistenceManager pm = getPersistenceManager();
+			Transaction tx = pm.currentTransaction();
+			try {
+				tx.begin();
+				T result = work.run(pm);
+				tx.commit();
+				return result;
+			} catch (JDOCanRetryException e) {
+				if(attempt >= MAX_ATTEMPTS)
+					throw e;
+			} catch (ConcurrentModificationException e) {
+				if(attempt >= MAX_ATTEMPTS)
+					throw e;
+			} finally {
+				if(tx.isActive())
+					tx.rollback();
+				pm.close();
+			}
+			log.fine("Transaction conflict, retrying (attempt "+attempt+")");
+			transactionRetries.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Number of transactions retried because of a conflict since this server instance started
+	 */
+	public static long getTransactionRetries() {
+		return transactionRetries.get();
+	}
 }
@@ -1,6 +1,12 @@
 package gwtdistcc.server;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Logger;
 
 import javax.jdo.Extent;
 import javax.jdo.PersistenceManager;
@@ -9,27 +15,93 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import com.google.appengine.api.blobstore.BlobstoreService;
-import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
-
+/**
+ * Cleans up old builds, chunks and cached results.  On App Engine cron calls
+ * this every 15 minutes (see cron.xml).  The SDK's development server has
+ * no cron, so when we host the server in it ourselves it calls itself on a
+ * timer instead.
+ *
+ * Builds nobody has checked on lately are only deleted here, along with
+ * their permutations in the pending work index, so looking for work never
+ * has to.  Workers may start on such a build until the next cleanup.
+ */
 public class DeleteOldBuildsServlet extends HttpServlet {
 	private static final long serialVersionUID = 1L;
-	private BlobstoreService blobstoreService = BlobstoreServiceFactory.getBlobstoreService();
-	
+
+	/**
+	 * System property with the self-hosted server's own URL, which the timer
+	 * calls this servlet through so it runs like any other request
+	 */
+	public static final String SERVER_URL_PROPERTY = "gwtdistcc.serverUrl";
+
+	/**
+	 * How often the self-hosted server cleans up, as cron does on App Engine
+	 */
+	static final long SELF_HOSTED_CLEANUP_INTERVAL = 15*60*1000;
+
+	private static final Logger log = Logger.getLogger(DeleteOldBuildsServlet.class.getName());
+
+	private Timer timer;
+
+	@Override
+	public void init() throws ServletException {
+		String serverUrl = System.getProperty(SERVER_URL_PROPERTY);
+		if(!BlobStore.isSelfHosted() || serverUrl == null || serverUrl.isEmpty())
+			return;
+		final String url = serverUrl+"/delete-old-builds";
+		try {
+			timer = new Timer("delete-old-builds", true);
+		} catch (SecurityException e) {
+			log.severe("Can't start the cleanup timer, have something call "+url+" every 15 minutes instead: "+e);
+			return;
+		}
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				try {
+					HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+					InputStream in = conn.getInputStream();
+					in.close();
+					if(conn.getResponseCode() != HttpServletResponse.SC_OK)
+						log.warning("Cleanup at "+url+" failed: "+conn.getResponseCode()+" "+conn.getResponseMessage());
+				} catch (IOException e) {
+					log.warning("Cleanup at "+url+" failed: "+e);
+				}
+			}
+		}, SELF_HOSTED_CLEANUP_INTERVAL, SELF_HOSTED_CLEANUP_INTERVAL);
+	}
+
+	@Override
+	public void destroy() {
+		if(timer != null)
+			timer.cancel();
+	}
+
 	@Override
 	protected void doGet(HttpServletRequest req, HttpServletResponse resp)
 			throws ServletException, IOException {
+		resp.setHeader("Cache-Control", "no-cache, must-revalidate");
+		deleteOldBuilds();
+	}
+
+	static void deleteOldBuilds() {
+		BlobStore blobStore = BlobStore.get();
 		PersistenceManager pm = DB.getPersistenceManager();
 		try {
-			resp.setHeader("Cache-Control", "no-cache, must-revalidate");
 			Extent<Build> builds = pm.getExtent(Build.class);
 			for(Build b: builds) {
-				b.deleteIfStale(pm, blobstoreService);
+				if(b.deleteIfStale(pm, blobStore))
+					continue;
+				// Index builds added before there was a pending work index
+				if(b.getCompleted() == null && !PendingPermutation.hasBuild(pm, b.getId()))
+					PendingPermutation.addBuild(pm, b);
 			}
 			builds.closeAll();
+			PayloadChunk.deleteUnused(pm, blobStore);
+			CachedResult.evict(pm, blobStore);
+			WorkerCache.deleteStale(pm);
 		} finally {
 			pm.close();
 		}
-		
 	}
 }
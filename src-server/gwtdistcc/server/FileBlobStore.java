@@ -0,0 +1,317 @@
+package gwtdistcc.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.appengine.api.blobstore.BlobKey;
+
+/**
+ * Keeps each blob as a file in a directory on the local disk, for running the
+ * server on our own machines.  Uploads go to {@link FileUploadServlet}.
+ *
+ * As with Blobstore upload URLs, each upload URL carries a token that can be
+ * used once, within {@link #UPLOAD_URL_LIFETIME}.  The tokens are kept in
+ * memory, as the development server is a single process.
+ */
+public class FileBlobStore extends BlobStore {
+	/**
+	 * Path {@link FileUploadServlet} is mapped to
+	 */
+	public static final String UPLOAD_PATH = "/_upload";
+
+	/**
+	 * Request attribute {@link FileUploadServlet} puts the uploaded blobs in
+	 */
+	static final String UPLOADED_BLOBS_ATTRIBUTE = "gwtdistcc.uploadedBlobs";
+
+	/**
+	 * Request attribute set once the success path has picked up the uploaded blobs
+	 */
+	static final String UPLOADED_BLOBS_TAKEN_ATTRIBUTE = "gwtdistcc.uploadedBlobsTaken";
+
+	/**
+	 * How long an upload URL may be used for, as on App Engine
+	 */
+	static final long UPLOAD_URL_LIFETIME = 10*60*1000;
+
+	/**
+	 * Largest upload accepted; payloads and results of large modules are far below this
+	 */
+	static final long MAX_UPLOAD_SIZE = 1024L*1024*1024;
+
+	static final Pattern VALID_KEY = Pattern.compile("[0-9a-f]{32}");
+
+	private static final Logger log = Logger.getLogger(FileBlobStore.class.getName());
+	private static final SecureRandom random = new SecureRandom();
+
+	final File dir;
+
+	/**
+	 * Success path and expiry time of each upload URL not used yet, by token
+	 */
+	private final Map<String, UploadToken> uploadTokens = new HashMap<String, UploadToken>();
+
+	static final class UploadToken {
+		final String successPath;
+		final long expires;
+
+		UploadToken(String successPath, long expires) {
+			this.successPath = successPath;
+			this.expires = expires;
+		}
+	}
+
+	public FileBlobStore(File dir) {
+		this.dir = dir;
+		if(!dir.isDirectory() && !dir.mkdirs())
+			throw new IllegalStateException("Can't create blob directory "+dir);
+		log.info("Storing blobs in "+dir.getAbsolutePath());
+	}
+
+	@Override
+	public synchronized String createUploadUrl(String successPath) {
+		long now = System.currentTimeMillis();
+		for(Iterator<UploadToken> it = uploadTokens.values().iterator(); it.hasNext(); ) {
+			if(it.next().expires < now)
+				it.remove();
+		}
+		String token = newKey();
+		uploadTokens.put(token, new UploadToken(successPath, now + UPLOAD_URL_LIFETIME));
+		return UPLOAD_PATH+"?token="+token;
+	}
+
+	/**
+	 * Use up an upload URL's token
+	 *
+	 * @return The success path of the upload URL, or null if the token is unknown, used or expired
+	 */
+	synchronized String useUploadToken(String token) {
+		if(token == null)
+			return null;
+		UploadToken t = uploadTokens.remove(token);
+		if(t == null || t.expires < System.currentTimeMillis())
+			return null;
+		return t.successPath;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public Map<String, BlobKey> getUploadedBlobs(HttpServletRequest req) {
+		Map<String, BlobKey> blobs = (Map<String, BlobKey>) req.getAttribute(UPLOADED_BLOBS_ATTRIBUTE);
+		if(blobs == null)
+			throw new IllegalStateException("Not an upload request");
+		req.setAttribute(UPLOADED_BLOBS_TAKEN_ATTRIBUTE, Boolean.TRUE);
+		return blobs;
+	}
+
+	/**
+	 * @return The file holding the blob, or null if the key isn't one of ours
+	 */
+	File getFile(BlobKey blobKey) {
+		String key = blobKey.getKeyString();
+		if(!VALID_KEY.matcher(key).matches())
+			return null;
+		return new File(dir, key);
+	}
+
+	/**
+	 * Copy the stream into a new blob
+	 */
+	public BlobKey store(InputStream in) throws IOException {
+		BlobKey blobKey = new BlobKey(newKey());
+		// Write to a temp file so a half-written blob never shows up under its key
+		File tempFile = File.createTempFile("upload", ".tmp", dir);
+		try {
+			OutputStream out = new FileOutputStream(tempFile);
+			try {
+				byte[] buf = new byte[64*1024];
+				int len;
+				while((len = in.read(buf)) != -1) {
+					out.write(buf, 0, len);
+				}
+			} finally {
+				out.close();
+			}
+			if(!tempFile.renameTo(getFile(blobKey)))
+				throw new IOException("Failed to rename "+tempFile+" to "+getFile(blobKey));
+		} finally {
+			tempFile.delete();
+		}
+		return blobKey;
+	}
+
+	/**
+	 * Sends the file (or the part asked for) through a small fixed buffer
+	 * rather than reading the blob into memory.  Blobs never change, so the
+	 * key serves as the ETag and a single byte range may be asked for (with
+	 * If-Range) to resume an interrupted download.
+	 */
+	@Override
+	public void serve(BlobKey blobKey, HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		File file = getFile(blobKey);
+		if(file == null || !file.isFile()) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND, "Blob not found");
+			return;
+		}
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			long length = channel.size();
+			String etag = "\""+blobKey.getKeyString()+"\"";
+			resp.setContentType("application/octet-stream");
+			resp.setHeader("Accept-Ranges", "bytes");
+			resp.setHeader("ETag", etag);
+			resp.setDateHeader("Last-Modified", file.lastModified());
+
+			long start = 0;
+			long end = length;
+			String range = req.getHeader("Range");
+			if(range != null && ifRangeMatches(req, etag, file.lastModified())) {
+				long[] r = parseRange(range, length);
+				if(r == UNSATISFIABLE) {
+					resp.setHeader("Content-Range", "bytes */"+length);
+					resp.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+					return;
+				}
+				if(r != null) {
+					start = r[0];
+					end = r[1];
+					resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+					resp.setHeader("Content-Range", "bytes "+start+"-"+(end-1)+"/"+length);
+				}
+			}
+			resp.setHeader("Content-Length", String.valueOf(end - start));
+			if(req.getMethod().equals("HEAD"))
+				return;
+			transfer(channel, start, end - start, resp.getOutputStream());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Returned by {@link #parseRange(String, long)} for a range that lies outside the blob
+	 */
+	static final long[] UNSATISFIABLE = new long[0];
+
+	/**
+	 * Parse a Range header.  Only a single byte range is supported; we send
+	 * the whole blob for anything else, as HTTP allows.
+	 *
+	 * @return The start and end (exclusive) of the range, {@link #UNSATISFIABLE}, or null to send the whole blob
+	 */
+	static long[] parseRange(String range, long length) {
+		range = range.trim();
+		if(!range.startsWith("bytes=") || range.indexOf(',') != -1)
+			return null;
+		String spec = range.substring("bytes=".length()).trim();
+		int dash = spec.indexOf('-');
+		if(dash == -1)
+			return null;
+		try {
+			String first = spec.substring(0, dash).trim();
+			String last = spec.substring(dash+1).trim();
+			long start, end;
+			if(first.isEmpty()) {
+				// Suffix range: the last N bytes
+				long suffix = Long.parseLong(last);
+				if(suffix <= 0)
+					return UNSATISFIABLE;
+				start = Math.max(0, length - suffix);
+				end = length;
+			} else {
+				start = Long.parseLong(first);
+				if(last.isEmpty()) {
+					end = length;
+				} else {
+					long lastByte = Long.parseLong(last);
+					if(lastByte < start)
+						return null; // Invalid, so ignored
+					end = Math.min(length, lastByte + 1);
+				}
+			}
+			if(start >= length)
+				return UNSATISFIABLE;
+			return new long[] {start, end};
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if there is no If-Range header, or it names the blob as it is now
+	 */
+	static boolean ifRangeMatches(HttpServletRequest req, String etag, long lastModified) {
+		String ifRange = req.getHeader("If-Range");
+		if(ifRange == null)
+			return true;
+		ifRange = ifRange.trim();
+		if(ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+			return ifRange.equals(etag); // Weak tags never match
+		try {
+			return req.getDateHeader("If-Range") / 1000 == lastModified / 1000;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Copy part of a file to the output with {@link FileChannel#transferTo}.
+	 * The servlet API only gives us an OutputStream, so unless the container's
+	 * stream happens to be a channel this is a buffered copy, not a sendfile.
+	 */
+	static void transfer(FileChannel channel, long position, long count, OutputStream out) throws IOException {
+		WritableByteChannel target = out instanceof WritableByteChannel ? (WritableByteChannel) out : Channels.newChannel(out);
+		while(count > 0) {
+			long sent = channel.transferTo(position, count, target);
+			if(sent <= 0)
+				throw new IOException("Blob is shorter than expected");
+			position += sent;
+			count -= sent;
+		}
+	}
+
+	/**
+	 * @return 32 random hex digits
+	 */
+	private static String newKey() {
+		byte[] keyBytes = new byte[16];
+		random.nextBytes(keyBytes);
+		StringBuilder key = new StringBuilder();
+		for(byte b : keyBytes) {
+			key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return key.toString();
+	}
+
+	@Override
+	public long getSize(BlobKey blobKey) {
+		File file = getFile(blobKey);
+		return file == null || !file.isFile() ? -1 : file.length();
+	}
+
+	@Override
+	public void delete(BlobKey... blobKeys) {
+		for(BlobKey blobKey : blobKeys) {
+			File file = getFile(blobKey);
+			if(file != null && file.exists() && !file.delete())
+				log.warning("Failed to delete blob "+file);
+		}
+	}
+}
@@ -0,0 +1,340 @@
+package gwtdistcc.server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.appengine.api.blobstore.BlobKey;
+
+/**
+ * Upload URL of the {@link FileBlobStore}, doing what App Engine does for
+ * Blobstore upload URLs: the files in the posted form are stored as blobs,
+ * then the request is passed on to the success path with the other form
+ * fields as parameters.
+ *
+ * Only URLs from {@link FileBlobStore#createUploadUrl(String)} are accepted,
+ * each of them once, and uploads are limited to
+ * {@link FileBlobStore#MAX_UPLOAD_SIZE}.  Blobs the success path doesn't pick
+ * up are deleted once it is done.
+ */
+public class FileUploadServlet extends HttpServlet {
+	private static final long serialVersionUID = 1L;
+
+	static final Pattern BOUNDARY = Pattern.compile("boundary=\"?([^\";]+)\"?");
+	static final Pattern FIELD_NAME = Pattern.compile("(?:^|;)\\s*name=\"([^\"]*)\"", Pattern.CASE_INSENSITIVE);
+	static final Pattern FILE_NAME = Pattern.compile(";\\s*filename=\"([^\"]*)\"", Pattern.CASE_INSENSITIVE);
+
+	@Override
+	protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+			throws ServletException, IOException {
+		if(!BlobStore.isSelfHosted()) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND, "Uploads go to the App Engine Blobstore");
+			return;
+		}
+		FileBlobStore blobStore = (FileBlobStore) BlobStore.get();
+		String successPath = blobStore.useUploadToken(req.getParameter("token"));
+		if(successPath == null) {
+			resp.sendError(HttpServletResponse.SC_FORBIDDEN, "Upload URL is unknown, used or expired");
+			return;
+		}
+		if(req.getContentLength() > FileBlobStore.MAX_UPLOAD_SIZE) {
+			resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Uploads are limited to "+FileBlobStore.MAX_UPLOAD_SIZE+" bytes");
+			return;
+		}
+		String contentType = req.getContentType();
+		Matcher boundary = contentType == null ? null : BOUNDARY.matcher(contentType);
+		if(boundary == null || !contentType.toLowerCase().startsWith("multipart/form-data") || !boundary.find()) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Expected a multipart/form-data upload");
+			return;
+		}
+
+		Map<String, BlobKey> blobs = new LinkedHashMap<String, BlobKey>();
+		Map<String, List<String>> fields = new HashMap<String, List<String>>();
+		try {
+			MultipartReader parts = new MultipartReader(new LimitedInputStream(req.getInputStream(), FileBlobStore.MAX_UPLOAD_SIZE), boundary.group(1));
+			while(parts.next()) {
+				Matcher name = FIELD_NAME.matcher(parts.getDisposition());
+				Matcher fileName = FILE_NAME.matcher(parts.getDisposition());
+				if(!name.find()) {
+					parts.skip();
+				} else if(fileName.find()) {
+					if(fileName.group(1).isEmpty()) {
+						parts.skip(); // No file chosen
+					} else {
+						BlobKey old = blobs.put(name.group(1), blobStore.store(parts.getStream()));
+						if(old != null)
+							blobStore.delete(old);
+					}
+				} else {
+					List<String> values = fields.get(name.group(1));
+					if(values == null)
+						fields.put(name.group(1), values = new ArrayList<String>());
+					values.add(parts.readString());
+				}
+			}
+		} catch (UploadTooLargeException e) {
+			blobStore.delete(blobs.values().toArray(new BlobKey[blobs.size()]));
+			resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, e.getMessage());
+			return;
+		} catch (IOException e) {
+			blobStore.delete(blobs.values().toArray(new BlobKey[blobs.size()]));
+			throw e;
+		}
+
+		UploadRequest forwarded = new UploadRequest(req, fields);
+		forwarded.setAttribute(FileBlobStore.UPLOADED_BLOBS_ATTRIBUTE, blobs);
+		RequestDispatcher dispatcher = getServletContext().getRequestDispatcher(successPath);
+		if(dispatcher == null) {
+			blobStore.delete(blobs.values().toArray(new BlobKey[blobs.size()]));
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND, "No such success path");
+			return;
+		}
+		try {
+			dispatcher.forward(forwarded, resp);
+		} finally {
+			if(forwarded.getAttribute(FileBlobStore.UPLOADED_BLOBS_TAKEN_ATTRIBUTE) == null)
+				blobStore.delete(blobs.values().toArray(new BlobKey[blobs.size()]));
+		}
+	}
+
+	static final class UploadTooLargeException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		UploadTooLargeException(long limit) {
+			super("Uploads are limited to "+limit+" bytes");
+		}
+	}
+
+	/**
+	 * Fails with {@link UploadTooLargeException} once more than the limit has been read
+	 */
+	static final class LimitedInputStream extends FilterInputStream {
+		final long limit;
+		long count;
+
+		LimitedInputStream(InputStream in, long limit) {
+			super(in);
+			this.limit = limit;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if(b != -1)
+				counted(1);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if(n > 0)
+				counted(n);
+			return n;
+		}
+
+		private void counted(int n) throws UploadTooLargeException {
+			count += n;
+			if(count > limit)
+				throw new UploadTooLargeException(limit);
+		}
+	}
+
+	/**
+	 * The upload request as the success path sees it, with the non-file form fields as parameters
+	 */
+	static final class UploadRequest extends HttpServletRequestWrapper {
+		final Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+
+		@SuppressWarnings("unchecked")
+		UploadRequest(HttpServletRequest req, Map<String, List<String>> fields) {
+			super(req);
+			parameters.putAll(req.getParameterMap());
+			for(Map.Entry<String, List<String>> field : fields.entrySet()) {
+				parameters.put(field.getKey(), field.getValue().toArray(new String[field.getValue().size()]));
+			}
+		}
+
+		@Override
+		public String getParameter(String name) {
+			String[] values = parameters.get(name);
+			return values == null ? null : values[0];
+		}
+
+		@Override
+		public String[] getParameterValues(String name) {
+			return parameters.get(name);
+		}
+
+		@Override
+		public Enumeration<String> getParameterNames() {
+			return Collections.enumeration(parameters.keySet());
+		}
+
+		@Override
+		public Map<String, String[]> getParameterMap() {
+			return Collections.unmodifiableMap(parameters);
+		}
+	}
+
+	/**
+	 * Reads the parts of a multipart/form-data body one at a time, without
+	 * buffering file contents in memory.
+	 */
+	static final class MultipartReader {
+		final PushbackInputStream in;
+		/**
+		 * Line break and dashes before the boundary, which end a part's body
+		 */
+		final byte[] delimiter;
+		final PartInputStream part = new PartInputStream();
+		boolean partEnded = true;
+		boolean last;
+		String disposition;
+
+		MultipartReader(InputStream in, String boundary) throws IOException {
+			this.delimiter = ("\r\n--"+boundary).getBytes("ISO-8859-1");
+			this.in = new PushbackInputStream(new BufferedInputStream(in, 64*1024), delimiter.length);
+			// The first boundary isn't preceded by a line break; pretend it is and skip the preamble
+			this.in.unread('\n');
+			this.in.unread('\r');
+			partEnded = false;
+			skip();
+		}
+
+		/**
+		 * Move on to the next part, skipping anything left of the current one
+		 *
+		 * @return false if there are no more parts
+		 */
+		boolean next() throws IOException {
+			skip();
+			if(last)
+				return false;
+			disposition = "";
+			String line;
+			while(!(line = readLine()).isEmpty()) {
+				int colon = line.indexOf(':');
+				if(colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Content-Disposition"))
+					disposition = line.substring(colon+1).trim();
+			}
+			partEnded = false;
+			return true;
+		}
+
+		String getDisposition() {
+			return disposition;
+		}
+
+		/**
+		 * @return The body of the current part
+		 */
+		InputStream getStream() {
+			return part;
+		}
+
+		String readString() throws IOException {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			int b;
+			while((b = part.read()) != -1) {
+				buf.write(b);
+			}
+			return buf.toString("UTF-8");
+		}
+
+		void skip() throws IOException {
+			while(part.read() != -1) {
+			}
+		}
+
+		private int readByte() throws IOException {
+			int b = in.read();
+			if(b == -1)
+				throw new IOException("Upload is truncated");
+			return b;
+		}
+
+		private String readLine() throws IOException {
+			StringBuilder line = new StringBuilder();
+			int b;
+			while((b = readByte()) != '\n') {
+				if(b != '\r')
+					line.append((char)b);
+			}
+			return line.toString();
+		}
+
+		/**
+		 * Called just after a delimiter, to see whether it was the closing one
+		 */
+		private void endOfPart() throws IOException {
+			partEnded = true;
+			int a = readByte();
+			int b = readByte();
+			if(a == '-' && b == '-') {
+				last = true;
+			} else if(a != '\r' || b != '\n') {
+				// Transport padding after the boundary
+				while(b != '\n') {
+					b = readByte();
+				}
+			}
+		}
+
+		final class PartInputStream extends InputStream {
+			@Override
+			public int read() throws IOException {
+				if(partEnded)
+					return -1;
+				int b = readByte();
+				if(b != delimiter[0])
+					return b;
+				// Might be the delimiter; look ahead and put it back if it isn't
+				byte[] ahead = new byte[delimiter.length-1];
+				for(int i=1; i < delimiter.length; i++) {
+					int c = readByte();
+					ahead[i-1] = (byte)c;
+					if(c != (delimiter[i] & 0xff)) {
+						in.unread(ahead, 0, i);
+						return b;
+					}
+				}
+				endOfPart();
+				return -1;
+			}
+
+			@Override
+			public int read(byte[] buf, int off, int len) throws IOException {
+				if(len == 0)
+					return 0;
+				int count = 0;
+				while(count < len) {
+					int b = read();
+					if(b == -1)
+						break;
+					buf[off + count++] = (byte)b;
+				}
+				return count == 0 ? -1 : count;
+			}
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package gwtdistcc.server;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.PersistenceManager;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Renews a worker's leases on all the permutations it is building in one
+ * request, instead of a ping to /build-result for each of them.
+ *
+ * <ul>
+ * <li>POST with workerId and perms (comma-separated buildId/permutation pairs)
+ * returns the ones the worker no longer holds, one per line, so it can stop
+ * building them, and the lease time in milliseconds in X-Lease-Time</li>
+ * </ul>
+ *
+ * Workers should send the next heartbeat within a
+ * {@link PendingPermutation#RENEWALS_PER_LEASE}th of the lease time.
+ *
+ * The builds' status only records that the worker is alive every
+ * {@link #ALIVE_RECORD_INTERVAL}, with one write per build.
+ */
+public class HeartbeatServlet extends HttpServlet {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Most permutations one heartbeat may renew
+	 */
+	private static final int MAX_PERMS = 256;
+
+	/**
+	 * Heartbeats only update the builds' status this often
+	 */
+	private static final long ALIVE_RECORD_INTERVAL = PendingPermutation.LEASE_TIME / 2;
+
+	@Override
+	protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+			throws ServletException, IOException {
+		String workerId = req.getParameter("workerId");
+		if(workerId == null || workerId.isEmpty()) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Must pass the worker ID");
+			return;
+		}
+		Set<String> perms = ServletUtil.getStrings(req, "perms");
+		if(perms.size() > MAX_PERMS) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Too many permutations; at most "+MAX_PERMS+" per heartbeat");
+			return;
+		}
+
+		List<String> lost = new ArrayList<String>();
+		Map<String, List<Integer>> renewed = new HashMap<String, List<Integer>>();
+		int renewals = 0;
+		for(String perm : perms) {
+			int slash = perm.lastIndexOf('/');
+			String buildId = slash > 0 ? perm.substring(0, slash) : null;
+			int permutation;
+			try {
+				permutation = Integer.parseInt(perm.substring(slash+1));
+			} catch (NumberFormatException e) {
+				buildId = null;
+				permutation = -1;
+			}
+			if(buildId == null || !PendingPermutation.renew(buildId, permutation, workerId)) {
+				lost.add(perm);
+				continue;
+			}
+			List<Integer> buildPerms = renewed.get(buildId);
+			if(buildPerms == null) {
+				buildPerms = new ArrayList<Integer>();
+				renewed.put(buildId, buildPerms);
+			}
+			buildPerms.add(permutation);
+			renewals++;
+		}
+		PendingPermutation.countRenewals(renewals);
+		for(Map.Entry<String, List<Integer>> e : renewed.entrySet()) {
+			recordAlive(e.getKey(), e.getValue());
+		}
+
+		resp.setHeader("Cache-Control", "no-cache, must-revalidate");
+		resp.setHeader("X-Lease-Time", String.valueOf(PendingPermutation.getLeaseTime()));
+		resp.setContentType("text/plain");
+		PrintWriter w = resp.getWriter();
+		for(String perm : lost) {
+			w.println(perm);
+		}
+	}
+
+	/**
+	 * Show the worker as alive in the build's status, if it hasn't been lately
+	 */
+	private void recordAlive(final String buildId, final List<Integer> perms) {
+		final long cutoff = System.currentTimeMillis() - ALIVE_RECORD_INTERVAL;
+		PersistenceManager pm = DB.getPersistenceManager();
+		try {
+			Build b = pm.getObjectById(Build.class, buildId);
+			boolean due = false;
+			for(int perm : perms) {
+				Permutation p = b.getPermutation(perm);
+				if(p != null && (p.getBuildAlive() == null || p.getBuildAlive().getTime() < cutoff))
+					due = true;
+			}
+			if(!due)
+				return; // Save a write to the busy build entity
+		} catch (JDOObjectNotFoundException e) {
+			return;
+		} finally {
+			pm.close();
+		}
+		try {
+			DB.transact(new DB.Transactional<Void>() {
+				@Override
+				public Void run(PersistenceManager pm) {
+					Build b = pm.getObjectById(Build.class, buildId);
+					for(int perm : perms) {
+						Permutation p = b.getPermutation(perm);
+						if(p != null)
+							p.setBuildAlive(new Date());
+					}
+					return null;
+				}
+			});
+		} catch (JDOObjectNotFoundException e) {
+			// Deleted meanwhile
+		}
+	}
+}
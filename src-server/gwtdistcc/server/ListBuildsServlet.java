@@ -13,6 +13,17 @@ public class ListBuildsServlet extends HttpServlet {
 
 	public void doGet(HttpServletRequest req, HttpServletResponse resp)
 			throws IOException {
+		if (req.getParameter("stats") != null) {
+			// Counters for this server instance only
+			resp.setContentType("text/plain");
+			PrintWriter w = resp.getWriter();
+			w.println("REJECTED DUPLICATE CLAIMS " + PendingPermutation.getRejectedClaims());
+			w.println("SPECULATIVE DUPLICATES " + PendingPermutation.getSpeculations());
+			w.println("SPECULATION WINS " + PendingPermutation.getSpeculationWins());
+			w.println("SPECULATION LOSSES " + PendingPermutation.getSpeculationLosses());
+			w.println("TRANSACTION RETRIES " + DB.getTransactionRetries());
+			return;
+		}
 		Set<String> queues = ServletUtil.getQueues(req);
 		if (queues.isEmpty()) {
 			return;
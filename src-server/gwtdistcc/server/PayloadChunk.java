@@ -0,0 +1,113 @@
+package gwtdistcc.server;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Persistent;
+import javax.jdo.annotations.PrimaryKey;
+
+import com.google.appengine.api.blobstore.BlobKey;
+
+/**
+ * One encrypted chunk of a chunked build payload.
+ * 
+ * Chunks are shared between builds; they are identified by a hash of their
+ * content computed by the client, so a chunk uploaded for one build is reused
+ * by later builds of the same module.
+ */
+@PersistenceCapable
+public class PayloadChunk {
+	/**
+	 * Chunks not used by any build for this long are deleted
+	 */
+	private static final long CHUNK_EXPIRY_TIME = 3*24*3600000L;
+	private static final Logger log = Logger.getLogger(PayloadChunk.class.getName());
+
+	/**
+	 * Chunk ids are SHA1s, prefixed with a format version by newer clients
+	 */
+	static final Pattern VALID_CHUNK_ID = Pattern.compile("([0-9]-)?[0-9a-f]{40}");
+
+	@PrimaryKey
+	@Persistent
+	String id;
+	
+	@Persistent
+	BlobKey data;
+	
+	@Persistent
+	Date lastUsed;
+
+	public PayloadChunk(String id, BlobKey data) {
+		this.id = id;
+		this.data = data;
+		this.lastUsed = new Date();
+	}
+
+	public PayloadChunk() {
+	}
+
+	/**
+	 * Hash of the chunk's content, provided by the client
+	 */
+	public String getId() {
+		return id;
+	}
+
+	public void setId(String id) {
+		this.id = id;
+	}
+
+	/**
+	 * Encrypted chunk data in the blob store
+	 */
+	public BlobKey getData() {
+		return data;
+	}
+
+	public void setData(BlobKey data) {
+		this.data = data;
+	}
+
+	/**
+	 * Last time a client told us it was going to use this chunk in a build
+	 */
+	public Date getLastUsed() {
+		return lastUsed;
+	}
+
+	public void setLastUsed(Date lastUsed) {
+		this.lastUsed = lastUsed;
+	}
+
+	public static PayloadChunk find(PersistenceManager pm, String id) {
+		try {
+			return pm.getObjectById(PayloadChunk.class, id);
+		} catch (JDOObjectNotFoundException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Delete chunks that haven't been used by a build in a while
+	 */
+	@SuppressWarnings("unchecked")
+	public static void deleteUnused(PersistenceManager pm, BlobStore blobStore) {
+		Query q = pm.newQuery(PayloadChunk.class);
+		q.setFilter("lastUsed < cutoff");
+		q.declareParameters("java.util.Date cutoff");
+		Collection<PayloadChunk> unused = (Collection<PayloadChunk>) q.execute(new Date(System.currentTimeMillis() - CHUNK_EXPIRY_TIME));
+		for(PayloadChunk chunk : unused) {
+			log.info("Deleting unused payload chunk "+chunk.getId()+"; last used "+chunk.getLastUsed());
+			if(chunk.getData() != null)
+				blobStore.delete(chunk.getData());
+			pm.deletePersistent(chunk);
+		}
+	}
+}
@@ -0,0 +1,750 @@
+package gwtdistcc.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Persistent;
+import javax.jdo.annotations.PrimaryKey;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+/**
+ * Index of the permutations that still need building, so workers can find
+ * work with one query instead of looking through every build.
+ *
+ * There is one of these for each permutation of each build.  A worker holds
+ * a lease on the permutation while it is building it and renews it with each
+ * ping; once the result is in, the lease never expires.  Claiming, renewing,
+ * handing back and completing are compare-and-set operations done in a
+ * transaction, so two workers can't both claim or complete a permutation.
+ *
+ * A permutation nobody holds has its lease expire at its priority, a time in
+ * the past, so claimable permutations are exactly those whose lease has
+ * expired, and ordering by lease expiry hands out the highest priority first.
+ *
+ * The priority is the build's creation time, moved earlier for builds with
+ * less work left and for the permutations expected to take longest (see
+ * {@link #getPriority(Date, long, long)}), so short builds get done first
+ * and the slowest permutations of a build don't start last.  As a build's
+ * permutations finish, the ones left are moved up to match the work that
+ * remains (see {@link #reprioritize(String)}).
+ *
+ * A permutation running well past its expected time can also be leased to a
+ * second worker, the speculative worker, with a lease of its own.  Whichever
+ * of the two uploads the result first completes the permutation; the other
+ * finds its lease gone on its next ping and stops.  If the original worker
+ * hands the permutation back or stops pinging, the speculative worker takes
+ * over its lease.
+ *
+ * Leases last longer when there are more of them to renew, so the renewals
+ * the server handles stay near {@link #TARGET_RENEWAL_RATE} a second (see
+ * {@link #getLeaseTime()}).  The renewal count and the lease time are kept in
+ * memcache, so all server instances hand out the same lease time based on
+ * their combined load.  Workers learn the lease time from /heartbeat and
+ * renew {@link #RENEWALS_PER_LEASE} times per lease.
+ */
+@PersistenceCapable
+public class PendingPermutation {
+	/**
+	 * How long a worker may go without pinging before its permutation is
+	 * handed to someone else, when there is little work going on.  Workers
+	 * that ping each permutation on their own rely on leases being at least
+	 * this long.
+	 */
+	public static final long LEASE_TIME = 30000;
+
+	/**
+	 * Longest lease we hand out, however busy we are, as a worker that dies
+	 * holds its permutations for this long
+	 */
+	public static final long MAX_LEASE_TIME = 5*60000L;
+
+	/**
+	 * Times a worker renews its lease during it, so a lost heartbeat or two doesn't lose it
+	 */
+	public static final int RENEWALS_PER_LEASE = 3;
+
+	/**
+	 * Lease renewals per second the server aims for, across all instances
+	 */
+	static final int TARGET_RENEWAL_RATE = 5;
+
+	/**
+	 * How often the lease time is adjusted to the rate of renewals
+	 */
+	static final long RENEWAL_RATE_WINDOW = 60000;
+
+	/**
+	 * How long an instance uses the lease time it got from memcache before
+	 * looking again
+	 */
+	static final long LEASE_TIME_REFRESH = 5000;
+
+	/**
+	 * Memcache keys of the renewals counted and the lease time used during
+	 * each {@link #RENEWAL_RATE_WINDOW}, followed by the window's number
+	 */
+	private static final String RENEWALS_KEY = "PendingPermutation.renewals/";
+	private static final String LEASE_TIME_KEY = "PendingPermutation.leaseTime/";
+
+	/**
+	 * Lease expiry of finished permutations
+	 */
+	static final Date NEVER = new Date(Long.MAX_VALUE);
+
+	/**
+	 * How far the expected times can move a permutation ahead of its build's
+	 * creation time; half of it for the build's work, half for the permutation's.
+	 * Builds can't be passed by builds that came in longer ago than this after them.
+	 */
+	static final long SCHEDULING_WINDOW = 2*3600000L;
+
+	/**
+	 * Smallest move of a permutation's priority worth a write when its
+	 * build's remaining work shrinks
+	 */
+	static final long REPRIORITIZE_THRESHOLD = 60000;
+
+	private static final Logger log = Logger.getLogger(PendingPermutation.class.getName());
+
+	private static final AtomicLong rejectedClaims = new AtomicLong();
+	private static final AtomicLong speculations = new AtomicLong();
+	private static final AtomicLong speculationWins = new AtomicLong();
+	private static final AtomicLong speculationLosses = new AtomicLong();
+
+	private static final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+
+	/**
+	 * Lease time last read from memcache, which window it is for and when it was read
+	 */
+	private static long leaseTime = LEASE_TIME;
+	private static long leaseTimeWindow = -1;
+	private static long leaseTimeRead;
+
+	@PrimaryKey
+	@Persistent
+	String id;
+
+	@Persistent
+	String buildId;
+
+	@Persistent
+	int permutation;
+
+	@Persistent
+	List<String> queueIds;
+
+	@Persistent
+	Date priority;
+
+	@Persistent
+	Date leaseExpiry;
+
+	@Persistent
+	String workerId;
+
+	@Persistent
+	Date started;
+
+	@Persistent
+	Long expectedTime;
+
+	@Persistent
+	String speculativeWorkerId;
+
+	@Persistent
+	Date speculativeLeaseExpiry;
+
+	@Persistent
+	Date speculationStarted;
+
+	public PendingPermutation(String buildId, int permutation, Collection<String> queueIds, Date priority) {
+		this.id = getId(buildId, permutation);
+		this.buildId = buildId;
+		this.permutation = permutation;
+		this.queueIds = new ArrayList<String>(queueIds);
+		this.priority = priority;
+		this.leaseExpiry = priority;
+	}
+
+	public PendingPermutation() {
+	}
+
+	static String getId(String buildId, int permutation) {
+		return buildId+"/"+permutation;
+	}
+
+	public String getBuildId() {
+		return buildId;
+	}
+
+	public int getPermutation() {
+		return permutation;
+	}
+
+	public List<String> getQueueIds() {
+		return queueIds;
+	}
+
+	/**
+	 * Permutations with an earlier priority are handed out first
+	 */
+	public Date getPriority() {
+		return priority;
+	}
+
+	/**
+	 * When the current worker's lease runs out; in the past if the permutation is up for grabs
+	 */
+	public Date getLeaseExpiry() {
+		return leaseExpiry;
+	}
+
+	/**
+	 * Worker holding the lease, or null if nobody has claimed it yet or it was handed back
+	 */
+	public String getWorkerId() {
+		return workerId;
+	}
+
+	/**
+	 * When the worker holding the lease got the permutation, or null if
+	 * nobody is building it
+	 */
+	public Date getStarted() {
+		return started;
+	}
+
+	/**
+	 * Expected compile time in milliseconds from earlier builds, or null if we had none
+	 */
+	public Long getExpectedTime() {
+		return expectedTime;
+	}
+
+	/**
+	 * Worker running a duplicate of the permutation, or null if there isn't one
+	 */
+	public String getSpeculativeWorkerId() {
+		return speculativeWorkerId;
+	}
+
+	/**
+	 * When the speculative worker was given the permutation
+	 */
+	public Date getSpeculationStarted() {
+		return speculationStarted;
+	}
+
+	/**
+	 * @return true if a speculative worker holds a lease that hasn't run out
+	 */
+	public boolean isSpeculating() {
+		return speculativeWorkerId != null && speculativeLeaseExpiry != null
+				&& speculativeLeaseExpiry.getTime() >= System.currentTimeMillis();
+	}
+
+	public boolean isFinished() {
+		return NEVER.equals(leaseExpiry);
+	}
+
+	public boolean isClaimable() {
+		return leaseExpiry.getTime() < System.currentTimeMillis();
+	}
+
+	private void lease(String workerId) {
+		this.workerId = workerId;
+		this.leaseExpiry = new Date(System.currentTimeMillis() + getLeaseTime());
+	}
+
+	/**
+	 * Count renewals from batched heartbeats towards the rate the lease time is based on
+	 */
+	static void countRenewals(int renewals) {
+		if(renewals <= 0)
+			return;
+		String key = RENEWALS_KEY + (System.currentTimeMillis() / RENEWAL_RATE_WINDOW);
+		if(memcache.increment(key, renewals) != null)
+			return;
+		// First renewals of the window, unless another instance beat us to it
+		if(!memcache.put(key, Long.valueOf(renewals), Expiration.byDeltaMillis((int) (2*RENEWAL_RATE_WINDOW)), SetPolicy.ADD_ONLY_IF_NOT_PRESENT))
+			memcache.increment(key, renewals);
+	}
+
+	/**
+	 * Current length of the leases we hand out.  Workers renew each lease
+	 * {@link #RENEWALS_PER_LEASE} times, so the rate of renewals goes down as
+	 * leases get longer; each {@link #RENEWAL_RATE_WINDOW} the lease time is
+	 * scaled so that the rate seen by all instances during the last window
+	 * would have been {@link #TARGET_RENEWAL_RATE}, at most doubling or
+	 * halving at a time and staying between {@link #LEASE_TIME} and
+	 * {@link #MAX_LEASE_TIME}.
+	 *
+	 * The first instance to work out a window's lease time stores it in
+	 * memcache and the others use that.  If memcache loses it, this instance
+	 * carries on from the last lease time it saw.
+	 */
+	public static synchronized long getLeaseTime() {
+		long now = System.currentTimeMillis();
+		long window = now / RENEWAL_RATE_WINDOW;
+		if(window == leaseTimeWindow && now - leaseTimeRead < LEASE_TIME_REFRESH)
+			return leaseTime;
+		leaseTimeRead = now;
+		Long current = (Long) memcache.get(LEASE_TIME_KEY + window);
+		if(current == null) {
+			Long previous = (Long) memcache.get(LEASE_TIME_KEY + (window - 1));
+			Long renewals = (Long) memcache.get(RENEWALS_KEY + (window - 1));
+			long wanted = adjustLeaseTime(previous != null ? previous : leaseTime, renewals != null ? renewals : 0);
+			memcache.put(LEASE_TIME_KEY + window, Long.valueOf(wanted),
+					Expiration.byDeltaMillis((int) (2*RENEWAL_RATE_WINDOW)), SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+			current = (Long) memcache.get(LEASE_TIME_KEY + window);
+			if(current == null)
+				current = wanted;
+		}
+		if(current != leaseTime)
+			log.info("Lease time now "+(current/1000)+"s");
+		leaseTime = current;
+		leaseTimeWindow = window;
+		return leaseTime;
+	}
+
+	/**
+	 * @return The lease time that would have given {@link #TARGET_RENEWAL_RATE}
+	 *         with the renewals seen in the last {@link #RENEWAL_RATE_WINDOW}
+	 */
+	static long adjustLeaseTime(long leaseTime, long renewals) {
+		double rate = renewals * 1000.0 / RENEWAL_RATE_WINDOW;
+		long wanted = (long) (leaseTime * rate / TARGET_RENEWAL_RATE);
+		wanted = Math.max(leaseTime / 2, Math.min(wanted, leaseTime * 2));
+		return Math.max(LEASE_TIME, Math.min(wanted, MAX_LEASE_TIME));
+	}
+
+	private void endSpeculation() {
+		this.speculativeWorkerId = null;
+		this.speculativeLeaseExpiry = null;
+		this.speculationStarted = null;
+	}
+
+	/**
+	 * Change to apply atomically to a permutation's index entry
+	 */
+	static abstract class Change {
+		/**
+		 * @param p The entry as currently stored, or null if there isn't one
+		 * @return false if the change doesn't apply to the entry as it is
+		 */
+		abstract boolean apply(PendingPermutation p);
+	}
+
+	static boolean compareAndSet(final String buildId, final int permutation, final Change change) {
+		return DB.transact(new DB.Transactional<Boolean>() {
+			@Override
+			public Boolean run(PersistenceManager pm) {
+				return change.apply(find(pm, buildId, permutation));
+			}
+		});
+	}
+
+	/**
+	 * Give the worker the lease if nobody else holds it.  If the original
+	 * worker's lease ran out while a speculative worker is still building the
+	 * permutation, the speculative worker takes over the lease instead.
+	 * 
+	 * @return false if someone else claimed it first
+	 */
+	public static boolean claim(String buildId, int permutation, final String workerId) {
+		final boolean[] tookOver = new boolean[1];
+		final boolean[] heldByOther = new boolean[1];
+		boolean claimed = compareAndSet(buildId, permutation, new Change() {
+			@Override
+			boolean apply(PendingPermutation p) {
+				tookOver[0] = false;
+				heldByOther[0] = p != null && !p.isFinished() && !p.isClaimable()
+						&& p.workerId != null && !workerId.equals(p.workerId);
+				if(p == null || !p.isClaimable())
+					return false;
+				if(p.isSpeculating()) {
+					p.workerId = p.speculativeWorkerId;
+					p.leaseExpiry = p.speculativeLeaseExpiry;
+					p.started = p.speculationStarted;
+					p.endSpeculation();
+					tookOver[0] = true;
+					return false;
+				}
+				p.lease(workerId);
+				p.started = new Date();
+				return true;
+			}
+		});
+		if(tookOver[0]) {
+			speculationWins.incrementAndGet();
+			log.info("Speculative worker took over "+getId(buildId, permutation)+" after its original worker went quiet");
+		} else if(heldByOther[0]) {
+			long rejected = rejectedClaims.incrementAndGet();
+			log.info("Rejected duplicate claim of "+getId(buildId, permutation)+" by "+workerId+" ("+rejected+" so far)");
+		}
+		return claimed;
+	}
+
+	/**
+	 * Give the worker a duplicate of a permutation another worker is still
+	 * building, unless it already has one
+	 * 
+	 * @return false if the permutation is finished, up for grabs or already duplicated
+	 */
+	public static boolean speculate(String buildId, int permutation, final String workerId) {
+		boolean started = compareAndSet(buildId, permutation, new Change() {
+			@Override
+			boolean apply(PendingPermutation p) {
+				if(p == null || p.isFinished() || p.isClaimable() || p.isSpeculating() || workerId.equals(p.workerId))
+					return false;
+				p.speculativeWorkerId = workerId;
+				p.speculativeLeaseExpiry = new Date(System.currentTimeMillis() + getLeaseTime());
+				p.speculationStarted = new Date();
+				return true;
+			}
+		});
+		if(started)
+			speculations.incrementAndGet();
+		return started;
+	}
+
+	/**
+	 * Extend the worker's lease.  A speculative worker whose original worker's
+	 * lease ran out takes it over.
+	 * 
+	 * @return false if the worker doesn't hold the lease any more
+	 */
+	public static boolean renew(String buildId, int permutation, final String workerId) {
+		final boolean[] tookOver = new boolean[1];
+		boolean renewed = compareAndSet(buildId, permutation, new Change() {
+			@Override
+			boolean apply(PendingPermutation p) {
+				tookOver[0] = false;
+				if(p == null || p.isFinished())
+					return false;
+				if(workerId.equals(p.workerId)) {
+					p.lease(workerId);
+					return true;
+				}
+				if(!workerId.equals(p.speculativeWorkerId))
+					return false;
+				if(p.isClaimable()) {
+					p.lease(workerId);
+					p.started = p.speculationStarted;
+					p.endSpeculation();
+					tookOver[0] = true;
+				} else {
+					p.speculativeLeaseExpiry = new Date(System.currentTimeMillis() + getLeaseTime());
+				}
+				return true;
+			}
+		});
+		if(tookOver[0]) {
+			speculationWins.incrementAndGet();
+			log.info("Speculative worker "+workerId+" took over "+getId(buildId, permutation)+" after its original worker went quiet");
+		}
+		return renewed;
+	}
+
+	/**
+	 * Hand the permutation back so the next worker to ask picks it up, or to
+	 * the speculative worker if there is one.  A speculative worker handing
+	 * its duplicate back just ends the speculation.
+	 * 
+	 * @return false if the worker doesn't hold the lease any more
+	 */
+	public static boolean release(String buildId, int permutation, final String workerId) {
+		final boolean[] tookOver = new boolean[1];
+		final boolean[] abandoned = new boolean[1];
+		boolean released = compareAndSet(buildId, permutation, new Change() {
+			@Override
+			boolean apply(PendingPermutation p) {
+				tookOver[0] = abandoned[0] = false;
+				if(p == null || p.isFinished())
+					return false;
+				if(workerId.equals(p.speculativeWorkerId)) {
+					p.endSpeculation();
+					abandoned[0] = true;
+					return true;
+				}
+				if(!workerId.equals(p.workerId))
+					return false;
+				if(p.isSpeculating()) {
+					p.workerId = p.speculativeWorkerId;
+					p.leaseExpiry = p.speculativeLeaseExpiry;
+					p.started = p.speculationStarted;
+					p.endSpeculation();
+					tookOver[0] = true;
+				} else {
+					p.workerId = null;
+					p.leaseExpiry = p.priority;
+					p.started = null;
+				}
+				return true;
+			}
+		});
+		if(tookOver[0])
+			speculationWins.incrementAndGet();
+		if(abandoned[0])
+			speculationLosses.incrementAndGet();
+		return released;
+	}
+
+	/**
+	 * Record that the worker uploaded the permutation's result.  The worker's
+	 * lease may have run out, as long as nobody else claimed it since.  Either
+	 * the original or the speculative worker may complete it; the other one
+	 * loses its lease.
+	 * 
+	 * @return false if the permutation is already finished or was given to another worker
+	 */
+	public static boolean complete(String buildId, int permutation, final String workerId) {
+		final boolean[] won = new boolean[1];
+		final boolean[] lost = new boolean[1];
+		boolean completed = compareAndSet(buildId, permutation, new Change() {
+			@Override
+			boolean apply(PendingPermutation p) {
+				won[0] = lost[0] = false;
+				if(p == null || p.isFinished())
+					return false;
+				boolean speculative = workerId.equals(p.speculativeWorkerId);
+				if(!speculative && p.workerId != null && !workerId.equals(p.workerId))
+					return false;
+				won[0] = speculative;
+				lost[0] = !speculative && p.speculativeWorkerId != null;
+				p.workerId = workerId;
+				p.leaseExpiry = NEVER;
+				p.started = null;
+				p.endSpeculation();
+				return true;
+			}
+		});
+		if(won[0]) {
+			speculationWins.incrementAndGet();
+			log.info("Speculative worker "+workerId+" finished "+getId(buildId, permutation)+" first");
+		}
+		if(lost[0])
+			speculationLosses.incrementAndGet();
+		if(completed)
+			reprioritize(buildId);
+		return completed;
+	}
+
+	/**
+	 * Move the build's unfinished permutations up to match the work it has
+	 * left: add up the expected times of the permutations that aren't
+	 * finished yet and work out their priorities again.  Only those moving by
+	 * at least {@link #REPRIORITIZE_THRESHOLD} are written, each in its own
+	 * transaction; ones nobody holds are handed out at their new priority.
+	 * Permutations without an expected time keep their creation order.
+	 */
+	@SuppressWarnings("unchecked")
+	static void reprioritize(String buildId) {
+		ArrayList<Integer> moved = new ArrayList<Integer>();
+		ArrayList<Date> priorities = new ArrayList<Date>();
+		PersistenceManager pm = DB.getPersistenceManager();
+		try {
+			Date created;
+			try {
+				created = pm.getObjectById(Build.class, buildId).getCreated();
+			} catch (JDOObjectNotFoundException e) {
+				return;
+			}
+			Query q = pm.newQuery(PendingPermutation.class);
+			q.setFilter("buildId == id");
+			q.declareParameters("String id");
+			ArrayList<PendingPermutation> unfinished = new ArrayList<PendingPermutation>();
+			long buildTime = 0;
+			for(PendingPermutation p : (Collection<PendingPermutation>) q.execute(buildId)) {
+				if(p.isFinished() || p.getExpectedTime() == null)
+					continue;
+				unfinished.add(p);
+				buildTime += p.getExpectedTime();
+			}
+			for(PendingPermutation p : unfinished) {
+				Date priority = getPriority(created, buildTime, p.getExpectedTime());
+				if(Math.abs(priority.getTime() - p.getPriority().getTime()) >= REPRIORITIZE_THRESHOLD) {
+					moved.add(p.getPermutation());
+					priorities.add(priority);
+				}
+			}
+		} finally {
+			pm.close();
+		}
+		for(int i=0; i < moved.size(); i++) {
+			final Date priority = priorities.get(i);
+			compareAndSet(buildId, moved.get(i), new Change() {
+				@Override
+				boolean apply(PendingPermutation p) {
+					if(p == null || p.isFinished())
+						return false;
+					if(p.leaseExpiry.equals(p.priority))
+						p.leaseExpiry = priority;
+					p.priority = priority;
+					return true;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Number of claims rejected because another worker got there first and
+	 * holds a live lease, since this server instance started
+	 */
+	public static long getRejectedClaims() {
+		return rejectedClaims.get();
+	}
+
+	/**
+	 * Number of duplicates given to speculative workers, since this server instance started
+	 */
+	public static long getSpeculations() {
+		return speculations.get();
+	}
+
+	/**
+	 * Number of duplicates whose result we used: they finished first, or took
+	 * over from an original worker that gave up or went quiet
+	 */
+	public static long getSpeculationWins() {
+		return speculationWins.get();
+	}
+
+	/**
+	 * Number of duplicates that were wasted: the original worker finished
+	 * first, or the speculative worker gave up
+	 */
+	public static long getSpeculationLosses() {
+		return speculationLosses.get();
+	}
+
+	public static PendingPermutation find(PersistenceManager pm, String buildId, int permutation) {
+		try {
+			return pm.getObjectById(PendingPermutation.class, getId(buildId, permutation));
+		} catch (JDOObjectNotFoundException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Find up to max permutations in the queue that nobody holds a lease on, in priority order
+	 */
+	@SuppressWarnings("unchecked")
+	public static List<PendingPermutation> findClaimable(PersistenceManager pm, String queueId, int max) {
+		Query q = pm.newQuery(PendingPermutation.class);
+		q.setFilter("queueIds == queueId && leaseExpiry < now");
+		q.declareParameters("String queueId, java.util.Date now");
+		q.setOrdering("leaseExpiry ASC");
+		q.setRange(0, max);
+		return new ArrayList<PendingPermutation>((Collection<PendingPermutation>) q.execute(queueId, new Date()));
+	}
+
+	/**
+	 * Find up to max unfinished permutations in the queue that a worker is
+	 * building, the ones that have been running longest first, to look for
+	 * stragglers among.  Some of their leases may have run out.
+	 */
+	@SuppressWarnings("unchecked")
+	public static List<PendingPermutation> findLeased(PersistenceManager pm, String queueId, int max) {
+		Query q = pm.newQuery(PendingPermutation.class);
+		q.setFilter("queueIds == queueId && started > epoch");
+		q.declareParameters("String queueId, java.util.Date epoch");
+		q.setOrdering("started ASC");
+		q.setRange(0, max);
+		return new ArrayList<PendingPermutation>((Collection<PendingPermutation>) q.execute(queueId, new Date(0)));
+	}
+
+	/**
+	 * Priority of a permutation: the build's creation time, less the window,
+	 * plus the build's expected work and less the permutation's expected time
+	 * (each capped to half the window).  A build with an hour less work is
+	 * handed out as if it came in an hour earlier, and within a build the
+	 * slowest permutations come first.
+	 *
+	 * @param buildTime Expected time of the build's unfinished permutations added up
+	 * @param permutationTime Expected time of the permutation
+	 */
+	static Date getPriority(Date created, long buildTime, long permutationTime) {
+		long half = SCHEDULING_WINDOW / 2;
+		return new Date(created.getTime() - SCHEDULING_WINDOW
+				+ Math.min(Math.max(buildTime, 0), half)
+				+ half - Math.min(Math.max(permutationTime, 0), half));
+	}
+
+	/**
+	 * Add the permutations of a build to the index, in creation order
+	 */
+	public static void addBuild(PersistenceManager pm, Build b) {
+		addBuild(pm, b, null);
+	}
+
+	/**
+	 * Add the permutations of a build to the index
+	 *
+	 * @param expected Expected time of each permutation (see {@link PermutationTiming#estimate}),
+	 *                 or null to just hand them out in creation order
+	 */
+	public static void addBuild(PersistenceManager pm, Build b, long[] expected) {
+		long buildTime = 0;
+		if(expected != null) {
+			for(Permutation p : b.getPermutations()) {
+				if(p.getFinished() == null && p.getPermutation() < expected.length)
+					buildTime += expected[p.getPermutation()];
+			}
+		}
+		ArrayList<PendingPermutation> added = new ArrayList<PendingPermutation>();
+		for(Permutation p : b.getPermutations()) {
+			Date priority = b.getCreated();
+			if(expected != null && p.getPermutation() < expected.length)
+				priority = getPriority(b.getCreated(), buildTime, expected[p.getPermutation()]);
+			PendingPermutation pending = new PendingPermutation(b.getId(), p.getPermutation(), b.getQueueIds(), priority);
+			if(expected != null && p.getPermutation() < expected.length)
+				pending.expectedTime = expected[p.getPermutation()];
+			if(p.getFinished() != null) {
+				pending.workerId = p.getWorkerId();
+				pending.leaseExpiry = NEVER;
+			} else if(p.getWorkerId() != null && p.getBuildAlive() != null) {
+				pending.workerId = p.getWorkerId();
+				pending.leaseExpiry = new Date(p.getBuildAlive().getTime() + LEASE_TIME);
+				pending.started = p.getStarted() != null ? p.getStarted() : p.getBuildAlive();
+			}
+			added.add(pending);
+		}
+		pm.makePersistentAll(added);
+	}
+
+	/**
+	 * @return true if any of the build's permutations are in the index
+	 */
+	@SuppressWarnings("unchecked")
+	public static boolean hasBuild(PersistenceManager pm, String buildId) {
+		Query q = pm.newQuery(PendingPermutation.class);
+		q.setFilter("buildId == id");
+		q.declareParameters("String id");
+		q.setRange(0, 1);
+		return !((Collection<PendingPermutation>) q.execute(buildId)).isEmpty();
+	}
+
+	/**
+	 * Remove all of a build's permutations from the index
+	 */
+	@SuppressWarnings("unchecked")
+	public static void removeBuild(PersistenceManager pm, String buildId) {
+		Query q = pm.newQuery(PendingPermutation.class);
+		q.setFilter("buildId == id");
+		q.declareParameters("String id");
+		pm.deletePersistentAll((Collection<PendingPermutation>) q.execute(buildId));
+	}
+}
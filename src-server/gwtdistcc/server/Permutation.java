@@ -43,12 +43,21 @@ public class Permutation implements Comparable<Permutation> {
 	@Persistent
 	BlobKey resultData;
 	
+	@Persistent
+	String resultSha1;
+	
 	@Persistent
 	String buildError;
 	
 	@Persistent
 	Date buildErrorTime;
 	
+	@Persistent
+	Boolean resultCached;
+	
+	@Persistent
+	Boolean cacheHit;
+	
 	public Permutation() {
 	}
 	
@@ -146,6 +155,7 @@ public class Permutation implements Comparable<Permutation> {
 		(workerId != null ? " worker "+workerId+" ("+workerLabel+")":"")+
 		(buildError != null ? " failed at "+buildErrorTime+": '"+buildError+"'":"")+
 		(finished != null ? " finished "+finished : "")+
+		(isCacheHit() ? " cache hit" : "")+
 		(downloaded != null ? " downloaded "+downloaded : "");
 	}
 
@@ -162,12 +172,12 @@ public class Permutation implements Comparable<Permutation> {
 	 * 
 	 * <ul>
 	 * <li>If hasn't finished building</li>
-	 * <li>It has no worker building it OR we haven't heard from the worker who is supposed to be building it recently enough</li>
+	 * <li>It has no worker building it OR we haven't heard from the worker who is supposed to be building it within a lease</li>
 	 * </ul>
 	 * @return
 	 */
 	public boolean isAvailable() {
-		return finished == null && (workerId == null || buildAlive == null || (System.currentTimeMillis() > (buildAlive.getTime() + 30000)));
+		return finished == null && (workerId == null || buildAlive == null || (System.currentTimeMillis() > (buildAlive.getTime() + PendingPermutation.getLeaseTime())));
 	}
 
 	@Override
@@ -191,6 +201,17 @@ public class Permutation implements Comparable<Permutation> {
 		return resultData;
 	}
 
+	/**
+	 * SHA1 of the result as the worker uploaded it, or null if it didn't tell us
+	 */
+	public String getResultSha1() {
+		return resultSha1;
+	}
+
+	public void setResultSha1(String resultSha1) {
+		this.resultSha1 = resultSha1;
+	}
+
 	/*
 	 * Return the last time this permutation was touched.
 	 * 
@@ -221,6 +242,30 @@ public class Permutation implements Comparable<Permutation> {
 	public void setBuildErrorTime(Date buildErrorTime) {
 		this.buildErrorTime = buildErrorTime;
 	}
+
+	/**
+	 * True if the result blob belongs to the {@link CachedResult} cache, so
+	 * it must not be deleted along with the build.
+	 */
+	public boolean isResultCached() {
+		return resultCached != null && resultCached;
+	}
+
+	public void setResultCached(boolean resultCached) {
+		this.resultCached = resultCached;
+	}
+
+	/**
+	 * True if the result was taken from the {@link CachedResult} cache rather
+	 * than compiled for this build.
+	 */
+	public boolean isCacheHit() {
+		return cacheHit != null && cacheHit;
+	}
+
+	public void setCacheHit(boolean cacheHit) {
+		this.cacheHit = cacheHit;
+	}
 	
 	
 }
@@ -0,0 +1,227 @@
+package gwtdistcc.server;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Persistent;
+import javax.jdo.annotations.PrimaryKey;
+
+/**
+ * How long a permutation of a module took to compile in recent builds, so
+ * the slow permutations can be handed out first and clients can be told when
+ * their build should be done.
+ *
+ * Permutations are told apart by module name and permutation number, which
+ * stay the same from one build of a module to the next as long as its
+ * properties don't change.  The time is from the worker claiming the
+ * permutation to its result coming in, as that is what the client waits for.
+ *
+ * We also remember the biggest heap a permutation ran out of memory with, so
+ * it is only given to workers with more (see {@link WorkerCapabilities}).
+ * A permutation that later compiles with a heap that small is taken to fit
+ * in that heap after all.
+ */
+@PersistenceCapable
+public class PermutationTiming {
+	/**
+	 * Once we have this many samples, each new one moves the average by this
+	 * fraction of the difference, so the average follows the module as it grows
+	 */
+	static final int SMOOTHING = 4;
+
+	@PrimaryKey
+	@Persistent
+	String id;
+
+	@Persistent
+	String module;
+
+	@Persistent
+	int permutation;
+
+	@Persistent
+	long averageTime;
+
+	@Persistent
+	int samples;
+
+	@Persistent
+	Date updated;
+
+	@Persistent
+	Long outOfMemoryHeapMB;
+
+	public PermutationTiming(String module, int permutation) {
+		this.id = makeId(module, permutation);
+		this.module = module;
+		this.permutation = permutation;
+	}
+
+	public PermutationTiming() {
+	}
+
+	static String makeId(String module, int permutation) {
+		return module+"/"+permutation;
+	}
+
+	public String getModule() {
+		return module;
+	}
+
+	public int getPermutation() {
+		return permutation;
+	}
+
+	/**
+	 * Average compile time in milliseconds
+	 */
+	public long getAverageTime() {
+		return averageTime;
+	}
+
+	public int getSamples() {
+		return samples;
+	}
+
+	public Date getUpdated() {
+		return updated;
+	}
+
+	/**
+	 * Biggest heap in megabytes the permutation ran out of memory with, or
+	 * null if it never did
+	 */
+	public Long getOutOfMemoryHeapMB() {
+		return outOfMemoryHeapMB;
+	}
+
+	/**
+	 * @return Heap in megabytes a worker needs for the permutation, or 0 if we don't know of a limit
+	 */
+	public long getNeededHeapMB() {
+		return outOfMemoryHeapMB == null ? 0 : outOfMemoryHeapMB + 1;
+	}
+
+	void addSample(long time, long heapMB) {
+		samples++;
+		averageTime += (time - averageTime) / Math.min(samples, SMOOTHING);
+		updated = new Date();
+		if(outOfMemoryHeapMB != null && heapMB > 0 && heapMB <= outOfMemoryHeapMB)
+			outOfMemoryHeapMB = heapMB > 1 ? Long.valueOf(heapMB - 1) : null;
+	}
+
+	/**
+	 * Change the permutation's entry in a transaction, creating it if needed
+	 */
+	static void update(final String module, final int permutation, final Change change) {
+		DB.transact(new DB.Transactional<Void>() {
+			@Override
+			public Void run(PersistenceManager pm) {
+				PermutationTiming timing;
+				try {
+					timing = pm.getObjectById(PermutationTiming.class, makeId(module, permutation));
+				} catch (JDOObjectNotFoundException e) {
+					timing = pm.makePersistent(new PermutationTiming(module, permutation));
+				}
+				change.apply(timing);
+				return null;
+			}
+		});
+	}
+
+	static abstract class Change {
+		abstract void apply(PermutationTiming timing);
+	}
+
+	/**
+	 * Add a compile time to the permutation's average
+	 *
+	 * @param heapMB Heap of the worker that compiled it, or -1 if it didn't say
+	 */
+	public static void record(String module, int permutation, final long time, final long heapMB) {
+		update(module, permutation, new Change() {
+			@Override
+			void apply(PermutationTiming timing) {
+				timing.addSample(time, heapMB);
+			}
+		});
+	}
+
+	/**
+	 * Record that the permutation ran out of memory on a worker with the given heap
+	 */
+	public static void recordOutOfMemory(String module, int permutation, final long heapMB) {
+		update(module, permutation, new Change() {
+			@Override
+			void apply(PermutationTiming timing) {
+				if(timing.outOfMemoryHeapMB == null || timing.outOfMemoryHeapMB < heapMB)
+					timing.outOfMemoryHeapMB = heapMB;
+			}
+		});
+	}
+
+	/**
+	 * @return The timings we have for the module's permutations
+	 */
+	@SuppressWarnings("unchecked")
+	public static Collection<PermutationTiming> findAll(PersistenceManager pm, String module) {
+		Query q = pm.newQuery(PermutationTiming.class);
+		q.setFilter("module == m");
+		q.declareParameters("String m");
+		return (Collection<PermutationTiming>) q.execute(module);
+	}
+
+	/**
+	 * @return The heap in megabytes each permutation of the module is known to
+	 *         need, for those that ran out of memory before
+	 */
+	public static Map<Integer, Long> findNeededHeaps(PersistenceManager pm, String module) {
+		Map<Integer, Long> needed = new HashMap<Integer, Long>();
+		if(module == null)
+			return needed;
+		for(PermutationTiming timing : findAll(pm, module)) {
+			if(timing.getNeededHeapMB() > 0)
+				needed.put(timing.getPermutation(), timing.getNeededHeapMB());
+		}
+		return needed;
+	}
+
+	/**
+	 * Expected compile time of each permutation of the module.  Permutations
+	 * we have no times for are expected to take as long as the others do on
+	 * average.
+	 *
+	 * @return Milliseconds for each permutation number, or null if we have no times for the module
+	 */
+	public static long[] estimate(PersistenceManager pm, String module, int permutations) {
+		if(module == null)
+			return null;
+		long[] expected = new long[permutations];
+		boolean[] known = new boolean[permutations];
+		long total = 0;
+		int count = 0;
+		for(PermutationTiming timing : findAll(pm, module)) {
+			if(timing.getSamples() == 0)
+				continue; // Only ran out of memory so far
+			if(timing.getPermutation() < 0 || timing.getPermutation() >= permutations)
+				continue; // The module has fewer permutations now
+			expected[timing.getPermutation()] = timing.getAverageTime();
+			known[timing.getPermutation()] = true;
+			total += timing.getAverageTime();
+			count++;
+		}
+		if(count == 0)
+			return null;
+		for(int i=0; i < permutations; i++) {
+			if(!known[i])
+				expected[i] = total / count;
+		}
+		return expected;
+	}
+}
@@ -4,10 +4,12 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.regex.Pattern;
 
 import javax.servlet.http.HttpServletRequest;
 
 public class ServletUtil {
+	static final Pattern VALID_SHA1 = Pattern.compile("[0-9a-f]{40}");
 
 	public static Set<String> getQueues(HttpServletRequest req) {
 		String parameterName = "q";
@@ -22,4 +24,14 @@ public class ServletUtil {
 		return new HashSet<String>(Arrays.asList(queuesStr.split(",")));
 	}
 
+	/**
+	 * @return The sha1 parameter a client sends with an upload, or null if it didn't send a valid one
+	 */
+	public static String getSha1(HttpServletRequest req) {
+		String sha1 = req.getParameter("sha1");
+		if(sha1 == null || !VALID_SHA1.matcher(sha1).matches())
+			return null;
+		return sha1;
+	}
+
 }
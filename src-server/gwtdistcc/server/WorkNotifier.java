@@ -0,0 +1,77 @@
+package gwtdistcc.server;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Set;
+
+/**
+ * Lets long-polling workers sleep until new work shows up.
+ *
+ * Waiters are woken in the order they arrived, one per available permutation, so
+ * a new build with N permutations is spread over the first N waiting workers
+ * instead of waking them all to race for the same permutation.
+ *
+ * This only sees work added through this server instance, so waiters should
+ * still re-check the datastore every so often.
+ */
+public class WorkNotifier {
+	static final class Waiter {
+		final Set<String> queueIds;
+		boolean signalled;
+
+		Waiter(Set<String> queueIds) {
+			this.queueIds = queueIds;
+		}
+
+		boolean isWatching(Collection<String> queueIds) {
+			for(String queueId : queueIds) {
+				if(this.queueIds.contains(queueId))
+					return true;
+			}
+			return false;
+		}
+	}
+
+	private static final LinkedList<Waiter> waiters = new LinkedList<Waiter>();
+
+	/**
+	 * Wait until woken up by {@link #workAvailable(Collection, int)} or the timeout expires.
+	 *
+	 * @return true if we were woken up because new work was added
+	 */
+	public static boolean await(Set<String> queueIds, long timeout) throws InterruptedException {
+		Waiter waiter = new Waiter(queueIds);
+		synchronized(waiters) {
+			waiters.addLast(waiter);
+			try {
+				long deadline = System.currentTimeMillis() + timeout;
+				long remaining = timeout;
+				while(!waiter.signalled && remaining > 0) {
+					waiters.wait(remaining);
+					remaining = deadline - System.currentTimeMillis();
+				}
+				return waiter.signalled;
+			} finally {
+				waiters.remove(waiter);
+			}
+		}
+	}
+
+	/**
+	 * Wake up to count of the longest-waiting workers watching any of the given queues.
+	 */
+	public static void workAvailable(Collection<String> queueIds, int count) {
+		synchronized(waiters) {
+			for(Iterator<Waiter> it = waiters.iterator(); it.hasNext() && count > 0; ) {
+				Waiter waiter = it.next();
+				if(!waiter.signalled && waiter.isWatching(queueIds)) {
+					waiter.signalled = true;
+					it.remove();
+					count--;
+				}
+			}
+			waiters.notifyAll();
+		}
+	}
+}
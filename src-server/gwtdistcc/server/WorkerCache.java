@@ -0,0 +1,142 @@
+package gwtdistcc.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Persistent;
+import javax.jdo.annotations.PrimaryKey;
+
+/**
+ * The builds one worker has in its local cache, as of the version of its
+ * cache we last heard about (see {@link WorkerCaches}).
+ */
+@PersistenceCapable
+public class WorkerCache {
+	/**
+	 * Workers we haven't heard from for this long are forgotten
+	 */
+	static final long EXPIRY_TIME = 24*3600000L;
+
+	@PrimaryKey
+	@Persistent
+	String id;
+
+	@Persistent
+	long version;
+
+	@Persistent
+	List<String> buildIds;
+
+	@Persistent
+	Date lastVerified;
+
+	@Persistent
+	Date lastSeen;
+
+	@Persistent
+	String peerUrl;
+
+	public WorkerCache(String workerId) {
+		this.id = workerId;
+		this.buildIds = new ArrayList<String>();
+	}
+
+	public WorkerCache() {
+	}
+
+	/**
+	 * The worker's ID
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * The worker's number for this state of its cache
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	public void setVersion(long version) {
+		this.version = version;
+	}
+
+	public List<String> getBuildIds() {
+		return buildIds == null ? new ArrayList<String>() : buildIds;
+	}
+
+	public void setBuildIds(Collection<String> buildIds) {
+		this.buildIds = new ArrayList<String>(buildIds);
+	}
+
+	/**
+	 * Last time all the cached builds were checked to see whether they still exist
+	 */
+	public Date getLastVerified() {
+		return lastVerified;
+	}
+
+	public void setLastVerified(Date lastVerified) {
+		this.lastVerified = lastVerified;
+	}
+
+	/**
+	 * Last time the worker asked for work, give or take {@link WorkerCaches#SEEN_RECORD_INTERVAL}
+	 */
+	public Date getLastSeen() {
+		return lastSeen;
+	}
+
+	public void setLastSeen(Date lastSeen) {
+		this.lastSeen = lastSeen;
+	}
+
+	/**
+	 * Where the worker serves its payloads to other workers, or null if it doesn't
+	 */
+	public String getPeerUrl() {
+		return peerUrl;
+	}
+
+	public void setPeerUrl(String peerUrl) {
+		this.peerUrl = peerUrl;
+	}
+
+	public static WorkerCache find(PersistenceManager pm, String workerId) {
+		try {
+			return pm.getObjectById(WorkerCache.class, workerId);
+		} catch (JDOObjectNotFoundException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return Up to max workers that have the build in their cache
+	 */
+	@SuppressWarnings("unchecked")
+	public static List<WorkerCache> findWithBuild(PersistenceManager pm, String buildId, int max) {
+		Query q = pm.newQuery(WorkerCache.class);
+		q.setFilter("buildIds == buildId");
+		q.declareParameters("String buildId");
+		q.setRange(0, max);
+		return new ArrayList<WorkerCache>((Collection<WorkerCache>) q.execute(buildId));
+	}
+
+	/**
+	 * Forget workers we haven't heard from for {@link #EXPIRY_TIME}
+	 */
+	@SuppressWarnings("unchecked")
+	public static void deleteStale(PersistenceManager pm) {
+		Query q = pm.newQuery(WorkerCache.class);
+		q.setFilter("lastSeen < cutoff");
+		q.declareParameters("java.util.Date cutoff");
+		pm.deletePersistentAll((Collection<WorkerCache>) q.execute(new Date(System.currentTimeMillis() - EXPIRY_TIME)));
+	}
+}
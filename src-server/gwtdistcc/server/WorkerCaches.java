@@ -0,0 +1,198 @@
+package gwtdistcc.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.jdo.PersistenceManager;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Which builds each worker has in its local cache, so workers only need to
+ * tell us what changed instead of listing their whole cache on every poll.
+ *
+ * A worker numbers each state of its cache with a version and sends it with
+ * every request to /check-for-work.  When the cache changed since the version
+ * we last acknowledged (in the X-Cache-Version response header) it sends either
+ * the whole list in the cache parameter, or the builds added and removed since
+ * the acknowledged version in cacheBase, cacheAdd and cacheRemove.
+ *
+ * What we know is kept in the datastore, one {@link WorkerCache} per worker,
+ * so it doesn't matter which server instance a poll lands on.  A poll costs
+ * one get; the entity is only written when the cache changed, when it is due
+ * to be checked again, or to record that the worker is still around.  A
+ * server that doesn't know the worker's current version simply doesn't
+ * acknowledge it, and the worker sends its whole list again.
+ *
+ * Workers that don't send a version get the old behaviour: their whole cache
+ * is read from the cache parameter and checked on every request.
+ *
+ * Workers that serve the payloads they have to other workers send the URL to
+ * get them from in the peerUrl parameter, so we can point workers that need
+ * a payload at them (see {@link #findPeers(String, String, int)}).
+ */
+public class WorkerCaches {
+	/**
+	 * How often all of a worker's cached builds are checked to see whether
+	 * they still exist; in between only newly added ones are checked.
+	 */
+	static final long VERIFY_INTERVAL = 10*60*1000;
+
+	/**
+	 * Workers we haven't heard from for this long aren't given out as peers.
+	 * Busy workers don't ask for work, so this is a lot longer than a poll.
+	 */
+	static final long PEER_TIMEOUT = 10*60*1000;
+
+	/**
+	 * How often a worker's last poll is written to the datastore
+	 */
+	static final long SEEN_RECORD_INTERVAL = PEER_TIMEOUT / 5;
+
+	/**
+	 * Most workers with a build that we look through for peers
+	 */
+	static final int MAX_PEER_CANDIDATES = 50;
+
+	static final int MAX_PEER_URL_LENGTH = 200;
+
+	/**
+	 * A worker's cache as of one request
+	 */
+	public static final class Advertisement {
+		final Set<String> cached;
+		final Set<String> toVerify;
+		final long version;
+
+		Advertisement(Set<String> cached, Set<String> toVerify, long version) {
+			this.cached = cached;
+			this.toVerify = toVerify;
+			this.version = version;
+		}
+
+		/**
+		 * @return true if the worker has the build's payload
+		 */
+		public boolean contains(String buildId) {
+			return cached.contains(buildId);
+		}
+
+		/**
+		 * @return The cached builds that should be checked to see whether they still exist
+		 */
+		public Set<String> getBuildsToVerify() {
+			return toVerify;
+		}
+
+		/**
+		 * @return The version of the worker's cache we know, to acknowledge in the
+		 *         X-Cache-Version header, or -1 if we don't know its current cache
+		 */
+		public long getVersion() {
+			return version;
+		}
+	}
+
+	private static final Advertisement UNKNOWN = new Advertisement(Collections.<String>emptySet(), Collections.<String>emptySet(), -1);
+
+	/**
+	 * Read the cache parameters of a /check-for-work request and update what we
+	 * know about the worker's cache.
+	 *
+	 * @throws NumberFormatException If a version parameter is not a number
+	 */
+	public static Advertisement read(String workerId, HttpServletRequest req) {
+		String versionStr = req.getParameter("cacheVersion");
+		if(workerId == null || versionStr == null) {
+			Set<String> cached = ServletUtil.getStrings(req, "cache");
+			return new Advertisement(cached, cached, -1);
+		}
+		long version = Long.parseLong(versionStr);
+		Date now = new Date();
+		Set<String> toVerify = new HashSet<String>();
+		Set<String> cached;
+		PersistenceManager pm = DB.getPersistenceManager();
+		try {
+			WorkerCache wc = WorkerCache.find(pm, workerId);
+			boolean isNew = false;
+			if(req.getParameter("cache") != null) {
+				cached = ServletUtil.getStrings(req, "cache");
+				if(wc == null) {
+					wc = new WorkerCache(workerId);
+					isNew = true;
+				}
+				wc.setBuildIds(cached);
+				wc.setVersion(version);
+				wc.setLastVerified(now);
+				toVerify.addAll(cached);
+			} else if(req.getParameter("cacheBase") != null) {
+				long base = Long.parseLong(req.getParameter("cacheBase"));
+				if(wc == null || wc.getVersion() != base)
+					return UNKNOWN; // We missed a change, have the worker send everything
+				Set<String> added = ServletUtil.getStrings(req, "cacheAdd");
+				cached = new HashSet<String>(wc.getBuildIds());
+				cached.removeAll(ServletUtil.getStrings(req, "cacheRemove"));
+				cached.addAll(added);
+				wc.setBuildIds(cached);
+				wc.setVersion(version);
+				toVerify.addAll(added);
+			} else if(wc == null || wc.getVersion() != version) {
+				return UNKNOWN;
+			} else {
+				cached = new HashSet<String>(wc.getBuildIds());
+			}
+			String peerUrl = getPeerUrl(req);
+			if(wc.getLastSeen() == null || now.getTime() - wc.getLastSeen().getTime() > SEEN_RECORD_INTERVAL
+					|| (peerUrl == null ? wc.getPeerUrl() != null : !peerUrl.equals(wc.getPeerUrl()))) {
+				wc.setLastSeen(now);
+				wc.setPeerUrl(peerUrl);
+			}
+			if(wc.getLastVerified() == null || now.getTime() - wc.getLastVerified().getTime() > VERIFY_INTERVAL) {
+				wc.setLastVerified(now);
+				toVerify.addAll(cached);
+			}
+			if(isNew)
+				pm.makePersistent(wc);
+		} finally {
+			pm.close(); // Writes the entity if we changed it
+		}
+		return new Advertisement(cached, toVerify, version);
+	}
+
+	/**
+	 * @return The worker's peerUrl parameter, or null if it isn't an http URL
+	 */
+	static String getPeerUrl(HttpServletRequest req) {
+		String peerUrl = req.getParameter("peerUrl");
+		if(peerUrl == null || !peerUrl.startsWith("http://") || peerUrl.length() > MAX_PEER_URL_LENGTH || peerUrl.indexOf(',') != -1)
+			return null;
+		return peerUrl;
+	}
+
+	/**
+	 * Find workers that can give the build's payload to another worker.
+	 *
+	 * @param exceptWorkerId Worker asking, which isn't given itself
+	 * @return Up to max peer URLs of workers seen lately that have the payload, in random order
+	 */
+	public static List<String> findPeers(String buildId, String exceptWorkerId, int max) {
+		long cutoff = System.currentTimeMillis() - PEER_TIMEOUT;
+		List<String> peers = new ArrayList<String>();
+		PersistenceManager pm = DB.getPersistenceManager();
+		try {
+			for(WorkerCache wc : WorkerCache.findWithBuild(pm, buildId, MAX_PEER_CANDIDATES)) {
+				if(wc.getPeerUrl() != null && wc.getLastSeen() != null && wc.getLastSeen().getTime() >= cutoff
+						&& !wc.getId().equals(exceptWorkerId))
+					peers.add(wc.getPeerUrl());
+			}
+		} finally {
+			pm.close();
+		}
+		// Spread the load rather than sending everyone to the same worker
+		Collections.shuffle(peers);
+		return peers.size() > max ? peers.subList(0, max) : peers;
+	}
+}
@@ -0,0 +1,106 @@
+package gwtdistcc.server;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * What a worker told us about its machine when asking for work, so heavy
+ * permutations aren't handed to workers that will run out of memory on them.
+ *
+ * Workers send slots (permutations they can start right now), heapMB (the
+ * maximum heap of each compile), memoryMB (the machine's physical memory) and
+ * bandwidth (the rate they last downloaded a payload at, in KB/s).  Older
+ * workers send none of them, and are treated as able to run anything.
+ */
+public class WorkerCapabilities {
+	static final WorkerCapabilities UNKNOWN = new WorkerCapabilities(-1, -1, -1, -1);
+
+	final int slots;
+	final long heapMB;
+	final long memoryMB;
+	final long bandwidth;
+
+	WorkerCapabilities(int slots, long heapMB, long memoryMB, long bandwidth) {
+		this.slots = slots;
+		this.heapMB = heapMB;
+		this.memoryMB = memoryMB;
+		this.bandwidth = bandwidth;
+	}
+
+	/**
+	 * Read the capabilities from the request's parameters, ignoring any that
+	 * aren't numbers
+	 */
+	public static WorkerCapabilities read(HttpServletRequest req) {
+		return new WorkerCapabilities(
+				(int) Math.min(Integer.MAX_VALUE, getLong(req, "slots")),
+				getLong(req, "heapMB"),
+				getLong(req, "memoryMB"),
+				getLong(req, "bandwidth"));
+	}
+
+	/**
+	 * @return The parameter's value, or -1 if it is missing, negative or not a number
+	 */
+	static long getLong(HttpServletRequest req, String name) {
+		String value = req.getParameter(name);
+		if(value == null || value.isEmpty())
+			return -1;
+		try {
+			return Math.max(-1, Long.parseLong(value));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return Number of permutations the worker can start right now, or -1 if it didn't say
+	 */
+	public int getSlots() {
+		return slots;
+	}
+
+	/**
+	 * @return Maximum heap of a compile on the worker in megabytes, or -1 if it didn't say
+	 */
+	public long getHeapMB() {
+		return heapMB;
+	}
+
+	/**
+	 * @return Physical memory of the worker's machine in megabytes, or -1 if it didn't say
+	 */
+	public long getMemoryMB() {
+		return memoryMB;
+	}
+
+	/**
+	 * @return Rate the worker last downloaded a payload at in KB/s, or -1 if it didn't say
+	 */
+	public long getBandwidth() {
+		return bandwidth;
+	}
+
+	/**
+	 * @return The heap a compile can really use, as a heap bigger than the
+	 *         machine's memory only swaps; -1 if we don't know
+	 */
+	public long getUsableHeapMB() {
+		if(heapMB <= 0)
+			return -1;
+		return memoryMB > 0 ? Math.min(heapMB, memoryMB) : heapMB;
+	}
+
+	/**
+	 * @param neededHeapMB Heap the permutation is known to need, or 0 if we don't know
+	 * @return false if the worker is known to have too small a heap for it
+	 */
+	public boolean canRun(long neededHeapMB) {
+		long usable = getUsableHeapMB();
+		return neededHeapMB <= 0 || usable < 0 || usable >= neededHeapMB;
+	}
+
+	@Override
+	public String toString() {
+		return slots+" slots, "+heapMB+"MB heap, "+memoryMB+"MB memory, "+bandwidth+"KB/s";
+	}
+}
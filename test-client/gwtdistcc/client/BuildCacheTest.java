@@ -0,0 +1,159 @@
+package gwtdistcc.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BuildCacheTest {
+	static final String SERVER = "http://server/";
+	static final int BUILD_SIZE = 100*1024;
+
+	File workDir;
+	BuildCache cache;
+
+	@Before
+	public void setUp() throws IOException {
+		workDir = File.createTempFile("buildcache", "");
+		workDir.delete();
+		workDir.mkdirs();
+		cache = new BuildCache(workDir, 5*BUILD_SIZE/2);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		awaitDeletes(cache);
+		FileUtils.deleteDirectory(workDir);
+	}
+
+	/**
+	 * Let the cache finish deleting folders in the background
+	 */
+	static void awaitDeletes(BuildCache cache) throws InterruptedException {
+		cache.background.shutdown();
+		cache.background.awaitTermination(10, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Download a build the way the build slave does
+	 */
+	File download(String buildId) throws IOException {
+		File buildDir = cache.acquire(SERVER, buildId);
+		FileUtils.writeByteArrayToFile(new File(buildDir, "payload"), new byte[BUILD_SIZE]);
+		cache.payloadReady(buildId);
+		return buildDir;
+	}
+
+	/**
+	 * Add a build the way a compile client sharing the work dir does
+	 */
+	File addClientBuild(String buildId, boolean uploaded) throws IOException {
+		File buildDir = new File(workDir, buildId);
+		buildDir.mkdirs();
+		FileUtils.writeByteArrayToFile(new File(buildDir, "payload"), new byte[3*BUILD_SIZE]);
+		if(uploaded)
+			FileUtils.writeStringToFile(new File(buildDir, "server"), SERVER);
+		return buildDir;
+	}
+
+	static TreeSet<String> set(String ... buildIds) {
+		return new TreeSet<String>(Arrays.asList(buildIds));
+	}
+
+	@Test
+	public void testLeastRecentlyUsedIsEvicted() throws IOException {
+		File a = download("a");
+		cache.release("a");
+		File b = download("b");
+		cache.release("b");
+		File c = download("c");
+		cache.release("c");
+		assertFalse(a.exists());
+		assertTrue(b.exists());
+		assertTrue(c.exists());
+		assertEquals(set("b", "c"), cache.getCachedBuilds(SERVER));
+	}
+
+	@Test
+	public void testBuildInUseIsNotEvicted() throws IOException {
+		File a = download("a");
+		File b = download("b");
+		cache.release("b");
+		File c = download("c");
+		cache.release("c");
+		assertTrue(a.exists());
+		assertFalse(b.exists());
+		assertTrue(c.exists());
+		cache.release("a");
+		assertTrue(a.exists());
+	}
+
+	@Test
+	public void testClientBuildsAreAdvertisedButNotEvicted() throws IOException {
+		File uploaded = addClientBuild("uploaded", true);
+		File uploading = addClientBuild("uploading", false);
+		cache.rescan();
+		assertEquals(set("uploaded"), cache.getCachedBuilds(SERVER));
+
+		File a = download("a");
+		cache.release("a");
+		assertTrue(a.exists()); // The client's builds don't count towards the budget
+		download("b");
+		cache.release("b");
+		download("c");
+		cache.release("c");
+		assertFalse(a.exists());
+		assertTrue(uploaded.exists());
+		assertTrue(uploading.exists());
+		assertEquals(set("uploaded", "b", "c"), cache.getCachedBuilds(SERVER));
+	}
+
+	@Test
+	public void testOwnBuildsAreFoundAfterRestart() throws Exception {
+		download("a");
+		cache.release("a");
+		BuildCache restarted = new BuildCache(workDir, 0);
+		restarted.rescan();
+		assertEquals(set("a"), restarted.getCachedBuilds(SERVER));
+		restarted.acquire(SERVER, "b");
+		restarted.release("b");
+		assertFalse(new File(workDir, "a").exists());
+		awaitDeletes(restarted);
+	}
+
+	@Test
+	public void testDeleteWaitsForRelease() throws IOException {
+		File a = download("a");
+		cache.delete("a");
+		assertTrue(a.exists());
+		assertEquals(set(), cache.getCachedBuilds(SERVER));
+		cache.release("a");
+		assertFalse(a.exists());
+	}
+
+	@Test
+	public void testAdvertisementChanges() throws IOException {
+		long version = cache.getAdvertisement(SERVER, -1).getVersion();
+		download("a");
+		cache.release("a");
+		BuildCache.Advertisement changes = cache.getAdvertisement(SERVER, version);
+		assertEquals(set("a"), changes.getAdded());
+		assertEquals(set(), changes.getRemoved());
+		version = changes.getVersion();
+		cache.delete("a");
+		changes = cache.getAdvertisement(SERVER, version);
+		assertEquals(set(), changes.getAdded());
+		assertEquals(set("a"), changes.getRemoved());
+		assertTrue(cache.getAdvertisement(SERVER, changes.getVersion()).isUnchanged());
+	}
+}
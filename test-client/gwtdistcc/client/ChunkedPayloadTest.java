@@ -0,0 +1,236 @@
+package gwtdistcc.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChunkedPayloadTest {
+	static final String[] KEYS = {"secret", null};
+	static final PayloadCodec[] CODECS = {PayloadCodec.NONE, PayloadCodec.FAST, PayloadCodec.MAX};
+	static final String MODULE = "test.Module";
+
+	File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("chunked", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	static byte[] sampleData(int length) {
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		for(int i=0; i < data.length/2; i++) {
+			data[i] = (byte)(i % 7);
+		}
+		return data;
+	}
+
+	static byte[] randomData(int length) {
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		return data;
+	}
+
+	static void assertRejected(String key, String id, byte[] data) {
+		try {
+			ChunkedPayload.decode(key, id, data);
+			fail("Chunk "+id+" was accepted");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testEncodeDecode() throws IOException {
+		byte[] plain = sampleData(100*1024);
+		for(String key : KEYS) {
+			for(PayloadCodec codec : CODECS) {
+				String id = ChunkedPayload.chunkId(key, plain, plain.length);
+				byte[] encoded = ChunkedPayload.encode(key, codec, id, plain);
+				assertEquals(key == null ? ChunkedPayload.FORMAT_CBC : ChunkedPayload.FORMAT_GCM, encoded[0]);
+				assertEquals(codec.getId(), encoded[1]);
+				assertArrayEquals(key+"/"+codec, plain, ChunkedPayload.decode(key, id, encoded));
+			}
+		}
+	}
+
+	@Test
+	public void testTamperedChunkIsRejected() throws IOException {
+		byte[] plain = sampleData(100*1024);
+		for(String key : KEYS) {
+			for(PayloadCodec codec : CODECS) {
+				String id = ChunkedPayload.chunkId(key, plain, plain.length);
+				byte[] encoded = ChunkedPayload.encode(key, codec, id, plain);
+				encoded[encoded.length/2] ^= 1;
+				assertRejected(key, id, encoded);
+			}
+		}
+	}
+
+	@Test
+	public void testChunkUnderAnotherIdIsRejected() throws IOException {
+		byte[] plain = sampleData(1000);
+		byte[] other = sampleData(2000);
+		for(String key : KEYS) {
+			String id = ChunkedPayload.chunkId(key, plain, plain.length);
+			String otherId = ChunkedPayload.chunkId(key, other, other.length);
+			assertRejected(key, otherId, ChunkedPayload.encode(key, PayloadCodec.FAST, id, plain));
+		}
+	}
+
+	@Test
+	public void testChangedCodecIsRejected() throws IOException {
+		byte[] plain = sampleData(1000);
+		String id = ChunkedPayload.chunkId("secret", plain, plain.length);
+		byte[] encoded = ChunkedPayload.encode("secret", PayloadCodec.FAST, id, plain);
+		encoded[1] = PayloadCodec.MAX.getId();
+		assertRejected("secret", id, encoded);
+	}
+
+	@Test
+	public void testWrongKeyIsRejected() throws IOException {
+		byte[] plain = sampleData(1000);
+		String id = ChunkedPayload.chunkId("secret", plain, plain.length);
+		byte[] encoded = ChunkedPayload.encode("secret", PayloadCodec.FAST, id, plain);
+		assertRejected("wrong", id, encoded);
+		assertRejected(null, id, encoded);
+	}
+
+	@Test
+	public void testChunkIdsDontDependOnTheCodec() throws IOException {
+		File ast = writeAst(sampleData(3*1024*1024));
+		for(String key : KEYS) {
+			List<String> ids = null;
+			for(PayloadCodec codec : CODECS) {
+				List<String> codecIds = ids(ChunkedPayload.write(MODULE, key, codec, ast, new File(dir, "payload")));
+				if(ids != null)
+					assertEquals(ids, codecIds);
+				ids = codecIds;
+			}
+		}
+	}
+
+	@Test
+	public void testPayloadRoundTrip() throws IOException {
+		// Long enough to be cut into several chunks whatever the content
+		byte[] ast = sampleData(2*ChunkedPayload.MAX_CHUNK_SIZE + 1000);
+		File astFile = writeAst(ast);
+		File payload = new File(dir, "payload");
+		for(String key : KEYS) {
+			for(PayloadCodec codec : CODECS) {
+				List<ChunkedPayload.Chunk> chunks = ChunkedPayload.write(MODULE, key, codec, astFile, payload);
+				assertTrue(chunks.size() > 1);
+				InputStream in = openPayload(payload, key);
+				try {
+					assertEquals(MODULE, CompileUtils.readSmallString(in));
+					assertArrayEquals(key+"/"+codec, ast, IOUtils.toByteArray(in));
+				} finally {
+					in.close();
+				}
+				for(ChunkedPayload.Chunk chunk : chunks) {
+					byte[] plain = ChunkedPayload.decode(key, chunk.getId(), ChunkedPayload.readChunk(payload, chunk));
+					assertEquals(chunk.getId(), ChunkedPayload.chunkId(key, plain, plain.length));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testHashAndCopyWhileWriting() throws IOException, NoSuchAlgorithmException {
+		byte[] ast = sampleData(ChunkedPayload.MAX_CHUNK_SIZE + 1000);
+		File copy = new File(dir, "copy");
+		MessageDigest digest = MessageDigest.getInstance("SHA1");
+		ChunkedPayload.write(MODULE, "secret", PayloadCodec.FAST, writeAst(ast), new File(dir, "payload"), digest, copy);
+		assertArrayEquals(ast, FileUtils.readFileToByteArray(copy));
+		assertArrayEquals(MessageDigest.getInstance("SHA1").digest(ast), digest.digest());
+	}
+
+	@Test
+	public void testTamperedPayloadIsRejected() throws IOException {
+		File payload = new File(dir, "payload");
+		ChunkedPayload.write(MODULE, "secret", PayloadCodec.FAST, writeAst(sampleData(1024*1024)), payload);
+		byte[] data = FileUtils.readFileToByteArray(payload);
+		data[data.length/2] ^= 1;
+		FileUtils.writeByteArrayToFile(payload, data);
+		InputStream in = openPayload(payload, "secret");
+		try {
+			IOUtils.toByteArray(in);
+			fail("Tampered payload was accepted");
+		} catch (IOException e) {
+			// Expected
+		} finally {
+			in.close();
+		}
+	}
+
+	@Test
+	public void testEditKeepsMostChunks() throws IOException {
+		byte[] ast = randomData(8*1024*1024);
+		Set<String> before = new HashSet<String>(ids(ChunkedPayload.write(MODULE, "secret", PayloadCodec.FAST, writeAst(ast), new File(dir, "payload"))));
+		// Insert a few bytes in the middle
+		byte[] edited = new byte[ast.length + 3];
+		System.arraycopy(ast, 0, edited, 0, ast.length/2);
+		System.arraycopy(ast, ast.length/2, edited, ast.length/2 + 3, ast.length - ast.length/2);
+		List<String> after = ids(ChunkedPayload.write(MODULE, "secret", PayloadCodec.FAST, writeAst(edited), new File(dir, "payload")));
+		int kept = 0;
+		for(String id : after) {
+			if(before.contains(id))
+				kept++;
+		}
+		assertTrue(after.size() > 3);
+		assertTrue("Only "+kept+" of "+after.size()+" chunks kept", kept >= after.size() - 2);
+	}
+
+	File writeAst(byte[] ast) throws IOException {
+		File astFile = new File(dir, "ast");
+		FileOutputStream out = new FileOutputStream(astFile);
+		try {
+			out.write(ast);
+		} finally {
+			out.close();
+		}
+		return astFile;
+	}
+
+	static InputStream openPayload(File payload, String key) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(payload));
+		assertEquals(DistCompile.CHUNKED_V2_BYTE, in.read());
+		return new ChunkedPayload.ChunkedInputStream(key, in, DistCompile.CHUNKED_V2_BYTE);
+	}
+
+	static List<String> ids(List<ChunkedPayload.Chunk> chunks) {
+		List<String> ids = new ArrayList<String>();
+		for(ChunkedPayload.Chunk chunk : chunks) {
+			ids.add(chunk.getId());
+		}
+		return ids;
+	}
+}
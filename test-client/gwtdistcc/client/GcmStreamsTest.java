@@ -0,0 +1,119 @@
+package gwtdistcc.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class GcmStreamsTest {
+	static final String KEY = "secret";
+
+	/**
+	 * Offset of the cipher text of the first frame: the frame size, then the
+	 * frame's index, flags, length and IV
+	 */
+	static final int FIRST_DATA = 4 + 4 + 1 + 4 + GcmStreams.IV_SIZE;
+
+	static byte[] randomBytes(int length) {
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		return data;
+	}
+
+	static byte[] encrypt(String key, byte[] plain) throws IOException {
+		ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+		OutputStream out = new GcmStreams.GcmOutputStream(key, encrypted);
+		out.write(plain);
+		out.close();
+		return encrypted.toByteArray();
+	}
+
+	static byte[] decrypt(String key, byte[] encrypted) throws IOException {
+		InputStream in = new GcmStreams.GcmInputStream(key, new ByteArrayInputStream(encrypted));
+		try {
+			return IOUtils.toByteArray(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	static void assertRejected(String key, byte[] encrypted) {
+		try {
+			decrypt(key, encrypted);
+			fail("Corrupted data was accepted");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		for(int length : new int[] {0, 1, GcmStreams.FRAME_SIZE - 1, GcmStreams.FRAME_SIZE,
+				GcmStreams.FRAME_SIZE + 1, 5*GcmStreams.FRAME_SIZE/2}) {
+			byte[] plain = randomBytes(length);
+			assertArrayEquals("Length "+length, plain, decrypt(KEY, encrypt(KEY, plain)));
+		}
+	}
+
+	@Test
+	public void testSingleByteWrites() throws IOException {
+		byte[] plain = randomBytes(1000);
+		ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+		OutputStream out = new GcmStreams.GcmOutputStream(KEY, encrypted);
+		for(byte b : plain) {
+			out.write(b);
+		}
+		out.close();
+		assertArrayEquals(plain, decrypt(KEY, encrypted.toByteArray()));
+	}
+
+	@Test
+	public void testTamperedDataIsRejected() throws IOException {
+		byte[] encrypted = encrypt(KEY, randomBytes(1000));
+		encrypted[FIRST_DATA + 500] ^= 1;
+		assertRejected(KEY, encrypted);
+	}
+
+	@Test
+	public void testTamperedTagIsRejected() throws IOException {
+		byte[] encrypted = encrypt(KEY, randomBytes(1000));
+		encrypted[encrypted.length - 1] ^= 1;
+		assertRejected(KEY, encrypted);
+	}
+
+	@Test
+	public void testTamperedFlagsAreRejected() throws IOException {
+		byte[] encrypted = encrypt(KEY, randomBytes(1000));
+		encrypted[4 + 4] ^= GcmStreams.LAST_FRAME;
+		assertRejected(KEY, encrypted);
+	}
+
+	@Test
+	public void testWrongKeyIsRejected() throws IOException {
+		assertRejected("wrong", encrypt(KEY, randomBytes(1000)));
+	}
+
+	@Test
+	public void testTruncationIsDetected() throws IOException {
+		byte[] encrypted = encrypt(KEY, randomBytes(2*GcmStreams.FRAME_SIZE + 10));
+		// Drop the last frame, so the stream ends cleanly after a frame that isn't flagged as the last
+		int lastFrameLength = 4 + 1 + 4 + GcmStreams.IV_SIZE + 10 + GcmStreams.TAG_BITS/8;
+		assertRejected(KEY, Arrays.copyOf(encrypted, encrypted.length - lastFrameLength));
+		assertRejected(KEY, Arrays.copyOf(encrypted, encrypted.length - 1));
+	}
+
+	@Test
+	public void testTrailingDataIsRejected() throws IOException {
+		byte[] encrypted = encrypt(KEY, randomBytes(1000));
+		assertRejected(KEY, Arrays.copyOf(encrypted, encrypted.length + 1));
+	}
+}
@@ -0,0 +1,94 @@
+package gwtdistcc.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class PayloadCodecTest {
+	static final PayloadCodec[] CODECS = {PayloadCodec.NONE, PayloadCodec.FAST, PayloadCodec.MAX};
+
+	/**
+	 * Half random, half repetitive, like an AST
+	 */
+	static byte[] sampleData() {
+		byte[] data = new byte[300*1024];
+		new Random(1).nextBytes(data);
+		for(int i=0; i < data.length/2; i++) {
+			data[i] = (byte)(i % 7);
+		}
+		return data;
+	}
+
+	static byte[] compress(PayloadCodec codec, byte[] plain) throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		OutputStream out = codec.compress(compressed);
+		out.write(plain);
+		out.close();
+		return compressed.toByteArray();
+	}
+
+	static byte[] decompress(PayloadCodec codec, byte[] compressed) throws IOException {
+		InputStream in = codec.decompress(new ByteArrayInputStream(compressed));
+		try {
+			return IOUtils.toByteArray(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		byte[] plain = sampleData();
+		for(PayloadCodec codec : CODECS) {
+			assertArrayEquals(codec.getName(), plain, decompress(codec, compress(codec, plain)));
+			assertArrayEquals(codec.getName(), new byte[0], decompress(codec, compress(codec, new byte[0])));
+		}
+	}
+
+	@Test
+	public void testCompression() throws IOException {
+		byte[] plain = sampleData();
+		assertTrue(compress(PayloadCodec.FAST, plain).length < plain.length * 3 / 4);
+		assertTrue(compress(PayloadCodec.MAX, plain).length <= compress(PayloadCodec.FAST, plain).length);
+	}
+
+	@Test
+	public void testCorruptionIsDetected() throws IOException {
+		for(PayloadCodec codec : new PayloadCodec[] {PayloadCodec.FAST, PayloadCodec.MAX}) {
+			byte[] compressed = compress(codec, sampleData());
+			compressed[compressed.length/2] ^= 1;
+			try {
+				decompress(codec, compressed);
+				fail("Corrupted "+codec+" data was accepted");
+			} catch (IOException e) {
+				// Expected
+			}
+		}
+	}
+
+	@Test
+	public void testLookup() throws IOException {
+		for(PayloadCodec codec : CODECS) {
+			assertSame(codec, PayloadCodec.forId(codec.getId()));
+			assertSame(codec, PayloadCodec.forName(codec.getName()));
+		}
+		assertNull(PayloadCodec.forName("zip"));
+	}
+
+	@Test(expected=IOException.class)
+	public void testUnknownId() throws IOException {
+		PayloadCodec.forId(CODECS.length);
+	}
+}
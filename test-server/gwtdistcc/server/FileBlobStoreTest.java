@@ -0,0 +1,63 @@
+package gwtdistcc.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class FileBlobStoreTest {
+	static final long LENGTH = 1000;
+
+	static long[] range(long start, long end) {
+		return new long[] {start, end};
+	}
+
+	@Test
+	public void testByteRange() {
+		assertArrayEquals(range(0, 500), FileBlobStore.parseRange("bytes=0-499", LENGTH));
+		assertArrayEquals(range(500, 1000), FileBlobStore.parseRange("bytes=500-999", LENGTH));
+		assertArrayEquals(range(10, 11), FileBlobStore.parseRange("bytes=10-10", LENGTH));
+		assertArrayEquals(range(10, 20), FileBlobStore.parseRange(" bytes=10-19 ", LENGTH));
+	}
+
+	@Test
+	public void testRangeIsClippedToTheBlob() {
+		assertArrayEquals(range(500, 1000), FileBlobStore.parseRange("bytes=500-5000", LENGTH));
+	}
+
+	@Test
+	public void testOpenEndedRange() {
+		assertArrayEquals(range(200, 1000), FileBlobStore.parseRange("bytes=200-", LENGTH));
+		assertArrayEquals(range(999, 1000), FileBlobStore.parseRange("bytes=999-", LENGTH));
+	}
+
+	@Test
+	public void testSuffixRange() {
+		assertArrayEquals(range(900, 1000), FileBlobStore.parseRange("bytes=-100", LENGTH));
+		assertArrayEquals(range(0, 1000), FileBlobStore.parseRange("bytes=-5000", LENGTH));
+		assertSame(FileBlobStore.UNSATISFIABLE, FileBlobStore.parseRange("bytes=-0", LENGTH));
+	}
+
+	@Test
+	public void testRangeOutsideTheBlob() {
+		assertSame(FileBlobStore.UNSATISFIABLE, FileBlobStore.parseRange("bytes=1000-", LENGTH));
+		assertSame(FileBlobStore.UNSATISFIABLE, FileBlobStore.parseRange("bytes=2000-3000", LENGTH));
+		assertSame(FileBlobStore.UNSATISFIABLE, FileBlobStore.parseRange("bytes=0-", 0));
+	}
+
+	@Test
+	public void testUnsupportedRangesSendTheWholeBlob() {
+		assertNull(FileBlobStore.parseRange("bytes=0-99,200-299", LENGTH));
+		assertNull(FileBlobStore.parseRange("items=0-99", LENGTH));
+		assertNull(FileBlobStore.parseRange("bytes=99", LENGTH));
+	}
+
+	@Test
+	public void testInvalidRangesAreIgnored() {
+		assertNull(FileBlobStore.parseRange("bytes=500-100", LENGTH));
+		assertNull(FileBlobStore.parseRange("bytes=a-b", LENGTH));
+		assertNull(FileBlobStore.parseRange("bytes=-", LENGTH));
+		assertNull(FileBlobStore.parseRange("bytes=", LENGTH));
+	}
+}
@@ -0,0 +1,170 @@
+package gwtdistcc.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class FileUploadServletTest {
+	static final String BOUNDARY = "----boundary42";
+
+	/**
+	 * Builds a multipart/form-data body
+	 */
+	static final class Body {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		Body field(String name, String value) throws IOException {
+			return part("form-data; name=\""+name+"\"", value.getBytes("UTF-8"));
+		}
+
+		Body file(String name, String fileName, byte[] data) throws IOException {
+			return part("form-data; name=\""+name+"\"; filename=\""+fileName+"\"", data);
+		}
+
+		Body part(String disposition, byte[] data) throws IOException {
+			write("--"+BOUNDARY+"\r\n");
+			write("Content-Disposition: "+disposition+"\r\n");
+			write("Content-Type: application/octet-stream\r\n\r\n");
+			out.write(data);
+			write("\r\n");
+			return this;
+		}
+
+		byte[] end() throws IOException {
+			write("--"+BOUNDARY+"--\r\n");
+			return out.toByteArray();
+		}
+
+		void write(String s) throws IOException {
+			out.write(s.getBytes("ISO-8859-1"));
+		}
+	}
+
+	static FileUploadServlet.MultipartReader reader(byte[] body) throws IOException {
+		return new FileUploadServlet.MultipartReader(new ByteArrayInputStream(body), BOUNDARY);
+	}
+
+	static byte[] read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[1000];
+		int n;
+		while((n = in.read(buf, 0, buf.length)) != -1) {
+			out.write(buf, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	@Test
+	public void testFieldsAndFiles() throws IOException {
+		byte[] data = new byte[200*1024];
+		new Random(1).nextBytes(data);
+		FileUploadServlet.MultipartReader parts = reader(new Body()
+				.field("buildId", "abc")
+				.file("payload", "payload.bin", data)
+				.field("queue", "q\u00e9")
+				.end());
+		assertTrue(parts.next());
+		assertEquals("form-data; name=\"buildId\"", parts.getDisposition());
+		assertEquals("abc", parts.readString());
+		assertTrue(parts.next());
+		assertEquals("form-data; name=\"payload\"; filename=\"payload.bin\"", parts.getDisposition());
+		assertArrayEquals(data, read(parts.getStream()));
+		assertTrue(parts.next());
+		assertEquals("q\u00e9", parts.readString());
+		assertFalse(parts.next());
+	}
+
+	@Test
+	public void testDataThatLooksLikeTheBoundary() throws IOException {
+		// Everything but the last character of the delimiter, in several places
+		String almost = "\r\n--"+BOUNDARY.substring(0, BOUNDARY.length()-1);
+		String tricky = almost+"X\r"+almost+"\r\r\n-\r\n--"+BOUNDARY.substring(0, 4)+almost;
+		byte[] data = ("start"+tricky+"end\r\n").getBytes("ISO-8859-1");
+		FileUploadServlet.MultipartReader parts = reader(new Body()
+				.file("payload", "payload.bin", data)
+				.file("empty", "empty.bin", new byte[0])
+				.end());
+		assertTrue(parts.next());
+		assertArrayEquals(data, read(parts.getStream()));
+		assertTrue(parts.next());
+		assertArrayEquals(new byte[0], read(parts.getStream()));
+		assertFalse(parts.next());
+	}
+
+	@Test
+	public void testSkippingParts() throws IOException {
+		FileUploadServlet.MultipartReader parts = reader(new Body()
+				.file("payload", "payload.bin", new byte[10000])
+				.field("buildId", "abc")
+				.end());
+		assertTrue(parts.next());
+		parts.getStream().read();
+		assertTrue(parts.next());
+		assertEquals("abc", parts.readString());
+		assertFalse(parts.next());
+	}
+
+	@Test
+	public void testPreambleAndPaddingAreIgnored() throws IOException {
+		byte[] body = ("This is a preamble\r\n"
+				+ "--"+BOUNDARY+"  \r\n"
+				+ "Content-Disposition: form-data; name=\"a\"\r\n\r\n"
+				+ "1\r\n"
+				+ "--"+BOUNDARY+"--").getBytes("ISO-8859-1");
+		FileUploadServlet.MultipartReader parts = reader(body);
+		assertTrue(parts.next());
+		assertEquals("1", parts.readString());
+		assertFalse(parts.next());
+	}
+
+	@Test
+	public void testNoParts() throws IOException {
+		assertFalse(reader(new Body().end()).next());
+	}
+
+	@Test
+	public void testTruncatedUploadIsRejected() throws IOException {
+		byte[] body = new Body().file("payload", "payload.bin", new byte[1000]).end();
+		byte[] truncated = new byte[body.length - BOUNDARY.length() - 10];
+		System.arraycopy(body, 0, truncated, 0, truncated.length);
+		FileUploadServlet.MultipartReader parts = reader(truncated);
+		try {
+			assertTrue(parts.next());
+			read(parts.getStream());
+			fail("Truncated upload was accepted");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testUploadLimit() throws IOException {
+		byte[] body = new Body().file("payload", "payload.bin", new byte[1000]).end();
+		FileUploadServlet.MultipartReader parts = new FileUploadServlet.MultipartReader(
+				new FileUploadServlet.LimitedInputStream(new ByteArrayInputStream(body), body.length), BOUNDARY);
+		assertTrue(parts.next());
+		assertEquals(1000, read(parts.getStream()).length);
+		assertFalse(parts.next());
+
+		try {
+			parts = new FileUploadServlet.MultipartReader(
+					new FileUploadServlet.LimitedInputStream(new ByteArrayInputStream(body), body.length - 1), BOUNDARY);
+			while(parts.next()) {
+				parts.skip();
+			}
+			fail("Upload over the limit was accepted");
+		} catch (FileUploadServlet.UploadTooLargeException e) {
+			// Expected
+		}
+	}
+}
@@ -0,0 +1,395 @@
+package gwtdistcc.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jdo.PersistenceManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+
+/**
+ * Claiming, renewing, handing back and completing permutations against the
+ * SDK's local datastore
+ */
+public class PendingPermutationClaimTest {
+	static final String BUILD = "build";
+	static final String QUEUE = "queue";
+	static final long MINUTE = 60000L;
+
+	final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+			new LocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig());
+
+	@Before
+	public void setUp() {
+		helper.setUp();
+	}
+
+	@After
+	public void tearDown() {
+		helper.tearDown();
+	}
+
+	static Date ago(long millis) {
+		return new Date(System.currentTimeMillis() - millis);
+	}
+
+	/**
+	 * A permutation nobody has claimed yet
+	 */
+	static PendingPermutation waiting(int permutation, Date priority) {
+		return new PendingPermutation(BUILD, permutation, Collections.singleton(QUEUE), priority);
+	}
+
+	/**
+	 * A permutation the worker claimed a while ago, with a lease running out
+	 * after leaseLeft milliseconds (or before, if it's negative)
+	 */
+	static PendingPermutation heldBy(int permutation, String workerId, long leaseLeft) {
+		PendingPermutation p = waiting(permutation, ago(60*MINUTE));
+		p.workerId = workerId;
+		p.started = ago(10*MINUTE);
+		p.leaseExpiry = ago(-leaseLeft);
+		return p;
+	}
+
+	/**
+	 * A permutation the original worker's lease on ran out a moment ago,
+	 * while the speculative worker's is still good
+	 */
+	static PendingPermutation lapsedWithDuplicate(int permutation, String workerId, String speculativeWorkerId) {
+		PendingPermutation p = heldBy(permutation, workerId, -1000);
+		p.speculativeWorkerId = speculativeWorkerId;
+		p.speculativeLeaseExpiry = ago(-MINUTE);
+		p.speculationStarted = ago(MINUTE);
+		return p;
+	}
+
+	static void store(PendingPermutation p) {
+		PersistenceManager pm = DB.getPersistenceManager();
+		try {
+			pm.makePersistent(p);
+		} finally {
+			pm.close();
+		}
+	}
+
+	/**
+	 * @return The stored entry, with all its fields read
+	 */
+	static PendingPermutation load(int permutation) {
+		PersistenceManager pm = DB.getPersistenceManager();
+		try {
+			PendingPermutation p = PendingPermutation.find(pm, BUILD, permutation);
+			if(p != null) {
+				pm.retrieve(p);
+				pm.makeTransient(p);
+			}
+			return p;
+		} finally {
+			pm.close();
+		}
+	}
+
+	static List<PendingPermutation> findClaimable() {
+		PersistenceManager pm = DB.getPersistenceManager();
+		try {
+			List<PendingPermutation> found = PendingPermutation.findClaimable(pm, QUEUE, 10);
+			pm.retrieveAll(found);
+			pm.makeTransientAll(found);
+			return found;
+		} finally {
+			pm.close();
+		}
+	}
+
+	@Test
+	public void testOnlyOneWorkerClaims() {
+		store(waiting(0, ago(MINUTE)));
+		assertTrue(PendingPermutation.claim(BUILD, 0, "a"));
+		assertFalse(PendingPermutation.claim(BUILD, 0, "b"));
+		assertFalse(PendingPermutation.claim(BUILD, 0, "a"));
+		PendingPermutation p = load(0);
+		assertEquals("a", p.getWorkerId());
+		assertFalse(p.isClaimable());
+		assertNotNull(p.getStarted());
+	}
+
+	@Test
+	public void testConcurrentClaims() throws InterruptedException {
+		store(waiting(0, ago(MINUTE)));
+		final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+		final CountDownLatch go = new CountDownLatch(1);
+		final AtomicInteger claimed = new AtomicInteger();
+		final Throwable[] failure = new Throwable[1];
+		Thread[] workers = new Thread[4];
+		for(int i=0; i < workers.length; i++) {
+			final String workerId = "worker"+i;
+			workers[i] = new Thread() {
+				@Override
+				public void run() {
+					ApiProxy.setEnvironmentForCurrentThread(environment);
+					try {
+						go.await();
+						if(PendingPermutation.claim(BUILD, 0, workerId))
+							claimed.incrementAndGet();
+					} catch (Throwable t) {
+						synchronized(failure) {
+							failure[0] = t;
+						}
+					} finally {
+						ApiProxy.clearEnvironmentForCurrentThread();
+					}
+				}
+			};
+			workers[i].start();
+		}
+		go.countDown();
+		for(Thread worker : workers) {
+			worker.join();
+		}
+		if(failure[0] != null)
+			throw new AssertionError(failure[0]);
+		assertEquals(1, claimed.get());
+		assertTrue(load(0).getWorkerId().startsWith("worker"));
+	}
+
+	@Test
+	public void testClaimableInPriorityOrder() {
+		store(waiting(0, ago(MINUTE)));
+		store(waiting(1, ago(3*MINUTE)));
+		store(waiting(2, ago(2*MINUTE)));
+		List<PendingPermutation> claimable = findClaimable();
+		assertEquals(3, claimable.size());
+		assertEquals(1, claimable.get(0).getPermutation());
+		assertEquals(2, claimable.get(1).getPermutation());
+		assertEquals(0, claimable.get(2).getPermutation());
+
+		assertTrue(PendingPermutation.claim(BUILD, 1, "a"));
+		claimable = findClaimable();
+		assertEquals(2, claimable.size());
+		assertEquals(2, claimable.get(0).getPermutation());
+	}
+
+	@Test
+	public void testOnlyTheHolderRenews() {
+		store(waiting(0, ago(MINUTE)));
+		assertFalse(PendingPermutation.renew(BUILD, 0, "a"));
+		assertTrue(PendingPermutation.claim(BUILD, 0, "a"));
+		assertTrue(PendingPermutation.renew(BUILD, 0, "a"));
+		assertFalse(PendingPermutation.renew(BUILD, 0, "b"));
+		assertEquals("a", load(0).getWorkerId());
+	}
+
+	@Test
+	public void testRenewingExtendsTheLease() {
+		store(heldBy(0, "a", 1000));
+		long before = System.currentTimeMillis();
+		assertTrue(PendingPermutation.renew(BUILD, 0, "a"));
+		long expiry = load(0).getLeaseExpiry().getTime();
+		assertTrue(expiry >= before + PendingPermutation.LEASE_TIME);
+		assertTrue(expiry <= System.currentTimeMillis() + PendingPermutation.MAX_LEASE_TIME);
+	}
+
+	@Test
+	public void testHandingBack() {
+		Date priority = ago(MINUTE);
+		store(waiting(0, priority));
+		assertTrue(PendingPermutation.claim(BUILD, 0, "a"));
+		assertFalse(PendingPermutation.release(BUILD, 0, "b"));
+		assertTrue(PendingPermutation.release(BUILD, 0, "a"));
+		PendingPermutation p = load(0);
+		assertNull(p.getWorkerId());
+		assertNull(p.getStarted());
+		assertEquals(priority, p.getLeaseExpiry());
+		assertFalse(PendingPermutation.renew(BUILD, 0, "a"));
+		assertTrue(PendingPermutation.claim(BUILD, 0, "b"));
+	}
+
+	@Test
+	public void testLapsedLeaseGoesToTheNextWorker() {
+		store(heldBy(0, "a", -1000));
+		assertEquals(1, findClaimable().size());
+		assertTrue(PendingPermutation.claim(BUILD, 0, "b"));
+		assertFalse(PendingPermutation.renew(BUILD, 0, "a"));
+		assertFalse(PendingPermutation.release(BUILD, 0, "a"));
+		assertFalse(PendingPermutation.complete(BUILD, 0, "a"));
+		assertEquals("b", load(0).getWorkerId());
+	}
+
+	@Test
+	public void testCompletingAfterTheLeaseLapsed() {
+		store(heldBy(0, "a", -1000));
+		assertTrue(PendingPermutation.complete(BUILD, 0, "a"));
+		assertTrue(load(0).isFinished());
+	}
+
+	@Test
+	public void testCompletingOnlyOnce() {
+		store(waiting(0, ago(MINUTE)));
+		assertTrue(PendingPermutation.claim(BUILD, 0, "a"));
+		assertFalse(PendingPermutation.complete(BUILD, 0, "b"));
+		assertTrue(PendingPermutation.complete(BUILD, 0, "a"));
+		assertFalse(PendingPermutation.complete(BUILD, 0, "a"));
+		assertFalse(PendingPermutation.renew(BUILD, 0, "a"));
+		assertFalse(PendingPermutation.release(BUILD, 0, "a"));
+		assertFalse(PendingPermutation.claim(BUILD, 0, "b"));
+		PendingPermutation p = load(0);
+		assertTrue(p.isFinished());
+		assertEquals("a", p.getWorkerId());
+		assertNull(p.getStarted());
+		assertTrue(findClaimable().isEmpty());
+	}
+
+	@Test
+	public void testFinishingMovesTheRestOfTheBuildUp() {
+		Build b = new Build(BUILD, "label", Collections.singleton(QUEUE), 3, (BlobKey)null);
+		PersistenceManager pm = DB.getPersistenceManager();
+		try {
+			pm.makePersistent(b);
+		} finally {
+			pm.close();
+		}
+		Date created = b.getCreated();
+		long expected = 10*MINUTE;
+		for(int n=0; n < 3; n++) {
+			PendingPermutation p = waiting(n, PendingPermutation.getPriority(created, 3*expected, expected));
+			p.expectedTime = expected;
+			store(p);
+		}
+		assertTrue(PendingPermutation.claim(BUILD, 0, "a"));
+		assertTrue(PendingPermutation.claim(BUILD, 1, "b"));
+		assertTrue(PendingPermutation.complete(BUILD, 0, "a"));
+
+		Date moved = PendingPermutation.getPriority(created, 2*expected, expected);
+		PendingPermutation running = load(1);
+		assertEquals(moved, running.getPriority());
+		assertFalse(running.isClaimable());
+		PendingPermutation next = load(2);
+		assertEquals(moved, next.getPriority());
+		assertEquals(moved, next.getLeaseExpiry());
+		assertTrue(load(0).isFinished());
+	}
+
+	@Test
+	public void testUnknownPermutation() {
+		assertFalse(PendingPermutation.claim(BUILD, 0, "a"));
+		assertFalse(PendingPermutation.renew(BUILD, 0, "a"));
+		assertFalse(PendingPermutation.release(BUILD, 0, "a"));
+		assertFalse(PendingPermutation.complete(BUILD, 0, "a"));
+	}
+
+	@Test
+	public void testOneDuplicateAtATime() {
+		store(waiting(0, ago(MINUTE)));
+		assertFalse(PendingPermutation.speculate(BUILD, 0, "b"));
+		assertTrue(PendingPermutation.claim(BUILD, 0, "a"));
+		assertFalse(PendingPermutation.speculate(BUILD, 0, "a"));
+		assertTrue(PendingPermutation.speculate(BUILD, 0, "b"));
+		assertFalse(PendingPermutation.speculate(BUILD, 0, "c"));
+		PendingPermutation p = load(0);
+		assertEquals("a", p.getWorkerId());
+		assertEquals("b", p.getSpeculativeWorkerId());
+		assertTrue(p.isSpeculating());
+		assertTrue(PendingPermutation.renew(BUILD, 0, "a"));
+		assertTrue(PendingPermutation.renew(BUILD, 0, "b"));
+		assertFalse(PendingPermutation.renew(BUILD, 0, "c"));
+	}
+
+	@Test
+	public void testNoDuplicatesOfFinishedPermutations() {
+		store(waiting(0, ago(MINUTE)));
+		assertTrue(PendingPermutation.claim(BUILD, 0, "a"));
+		assertTrue(PendingPermutation.complete(BUILD, 0, "a"));
+		assertFalse(PendingPermutation.speculate(BUILD, 0, "b"));
+	}
+
+	@Test
+	public void testDuplicateFinishingFirst() {
+		store(waiting(0, ago(MINUTE)));
+		assertTrue(PendingPermutation.claim(BUILD, 0, "a"));
+		assertTrue(PendingPermutation.speculate(BUILD, 0, "b"));
+		assertTrue(PendingPermutation.complete(BUILD, 0, "b"));
+		assertFalse(PendingPermutation.renew(BUILD, 0, "a"));
+		assertFalse(PendingPermutation.complete(BUILD, 0, "a"));
+		PendingPermutation p = load(0);
+		assertTrue(p.isFinished());
+		assertEquals("b", p.getWorkerId());
+		assertNull(p.getSpeculativeWorkerId());
+	}
+
+	@Test
+	public void testOriginalFinishingFirst() {
+		store(waiting(0, ago(MINUTE)));
+		assertTrue(PendingPermutation.claim(BUILD, 0, "a"));
+		assertTrue(PendingPermutation.speculate(BUILD, 0, "b"));
+		assertTrue(PendingPermutation.complete(BUILD, 0, "a"));
+		assertFalse(PendingPermutation.renew(BUILD, 0, "b"));
+		assertFalse(PendingPermutation.complete(BUILD, 0, "b"));
+		PendingPermutation p = load(0);
+		assertEquals("a", p.getWorkerId());
+		assertFalse(p.isSpeculating());
+	}
+
+	@Test
+	public void testDuplicateTakesOverALapsedLease() {
+		// Someone new claiming it finds the duplicate has taken over
+		store(lapsedWithDuplicate(0, "a", "b"));
+		assertFalse(PendingPermutation.claim(BUILD, 0, "c"));
+		PendingPermutation p = load(0);
+		assertEquals("b", p.getWorkerId());
+		assertFalse(p.isSpeculating());
+		assertFalse(p.isClaimable());
+		assertFalse(PendingPermutation.renew(BUILD, 0, "a"));
+		assertTrue(PendingPermutation.renew(BUILD, 0, "b"));
+
+		// So does the duplicate's next renewal
+		store(lapsedWithDuplicate(1, "a", "b"));
+		assertTrue(PendingPermutation.renew(BUILD, 1, "b"));
+		p = load(1);
+		assertEquals("b", p.getWorkerId());
+		assertFalse(p.isSpeculating());
+		assertFalse(p.isClaimable());
+		assertFalse(PendingPermutation.renew(BUILD, 1, "a"));
+	}
+
+	@Test
+	public void testHandingBackWithADuplicate() {
+		// The original worker gives up, so the duplicate carries on
+		store(waiting(0, ago(MINUTE)));
+		assertTrue(PendingPermutation.claim(BUILD, 0, "a"));
+		assertTrue(PendingPermutation.speculate(BUILD, 0, "b"));
+		assertTrue(PendingPermutation.release(BUILD, 0, "a"));
+		PendingPermutation p = load(0);
+		assertEquals("b", p.getWorkerId());
+		assertFalse(p.isSpeculating());
+		assertFalse(p.isClaimable());
+
+		// The duplicate gives up, so the original worker carries on alone
+		store(waiting(1, ago(MINUTE)));
+		assertTrue(PendingPermutation.claim(BUILD, 1, "a"));
+		assertTrue(PendingPermutation.speculate(BUILD, 1, "b"));
+		assertTrue(PendingPermutation.release(BUILD, 1, "b"));
+		p = load(1);
+		assertEquals("a", p.getWorkerId());
+		assertFalse(p.isSpeculating());
+		assertFalse(PendingPermutation.renew(BUILD, 1, "b"));
+		assertTrue(PendingPermutation.speculate(BUILD, 1, "c"));
+	}
+}
@@ -0,0 +1,72 @@
+package gwtdistcc.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+
+import org.junit.Test;
+
+public class PendingPermutationTest {
+	static final long HOUR = 3600000L;
+	static final Date CREATED = new Date(100*HOUR);
+
+	static long priority(Date created, long buildTime, long permutationTime) {
+		return PendingPermutation.getPriority(created, buildTime, permutationTime).getTime();
+	}
+
+	@Test
+	public void testShorterBuildsComeFirst() {
+		assertTrue(priority(CREATED, HOUR/4, 0) < priority(CREATED, HOUR/2, 0));
+		// Half an hour less work counts the same as coming in half an hour earlier
+		Date later = new Date(CREATED.getTime() + HOUR/2);
+		assertEquals(priority(CREATED, HOUR/2, 0), priority(later, 0, 0));
+		assertTrue(priority(CREATED, HOUR/2, 0) > priority(new Date(CREATED.getTime() + HOUR/4), 0, 0));
+		assertTrue(priority(CREATED, HOUR/2, 0) < priority(new Date(CREATED.getTime() + HOUR), 0, 0));
+	}
+
+	@Test
+	public void testSlowerPermutationsComeFirst() {
+		assertTrue(priority(CREATED, HOUR, HOUR/2) < priority(CREATED, HOUR, HOUR/4));
+	}
+
+	@Test
+	public void testExpectedTimesAreCapped() {
+		long half = PendingPermutation.SCHEDULING_WINDOW / 2;
+		assertEquals(priority(CREATED, half, 0), priority(CREATED, 10*half, 0));
+		assertEquals(priority(CREATED, 0, half), priority(CREATED, 0, 10*half));
+		assertEquals(priority(CREATED, 0, 0), priority(CREATED, -HOUR, -HOUR));
+		// A build can't be passed by one that came in a whole window later
+		Date later = new Date(CREATED.getTime() + PendingPermutation.SCHEDULING_WINDOW);
+		assertTrue(priority(CREATED, 10*half, 10*half) <= priority(later, 0, 10*half));
+	}
+
+	@Test
+	public void testUnknownTimesKeepCreationOrder() {
+		assertTrue(priority(CREATED, 0, 0) < priority(new Date(CREATED.getTime() + 1), 0, 0));
+	}
+
+	@Test
+	public void testLeaseTimeFollowsTheRenewalRate() {
+		long leaseTime = 2*PendingPermutation.LEASE_TIME;
+		long perWindow = PendingPermutation.TARGET_RENEWAL_RATE * PendingPermutation.RENEWAL_RATE_WINDOW / 1000;
+		assertEquals(leaseTime, PendingPermutation.adjustLeaseTime(leaseTime, perWindow));
+		assertEquals(leaseTime * 3 / 2, PendingPermutation.adjustLeaseTime(leaseTime, perWindow * 3 / 2));
+		assertEquals(leaseTime * 3 / 4, PendingPermutation.adjustLeaseTime(leaseTime, perWindow * 3 / 4));
+	}
+
+	@Test
+	public void testLeaseTimeChangesGradually() {
+		long leaseTime = 4*PendingPermutation.LEASE_TIME;
+		long perWindow = PendingPermutation.TARGET_RENEWAL_RATE * PendingPermutation.RENEWAL_RATE_WINDOW / 1000;
+		assertEquals(leaseTime * 2, PendingPermutation.adjustLeaseTime(leaseTime, perWindow * 10));
+		assertEquals(leaseTime / 2, PendingPermutation.adjustLeaseTime(leaseTime, 0));
+	}
+
+	@Test
+	public void testLeaseTimeStaysWithinLimits() {
+		long perWindow = PendingPermutation.TARGET_RENEWAL_RATE * PendingPermutation.RENEWAL_RATE_WINDOW / 1000;
+		assertEquals(PendingPermutation.LEASE_TIME, PendingPermutation.adjustLeaseTime(PendingPermutation.LEASE_TIME, 0));
+		assertEquals(PendingPermutation.MAX_LEASE_TIME, PendingPermutation.adjustLeaseTime(PendingPermutation.MAX_LEASE_TIME, perWindow * 10));
+	}
+}